@@ -0,0 +1,226 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 非同步並限制速率的錯誤接收者，是MagicURLNetwork預設的錯誤接收者。
+ * </p>
+ *
+ * <p>
+ * 每秒最多只會接受固定數量的錯誤，超過的錯誤只會被計數；接受的錯誤放入固定大小的佇列後，由一個背景執行緒輸出，所以大量的連線同時失敗時，不會一起等待輸出串流的鎖。堆疊追蹤可以關閉。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setDefaultErrorSink(MagicURLNetwork.ErrorSink)
+ */
+public class AsyncErrorSink implements MagicURLNetwork.ErrorSink {
+
+    // -----類別常數-----
+    /**
+     * 預設每秒最多接受的錯誤數量。
+     */
+    public static final int DEFAULT_MAX_PER_SECOND = 20;
+    /**
+     * 佇列的大小。
+     */
+    private static final int QUEUE_CAPACITY = 256;
+
+    // -----物件常數-----
+    /**
+     * 輸出的串流。
+     */
+    private final PrintStream out;
+    /**
+     * 每秒最多接受的錯誤數量。
+     */
+    private final int maxPerSecond;
+    /**
+     * 等待輸出的錯誤。
+     */
+    private final ArrayBlockingQueue<FailureCause> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * 目前這一秒開始的時間(奈秒時間)。
+     */
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    /**
+     * 目前這一秒接受的錯誤數量。
+     */
+    private final AtomicInteger windowCount = new AtomicInteger();
+    /**
+     * 還沒有輸出的被捨棄的錯誤數量。
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /**
+     * 所有被捨棄的錯誤數量。
+     */
+    private final AtomicLong totalDroppedCount = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 是否輸出堆疊追蹤。
+     */
+    private volatile boolean printStackTrace;
+    /**
+     * 輸出錯誤的背景執行緒。
+     */
+    private volatile Thread worker = null;
+
+    // -----建構子-----
+    /**
+     * 建構子，輸出到標準輸出，輸出堆疊追蹤，並使用預設的速率。
+     */
+    public AsyncErrorSink() {
+        this(System.out, true, DEFAULT_MAX_PER_SECOND);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param out 傳入輸出的串流
+     * @param printStackTrace 傳入是否輸出堆疊追蹤
+     * @param maxPerSecond 傳入每秒最多接受的錯誤數量
+     */
+    public AsyncErrorSink(final PrintStream out, final boolean printStackTrace, final int maxPerSecond) {
+        if (out == null) {
+            throw new RuntimeException("The output stream is null.");
+        }
+        if (maxPerSecond <= 0) {
+            throw new RuntimeException("Max errors per second needs to be bigger than 0.");
+        }
+        this.out = out;
+        this.printStackTrace = printStackTrace;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    // -----物件方法-----
+    /**
+     * 接收錯誤。這個方法不會等待輸出。
+     *
+     * @param cause 傳入失敗原因
+     */
+    @Override
+    public void report(final FailureCause cause) {
+        if (!tryAcquire() || !queue.offer(cause)) {
+            droppedCount.incrementAndGet();
+            totalDroppedCount.incrementAndGet();
+            return;
+        }
+        if (worker == null) {
+            startWorker();
+        }
+    }
+
+    /**
+     * 在目前這一秒的額度內接受一個錯誤。
+     *
+     * @return 傳回是否可以接受
+     */
+    private boolean tryAcquire() {
+        final long now = System.nanoTime();
+        final long start = windowStart.get();
+        if (now - start >= 1000000000L && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= maxPerSecond;
+    }
+
+    /**
+     * 如果背景執行緒還沒有執行，就啟動它。
+     */
+    private synchronized void startWorker() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread("MagicURLNetwork-ErrorSink") {
+            @Override
+            public void run() {
+                while (true) {
+                    final FailureCause cause;
+                    try {
+                        cause = queue.take();
+                    } catch (final InterruptedException ex) {
+                        return;
+                    }
+                    write(cause);
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * 輸出錯誤。
+     *
+     * @param cause 傳入失敗原因
+     */
+    private void write(final FailureCause cause) {
+        final long dropped = droppedCount.getAndSet(0);
+        if (dropped > 0) {
+            out.println(String.format("[MagicURLNetwork] %d errors were not reported.", dropped));
+        }
+        out.println("[MagicURLNetwork] ".concat(cause.toString()));
+        final Throwable throwable = cause.getThrowable();
+        if (throwable != null && printStackTrace) {
+            throwable.printStackTrace(out);
+        }
+    }
+
+    /**
+     * 取得是否輸出堆疊追蹤。
+     *
+     * @return 傳回是否輸出堆疊追蹤
+     */
+    public boolean isPrintStackTrace() {
+        return printStackTrace;
+    }
+
+    /**
+     * 設定是否輸出堆疊追蹤。
+     *
+     * @param printStackTrace 傳入是否輸出堆疊追蹤
+     */
+    public void setPrintStackTrace(final boolean printStackTrace) {
+        this.printStackTrace = printStackTrace;
+    }
+
+    /**
+     * 取得每秒最多接受的錯誤數量。
+     *
+     * @return 傳回每秒最多接受的錯誤數量
+     */
+    public int getMaxPerSecond() {
+        return maxPerSecond;
+    }
+
+    /**
+     * 取得因為超過速率或是佇列已滿而沒有輸出的錯誤數量。
+     *
+     * @return 傳回沒有輸出的錯誤數量
+     */
+    public long getDroppedCount() {
+        return totalDroppedCount.get();
+    }
+}
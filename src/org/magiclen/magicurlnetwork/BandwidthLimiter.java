@@ -0,0 +1,190 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 限制傳輸頻寬的權杖桶，可以被一個需求使用，也可以被多個需求共用來限制全域或是某個主機的頻寬。
+ * </p>
+ *
+ * <p>
+ * 使用理論抵達時間(GCRA)實作權杖桶，每次傳輸只需要一次CAS，不使用鎖。閒置時可以累積最多突發大小的額度，額度用完後，傳輸的執行緒會等待到下一次符合速率的時間。速率和突發大小可以在傳輸時調整。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setBandwidthLimiter(BandwidthLimiter)
+ */
+public class BandwidthLimiter {
+
+    // -----物件常數-----
+    /**
+     * 理論抵達時間(奈秒時間)，也就是額度用完的時間點。
+     */
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    /**
+     * 經過的位元組數量。
+     */
+    private final AtomicLong byteCount = new AtomicLong();
+    /**
+     * 需要等待的次數。
+     */
+    private final AtomicLong throttledCount = new AtomicLong();
+    /**
+     * 等待的總時間(奈秒)。
+     */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 速率(每秒位元組數量)，小於或等於0表示不限制。
+     */
+    private volatile long rate;
+    /**
+     * 突發大小(位元組)。
+     */
+    private volatile long burst;
+
+    // -----建構子-----
+    /**
+     * 建構子，突發大小為一秒的傳輸量。
+     *
+     * @param rate 傳入速率(每秒位元組數量)，小於或等於0表示不限制
+     */
+    public BandwidthLimiter(final long rate) {
+        this(rate, rate);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param rate 傳入速率(每秒位元組數量)，小於或等於0表示不限制
+     * @param burst 傳入突發大小(位元組)
+     */
+    public BandwidthLimiter(final long rate, final long burst) {
+        setRate(rate);
+        setBurst(burst);
+    }
+
+    // -----物件方法-----
+    /**
+     * 預約傳輸的額度。
+     *
+     * @param bytes 傳入傳輸的位元組數量
+     * @return 傳回需要等待的時間(奈秒)，0表示不需要等待
+     */
+    long reserve(final long bytes) {
+        final long r = rate;
+        if (r <= 0 || bytes <= 0) {
+            return 0;
+        }
+        byteCount.addAndGet(bytes);
+        final long cost = (long) (bytes * 1e9 / r);
+        final long tolerance = (long) (burst * 1e9 / r);
+        while (true) {
+            final long now = System.nanoTime();
+            final long tat = theoreticalArrivalTime.get();
+            final long newTat = (tat - now > 0 ? tat : now) + cost;
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                final long wait = tat - tolerance - now;
+                if (wait <= 0) {
+                    return 0;
+                }
+                throttledCount.incrementAndGet();
+                waitNanos.addAndGet(wait);
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * 取得速率。
+     *
+     * @return 傳回速率(每秒位元組數量)，小於或等於0表示不限制
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 設定速率，可以在傳輸時調整。
+     *
+     * @param rate 傳入速率(每秒位元組數量)，小於或等於0表示不限制
+     */
+    public void setRate(final long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * 取得突發大小。
+     *
+     * @return 傳回突發大小(位元組)
+     */
+    public long getBurst() {
+        return burst;
+    }
+
+    /**
+     * 設定突發大小，可以在傳輸時調整。
+     *
+     * @param burst 傳入突發大小(位元組)
+     */
+    public void setBurst(final long burst) {
+        if (burst < 0) {
+            throw new RuntimeException("Burst needs to be at least 0.");
+        }
+        this.burst = burst;
+    }
+
+    /**
+     * 取得經過的位元組數量。
+     *
+     * @return 傳回經過的位元組數量
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * 取得需要等待的次數。
+     *
+     * @return 傳回需要等待的次數
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * 取得等待的總時間。
+     *
+     * @return 傳回等待的總時間(奈秒)
+     */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /**
+     * 清除統計。
+     */
+    public void resetStatistics() {
+        byteCount.set(0);
+        throttledCount.set(0);
+        waitNanos.set(0);
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import org.magiclen.magicurlnetwork.parameters.Body;
+import org.magiclen.magicurlnetwork.parameters.ByteBufferBody;
+import org.magiclen.magicurlnetwork.parameters.FileRegionBody;
+import org.magiclen.magicurlnetwork.parameters.InputStreamBody;
+import org.magiclen.magicurlnetwork.parameters.JSONBody;
+
+/**
+ * <p>
+ * 將Body的內容直接寫入連線的輸出串流。
+ * </p>
+ *
+ * <p>
+ * 所有內容都會先合併在同一個寫入緩衝空間中，滿了才送出；檔案和串流的內容會直接讀進這個緩衝空間，較大的位元組陣列則會直接寫入連線，都不會另外複製一份或是使用暫存檔案。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicPUT
+ * @see MultipartWriter
+ */
+abstract class BodyWriter {
+
+    // -----類別常數-----
+    /**
+     * UTF-8字元集。
+     */
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * 寫入緩衝空間的大小。
+     */
+    static final int WRITE_BUFFER_SIZE = 8192;
+
+    // -----類別類別-----
+    /**
+     * 計算寫入字元的UTF-8位元組數量，不會實際保存資料。
+     */
+    private static final class Utf8CountingWriter extends Writer {
+
+        private long count = 0;
+        private boolean pendingHighSurrogate = false;
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) {
+            final int end = off + len;
+            for (int i = off; i < end; ++i) {
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(final int ch) {
+            final char c = (char) ch;
+            if (pendingHighSurrogate) {
+                pendingHighSurrogate = false;
+                if (Character.isLowSurrogate(c)) {
+                    count += 3; // 高代理已算1個位元組，補足成4個
+                    return;
+                }
+            }
+            if (c < 0x80) {
+                ++count;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                ++count;
+                pendingHighSurrogate = true;
+            } else if (Character.isLowSurrogate(c)) {
+                ++count;
+            } else {
+                count += 3;
+            }
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) {
+            final int end = off + len;
+            for (int i = off; i < end; ++i) {
+                write(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 將寫入的資料合併在緩衝空間中，滿了才送往連線。
+     */
+    final class Sink extends OutputStream {
+
+        final OutputStream out;
+        final Writer writer;
+
+        Sink(final OutputStream out) {
+            this.out = out;
+            this.writer = new OutputStreamWriter(this, UTF_8);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                drain(out);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    drain(out);
+                }
+                final int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // 由呼叫者決定何時送出，避免每次Writer的flush都造成一次小寫入
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 計算字串編碼成UTF-8之後的位元組數量。
+     *
+     * @param string 傳入字串
+     * @return 傳回位元組數量
+     */
+    static long utf8Length(final String string) {
+        final Utf8CountingWriter counter = new Utf8CountingWriter();
+        counter.write(string, 0, string.length());
+        return counter.count;
+    }
+
+    /**
+     * 判斷Body的內容是否為二進制資料。
+     *
+     * @param body 傳入Body
+     * @return 傳回Body的內容是否為二進制資料
+     */
+    static boolean isBinary(final Body body) {
+        switch (body.getBodyType()) {
+            case FILE:
+            case FILE_REGION:
+            case BYTES:
+            case BYTE_BUFFER:
+            case INPUT_STREAM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 取得Body的內容長度。
+     *
+     * @param body 傳入Body
+     * @return 傳回Body的內容長度，如果為-1，表示長度未知
+     */
+    static long getContentLength(final Body body) {
+        switch (body.getBodyType()) {
+            case FILE:
+                return ((File) body.getSource()).length();
+            case FILE_REGION:
+                return ((FileRegionBody) body).length();
+            case BYTES:
+                return ((byte[]) body.getSource()).length;
+            case BYTE_BUFFER:
+                return ((ByteBufferBody) body).length();
+            case INPUT_STREAM:
+                return ((InputStreamBody) body).length();
+            case JSON: {
+                // 多序列化一次來計算長度，換取不必將整份JSON保存在記憶體中
+                final Utf8CountingWriter counter = new Utf8CountingWriter();
+                try {
+                    ((JSONBody) body).writeTo(counter);
+                } catch (final IOException ex) {
+                    // 不可能執行到這裡
+                }
+                return counter.count;
+            }
+            default:
+                return utf8Length(body.toString());
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 寫入緩衝空間。
+     */
+    private final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+
+    // -----物件變數-----
+    /**
+     * 緩衝空間中尚未送出的資料大小。
+     */
+    private int count = 0;
+
+    // -----物件方法-----
+    /**
+     * 將Body的內容寫入輸出串流，並送出所有緩衝的資料。
+     *
+     * @param body 傳入Body
+     * @param out 傳入輸出串流
+     * @throws IOException 拋出例外
+     */
+    void write(final Body body, final OutputStream out) throws IOException {
+        final Sink sink = new Sink(out);
+        writeContent(body, sink);
+        drain(out);
+    }
+
+    /**
+     * 將Body的內容寫入緩衝空間。
+     *
+     * @param body 傳入Body
+     * @param sink 傳入Sink
+     * @throws IOException 拋出例外
+     */
+    void writeContent(final Body body, final Sink sink) throws IOException {
+        switch (body.getBodyType()) {
+            case FILE:
+                try (FileInputStream fis = new FileInputStream((File) body.getSource())) {
+                    readFully(fis, -1, sink.out);
+                }
+                break;
+            case FILE_REGION: {
+                final FileRegionBody region = (FileRegionBody) body;
+                try (RandomAccessFile raf = new RandomAccessFile(region.getSource(), "r")) {
+                    final FileChannel channel = raf.getChannel();
+                    long position = region.getOffset();
+                    long remaining = region.length();
+                    while (remaining > 0) {
+                        if (count == buffer.length) {
+                            drain(sink.out);
+                        }
+                        final ByteBuffer bb = ByteBuffer.wrap(buffer, count, (int) Math.min(buffer.length - count, remaining));
+                        final int c = channel.read(bb, position);
+                        if (c < 0) {
+                            throw new IOException("Unexpected end of file region.");
+                        }
+                        count += c;
+                        position += c;
+                        remaining -= c;
+                    }
+                }
+            }
+            break;
+            case BYTES: {
+                final byte[] data = (byte[]) body.getSource();
+                writeArray(data, 0, data.length, sink);
+            }
+            break;
+            case BYTE_BUFFER: {
+                final ByteBuffer bb = ((ByteBufferBody) body).getSource();
+                if (bb.hasArray()) {
+                    writeArray(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), sink);
+                } else {
+                    // 直接緩衝區和唯讀緩衝區沒有可存取的陣列，分段取進寫入緩衝空間
+                    while (bb.hasRemaining()) {
+                        if (count == buffer.length) {
+                            drain(sink.out);
+                        }
+                        final int n = Math.min(buffer.length - count, bb.remaining());
+                        bb.get(buffer, count, n);
+                        count += n;
+                    }
+                }
+            }
+            break;
+            case INPUT_STREAM: {
+                final InputStreamBody isb = (InputStreamBody) body;
+                readFully(isb.getSource(), isb.length(), sink.out);
+            }
+            break;
+            case JSON:
+                ((JSONBody) body).writeTo(sink.writer);
+                break;
+            default:
+                sink.writer.write(body.toString());
+                sink.writer.flush();
+                break;
+        }
+    }
+
+    /**
+     * 將位元組陣列寫入，較小的陣列會合併進緩衝空間，較大的陣列則直接寫入輸出串流。
+     *
+     * @param data 傳入位元組陣列
+     * @param offset 傳入位移
+     * @param length 傳入長度
+     * @param sink 傳入Sink
+     * @throws IOException 拋出例外
+     */
+    private void writeArray(final byte[] data, final int offset, final int length, final Sink sink) throws IOException {
+        if (length <= buffer.length - count) {
+            sink.write(data, offset, length);
+        } else {
+            drain(sink.out);
+            int off = offset;
+            int remaining = length;
+            while (remaining > 0) {
+                final int n = Math.min(remaining, WRITE_BUFFER_SIZE);
+                sink.out.write(data, off, n);
+                off += n;
+                remaining -= n;
+                onWritten(n);
+            }
+        }
+    }
+
+    /**
+     * 將輸入串流的內容直接讀進緩衝空間中。
+     *
+     * @param in 傳入輸入串流
+     * @param length 傳入要讀取的長度，如果為-1，表示讀到串流結束為止
+     * @param out 傳入輸出串流
+     * @throws IOException 拋出例外
+     */
+    private void readFully(final InputStream in, final long length, final OutputStream out) throws IOException {
+        long remaining = length;
+        while (remaining != 0) {
+            if (count == buffer.length) {
+                drain(out);
+            }
+            final int n = remaining < 0 ? buffer.length - count : (int) Math.min(buffer.length - count, remaining);
+            final int c = in.read(buffer, count, n);
+            if (c < 0) {
+                if (remaining > 0) {
+                    throw new IOException("Unexpected end of stream.");
+                }
+                break;
+            }
+            count += c;
+            if (remaining > 0) {
+                remaining -= c;
+            }
+        }
+    }
+
+    /**
+     * 送出緩衝空間中的資料。
+     *
+     * @param out 傳入輸出串流
+     * @throws IOException 拋出例外
+     */
+    void drain(final OutputStream out) throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            final int written = count;
+            count = 0;
+            onWritten(written);
+        }
+    }
+
+    /**
+     * 當有資料送往連線後。
+     *
+     * @param written 傳入這次送出的資料大小
+     */
+    protected abstract void onWritten(final int written);
+}
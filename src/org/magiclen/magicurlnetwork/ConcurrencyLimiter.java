@@ -0,0 +1,525 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * 自動調整的並行數量限制，可以被多個需求共用，通常用來限制某個主機同時進行中的需求數量。
+ * </p>
+ *
+ * <p>
+ * 使用加法增加、乘法減少(AIMD)的方式調整上限。需求成功而且延遲沒有明顯變長時，上限會慢慢增加；逾時、連線失敗、收到429或5XX的回應碼，或是延遲超過基準延遲的容許倍數時，上限會乘上退讓比例。基準延遲是成功需求的延遲中較低的值，會隨著後端的狀況緩慢調整。同一段延遲時間內的多次失敗只會減少一次上限，避免一次錯誤就讓上限降到最低。
+ * </p>
+ *
+ * <p>
+ * 超過上限的需求會依照順序排隊，等到其它需求結束，或是超過排隊時間、需求的期限時被拒絕；佇列已滿或是不允許排隊時會立刻被拒絕。排隊中的需求被嘗試關閉時會立刻離開佇列。被拒絕的需求不會建立連線，也不會重試。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setConcurrencyLimiter(ConcurrencyLimiter)
+ * @see MagicURLNetwork#setHostConcurrencyLimiter(String, ConcurrencyLimiter)
+ */
+public class ConcurrencyLimiter {
+
+    // -----類別常數-----
+    /**
+     * 預設的初始上限。
+     */
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    /**
+     * 預設的最低上限。
+     */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    /**
+     * 預設的最高上限。
+     */
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    /**
+     * 預設的退讓比例。
+     */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    /**
+     * 預設的延遲容許倍數。
+     */
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    /**
+     * 預設的佇列長度上限。
+     */
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 64;
+    /**
+     * 預設的最長排隊時間(毫秒)。
+     */
+    public static final long DEFAULT_MAX_QUEUE_WAIT = 1000;
+    /**
+     * 需求正常完成。
+     */
+    static final int SUCCESS = 0;
+    /**
+     * 需求因為後端過載而失敗。
+     */
+    static final int DROPPED = 1;
+    /**
+     * 需求的結果和後端狀況無關。
+     */
+    static final int IGNORED = 2;
+    /**
+     * 被拒絕。
+     */
+    static final long REJECTED = -1;
+    /**
+     * 排隊時需求被取消。
+     */
+    static final long CANCELLED = -2;
+    /**
+     * 基準延遲往較高延遲調整的速度(右移位數)。
+     */
+    private static final int BASELINE_DRIFT_SHIFT = 8;
+
+    // -----類別類別-----
+    /**
+     * 排隊中的需求。
+     */
+    private static final class Waiter {
+
+        final Thread thread;
+        boolean granted;
+
+        Waiter(final Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 判斷HTTP回應碼是否表示後端過載。
+     *
+     * @param responseCode 傳入HTTP回應碼
+     * @return 傳回HTTP回應碼是否表示後端過載
+     */
+    static boolean isOverloaded(final int responseCode) {
+        return responseCode == 429 || responseCode / 100 == 5;
+    }
+
+    // -----物件常數-----
+    /**
+     * 排隊中的需求。
+     */
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+    // -----物件變數-----
+    /**
+     * 目前的上限。
+     */
+    private double limit;
+    /**
+     * 進行中的需求數量。
+     */
+    private int inFlight;
+    /**
+     * 基準延遲(奈秒)，0表示還沒有取樣。
+     */
+    private long baselineNanos;
+    /**
+     * 最後一次減少上限的時間(奈秒時間)。
+     */
+    private long lastBackoff;
+    /**
+     * 取得許可的次數。
+     */
+    private long acquiredCount;
+    /**
+     * 排隊的次數。
+     */
+    private long queuedCount;
+    /**
+     * 被拒絕的次數。
+     */
+    private long rejectedCount;
+    /**
+     * 減少上限的次數。
+     */
+    private long backoffCount;
+    /**
+     * 最低上限。
+     */
+    private volatile int minLimit = DEFAULT_MIN_LIMIT;
+    /**
+     * 最高上限。
+     */
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+    /**
+     * 退讓比例。
+     */
+    private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    /**
+     * 延遲容許倍數。
+     */
+    private volatile double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+    /**
+     * 佇列長度上限。
+     */
+    private volatile int maxQueueLength = DEFAULT_MAX_QUEUE_LENGTH;
+    /**
+     * 最長排隊時間(毫秒)。
+     */
+    private volatile long maxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用預設的初始上限。
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param initialLimit 傳入初始上限
+     */
+    public ConcurrencyLimiter(final int initialLimit) {
+        if (initialLimit < 1) {
+            throw new RuntimeException("The initial limit needs to be at least 1.");
+        }
+        limit = initialLimit;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得許可，超過上限時排隊等待。
+     *
+     * @param deadline 傳入需求的期限(奈秒時間)，0表示沒有期限
+     * @param request 傳入排隊的需求，它被嘗試關閉時會離開佇列
+     * @return 傳回排隊的時間(奈秒)，如果為REJECTED或CANCELLED，表示被拒絕或是被取消
+     */
+    long acquire(final long deadline, final MagicURLNetwork request) {
+        final long start = System.nanoTime();
+        final Waiter waiter;
+        long due;
+        synchronized (this) {
+            if (queue.isEmpty() && inFlight < (int) limit) {
+                ++inFlight;
+                ++acquiredCount;
+                return 0;
+            }
+            due = start + maxQueueWait * 1000000L;
+            if (deadline != 0 && deadline - due < 0) {
+                due = deadline;
+            }
+            if (due - start <= 0 || queue.size() >= maxQueueLength) {
+                ++rejectedCount;
+                return REJECTED;
+            }
+            waiter = new Waiter(Thread.currentThread());
+            queue.addLast(waiter);
+            ++queuedCount;
+        }
+        while (true) {
+            final long remain = due - System.nanoTime();
+            if (remain > 0 && !Thread.currentThread().isInterrupted() && !request.isAttemptDisconnecting()) {
+                LockSupport.parkNanos(this, remain);
+            }
+            synchronized (this) {
+                if (waiter.granted) {
+                    return System.nanoTime() - start;
+                }
+                if (request.isAttemptDisconnecting()) {
+                    // 需求被取消，離開佇列
+                    queue.remove(waiter);
+                    return CANCELLED;
+                }
+                if (due - System.nanoTime() <= 0 || Thread.currentThread().isInterrupted()) {
+                    queue.remove(waiter);
+                    ++rejectedCount;
+                    return REJECTED;
+                }
+            }
+        }
+    }
+
+    /**
+     * 歸還許可，並依照需求的結果調整上限。
+     *
+     * @param latencyNanos 傳入需求花費的時間(奈秒)
+     * @param outcome 傳入需求的結果
+     */
+    synchronized void release(final long latencyNanos, final int outcome) {
+        final int usedInFlight = inFlight;
+        --inFlight;
+        final long now = System.nanoTime();
+        boolean congested = outcome == DROPPED;
+        if (outcome == SUCCESS && latencyNanos > 0) {
+            if (baselineNanos == 0 || latencyNanos < baselineNanos) {
+                baselineNanos = latencyNanos;
+            } else {
+                // 讓基準延遲慢慢跟上後端的新狀況
+                baselineNanos += (latencyNanos - baselineNanos) >> BASELINE_DRIFT_SHIFT;
+                congested = latencyNanos > baselineNanos * latencyTolerance;
+            }
+        }
+        if (congested) {
+            // 同一段延遲時間內只減少一次
+            if (lastBackoff == 0 || now - lastBackoff > Math.max(baselineNanos, latencyNanos)) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastBackoff = now;
+                ++backoffCount;
+            }
+        } else if (outcome == SUCCESS && usedInFlight * 2 >= (int) limit) {
+            // 只有上限被用到一半以上時才增加，閒置時上限不會一直變大
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        grant();
+    }
+
+    /**
+     * 讓排隊中的需求依照順序取得許可。
+     */
+    private void grant() {
+        while (!queue.isEmpty() && inFlight < (int) limit) {
+            final Waiter waiter = queue.pollFirst();
+            waiter.granted = true;
+            ++inFlight;
+            ++acquiredCount;
+            LockSupport.unpark(waiter.thread);
+        }
+    }
+
+    /**
+     * 取得目前的上限。
+     *
+     * @return 傳回目前的上限
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * 設定目前的上限，之後仍會自動調整。
+     *
+     * @param limit 傳入目前的上限
+     */
+    public synchronized void setLimit(final int limit) {
+        if (limit < 1) {
+            throw new RuntimeException("The limit needs to be at least 1.");
+        }
+        this.limit = limit;
+        grant();
+    }
+
+    /**
+     * 取得進行中的需求數量。
+     *
+     * @return 傳回進行中的需求數量
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * 取得排隊中的需求數量。
+     *
+     * @return 傳回排隊中的需求數量
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * 取得基準延遲。
+     *
+     * @return 傳回基準延遲(奈秒)，0表示還沒有取樣
+     */
+    public synchronized long getBaselineNanos() {
+        return baselineNanos;
+    }
+
+    /**
+     * 取得最低上限。
+     *
+     * @return 傳回最低上限
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * 設定最低上限。
+     *
+     * @param minLimit 傳入最低上限
+     */
+    public void setMinLimit(final int minLimit) {
+        if (minLimit < 1) {
+            throw new RuntimeException("The min limit needs to be at least 1.");
+        }
+        this.minLimit = minLimit;
+    }
+
+    /**
+     * 取得最高上限。
+     *
+     * @return 傳回最高上限
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * 設定最高上限。
+     *
+     * @param maxLimit 傳入最高上限
+     */
+    public void setMaxLimit(final int maxLimit) {
+        if (maxLimit < 1) {
+            throw new RuntimeException("The max limit needs to be at least 1.");
+        }
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * 取得退讓比例。
+     *
+     * @return 傳回退讓比例
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * 設定退讓比例，後端過載時上限會乘上這個比例。
+     *
+     * @param backoffRatio 傳入退讓比例，必須大於0而且小於1
+     */
+    public void setBackoffRatio(final double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new RuntimeException("The backoff ratio needs to be between 0 and 1.");
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * 取得延遲容許倍數。
+     *
+     * @return 傳回延遲容許倍數
+     */
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * 設定延遲容許倍數，需求的延遲超過基準延遲的這個倍數時，會被當作後端過載。
+     *
+     * @param latencyTolerance 傳入延遲容許倍數，必須大於1
+     */
+    public void setLatencyTolerance(final double latencyTolerance) {
+        if (latencyTolerance <= 1) {
+            throw new RuntimeException("The latency tolerance needs to be greater than 1.");
+        }
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * 取得佇列長度上限。
+     *
+     * @return 傳回佇列長度上限
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * 設定佇列長度上限，佇列已滿時，超過上限的需求會立刻被拒絕。
+     *
+     * @param maxQueueLength 傳入佇列長度上限，0表示不排隊
+     */
+    public void setMaxQueueLength(final int maxQueueLength) {
+        if (maxQueueLength < 0) {
+            throw new RuntimeException("The max queue length needs to be at least 0.");
+        }
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    /**
+     * 取得最長排隊時間。
+     *
+     * @return 傳回最長排隊時間(毫秒)
+     */
+    public long getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    /**
+     * 設定最長排隊時間，排隊的時間也不會超過需求的期限。
+     *
+     * @param maxQueueWait 傳入最長排隊時間(毫秒)，0表示不排隊
+     */
+    public void setMaxQueueWait(final long maxQueueWait) {
+        if (maxQueueWait < 0) {
+            throw new RuntimeException("The max queue wait needs to be at least 0.");
+        }
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * 取得取得許可的次數。
+     *
+     * @return 傳回取得許可的次數
+     */
+    public synchronized long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    /**
+     * 取得排隊的次數。
+     *
+     * @return 傳回排隊的次數
+     */
+    public synchronized long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * 取得被拒絕的次數。
+     *
+     * @return 傳回被拒絕的次數
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * 取得減少上限的次數。
+     *
+     * @return 傳回減少上限的次數
+     */
+    public synchronized long getBackoffCount() {
+        return backoffCount;
+    }
+
+    /**
+     * 清除統計。
+     */
+    public synchronized void resetStatistics() {
+        acquiredCount = 0;
+        queuedCount = 0;
+        rejectedCount = 0;
+        backoffCount = 0;
+    }
+}
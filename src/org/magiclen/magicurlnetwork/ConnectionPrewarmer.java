@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * <p>
+ * 預先建立連線並放入連線池中。
+ * </p>
+ *
+ * <p>
+ * 每個連線由一個執行緒建立，完成TCP連線和TLS交握之後，會等到所有連線都建立好才各自送出HEAD需求並讀完回應，這樣JVM才會建立多個不同的連線，而不是重複使用剛放回連線池的同一個連線。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#prewarm(java.lang.String, int, int)
+ */
+final class ConnectionPrewarmer extends Thread {
+
+    // -----類別方法-----
+    /**
+     * 預先建立連線並放入連線池中。HEAD需求會送到主機的根路徑，不會使用URL的路徑和參數。
+     *
+     * @param url 傳入URL，只會使用協定、主機名稱和連接埠
+     * @param count 傳入要同時建立的連線數量
+     * @param timeout 傳入每個連線的逾時時間(毫秒)
+     * @return 傳回成功建立並放入連線池中的連線數量
+     */
+    static int prewarm(final URL url, final int count, final int timeout) {
+        // 預先解析主機名稱
+        final String host = url.getHost();
+        final URL root;
+        try {
+            root = new URL(url.getProtocol(), host, url.getPort(), "/");
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        try {
+            final HTTPSDNSCache dns = MagicURLNetwork.getHTTPSDNSCache();
+            if (dns != null && "https".equals(root.getProtocol())) {
+                dns.resolve(host);
+            } else {
+                InetAddress.getAllByName(host);
+            }
+        } catch (final Exception ex) {
+            return 0;
+        }
+
+        final CountDownLatch connected = new CountDownLatch(count);
+        final ConnectionPrewarmer[] prewarmers = new ConnectionPrewarmer[count];
+        for (int i = 0; i < count; ++i) {
+            prewarmers[i] = new ConnectionPrewarmer(root, timeout, connected);
+            prewarmers[i].start();
+        }
+        int warmed = 0;
+        for (final ConnectionPrewarmer prewarmer : prewarmers) {
+            try {
+                prewarmer.join();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (prewarmer.warmed) {
+                ++warmed;
+            }
+        }
+        return warmed;
+    }
+
+    // -----物件常數-----
+    /**
+     * 要連線的URL。
+     */
+    private final URL url;
+    /**
+     * 逾時時間(毫秒)。
+     */
+    private final int timeout;
+    /**
+     * 尚未完成建立連線的數量。
+     */
+    private final CountDownLatch connected;
+
+    // -----物件變數-----
+    /**
+     * 連線是否成功建立並放入連線池中。
+     */
+    private volatile boolean warmed = false;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param url 傳入要連線的URL
+     * @param timeout 傳入逾時時間(毫秒)
+     * @param connected 傳入尚未完成建立連線的數量
+     */
+    private ConnectionPrewarmer(final URL url, final int timeout, final CountDownLatch connected) {
+        super("MagicURLNetwork-Prewarm");
+        this.url = url;
+        this.timeout = timeout;
+        this.connected = connected;
+        setDaemon(true);
+    }
+
+    // -----物件方法-----
+    @Override
+    public void run() {
+        HttpURLConnection conn = null;
+        boolean established = false;
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            if (conn instanceof HttpsURLConnection) {
+                // 和一般的需求使用同一個SSLSocketFactory，連線和TLS工作階段才能被重複使用
+                final HttpsURLConnection https = (HttpsURLConnection) conn;
+                https.setSSLSocketFactory(MagicURLNetwork.getSharedSSLSocketFactory());
+                https.setHostnameVerifier(MagicURLNetwork.getAnyHostnameVerifier());
+            }
+            conn.setRequestMethod("HEAD");
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.connect();
+            established = true;
+        } catch (final Exception ex) {
+            // 無法建立連線
+        } finally {
+            connected.countDown();
+        }
+        if (!established) {
+            if (conn != null) {
+                conn.disconnect();
+            }
+            return;
+        }
+        try {
+            // 等待其它連線建立完成，避免重複使用同一個連線
+            connected.await(timeout > 0 ? timeout : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            conn.getResponseCode();
+            InputStream is = conn.getErrorStream();
+            if (is == null) {
+                is = conn.getInputStream();
+            }
+            is.close();
+            warmed = true;
+        } catch (final Exception ex) {
+            conn.disconnect();
+        }
+    }
+}
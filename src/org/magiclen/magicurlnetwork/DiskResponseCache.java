@@ -0,0 +1,921 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.magiclen.json.JSONObject;
+
+/**
+ * <p>
+ * 存在磁碟中的HTTP回應快取，程式重新啟動之後仍然可以使用，可以被多個MagicGET物件共用。
+ * </p>
+ *
+ * <p>
+ * 快取的鍵值和有效時間的規則與HTTPResponseCache相同。每個內容存成一個檔案，檔名由鍵值的雜湊值決定；所有內容的位置、大小、最後使用時間和有效期限則記錄在一個固定大小的索引檔案中，索引檔案會被映射到記憶體，用開放定址法在O(1)的時間內找到內容。快取的總大小有上限，超過時會淘汰最久沒被使用的內容。
+ * </p>
+ *
+ * <p>
+ * 寫入內容時會先寫到暫存檔案並同步到磁碟，再以不可分割的方式改名，最後才更新索引。程式在任何時間點中斷，重新開啟快取時都會移除不完整的內容。
+ * </p>
+ *
+ * <p>
+ * 快取命中時，如果有設定目標檔案，內容會直接由檔案通道複製到目標檔案；否則getResult方法會傳回映射到快取檔案的唯讀ByteBuffer，不會將內容讀進Java的堆積中。
+ * </p>
+ *
+ * <p>
+ * 同一個目錄同時只能被一個DiskResponseCache物件使用。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicGET
+ * @see HTTPResponseCache
+ */
+public class DiskResponseCache {
+
+    // -----類別常數-----
+    /**
+     * 預設的索引容量。
+     */
+    public static final int DEFAULT_INDEX_CAPACITY = 8192;
+    /**
+     * 索引檔案的名稱。
+     */
+    private static final String INDEX_FILE_NAME = "index";
+    /**
+     * 內容檔案的副檔名。
+     */
+    private static final String CONTENT_EXTENSION = ".dat";
+    /**
+     * 暫存檔案的副檔名。
+     */
+    private static final String TEMP_EXTENSION = ".tmp";
+    /**
+     * 索引檔案的識別碼。
+     */
+    private static final int MAGIC = 0x4D554E43;
+    /**
+     * 索引檔案的格式版本。
+     */
+    private static final int VERSION = 1;
+    /**
+     * 索引檔案開頭的大小。
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * 每個索引欄位的大小。
+     */
+    private static final int SLOT_SIZE = 48;
+    /**
+     * 索引欄位中，狀態的位置。
+     */
+    private static final int SLOT_STATE = 0;
+    /**
+     * 索引欄位中，雜湊值高位的位置。
+     */
+    private static final int SLOT_HASH_HIGH = 8;
+    /**
+     * 索引欄位中，雜湊值低位的位置。
+     */
+    private static final int SLOT_HASH_LOW = 16;
+    /**
+     * 索引欄位中，內容檔案大小的位置。
+     */
+    private static final int SLOT_SIZE_OFFSET = 24;
+    /**
+     * 索引欄位中，最後使用時間的位置。
+     */
+    private static final int SLOT_ACCESS = 32;
+    /**
+     * 索引欄位中，有效期限的位置。
+     */
+    private static final int SLOT_EXPIRES = 40;
+    /**
+     * 沒有使用的索引欄位。
+     */
+    private static final int STATE_EMPTY = 0;
+    /**
+     * 使用中的索引欄位。
+     */
+    private static final int STATE_USED = 1;
+    /**
+     * 被移除的索引欄位。
+     */
+    private static final int STATE_DELETED = 2;
+    /**
+     * UTF-8字元集。
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // -----類別類別-----
+    /**
+     * 內容的雜湊值，用來記錄內容被使用的順序。
+     */
+    private static final class Key {
+
+        final long high;
+        final long low;
+
+        Key(final long high, final long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) obj;
+            return key.high == high && key.low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
+    /**
+     * 快取的內容。內容檔案的格式為：標頭長度(4位元組)、標頭的JSON字串、回應的內容。取得內容時就會開啟內容檔案，之後都從同一個檔案通道讀取，內容檔案在這段期間被取代或淘汰也不會讀到錯誤的資料。用完之後需要關閉。
+     */
+    static final class Entry {
+
+        final long hashHigh;
+        final long hashLow;
+        final FileChannel channel;
+        final long bodyOffset;
+        final long bodyLength;
+        final JSONObject headers;
+        final String etag;
+        final String lastModified;
+        final long expiresAt;
+
+        Entry(final long hashHigh, final long hashLow, final FileChannel channel, final long bodyOffset, final long bodyLength, final JSONObject headers, final long expiresAt) {
+            this.hashHigh = hashHigh;
+            this.hashLow = hashLow;
+            this.channel = channel;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.headers = headers;
+            this.etag = HTTPResponseCache.getHeader(headers, "ETag");
+            this.lastModified = HTTPResponseCache.getHeader(headers, "Last-Modified");
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * 判斷內容是否還在有效時間內。
+         *
+         * @return 傳回內容是否還在有效時間內
+         */
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * 將內容直接由檔案通道複製到目標檔案。
+         *
+         * @param targetFile 傳入目標檔案
+         * @throws IOException 拋出例外
+         */
+        void transferTo(final File targetFile) throws IOException {
+            try (FileOutputStream fos = new FileOutputStream(targetFile)) {
+                transfer(channel, bodyOffset, bodyLength, fos.getChannel());
+            }
+        }
+
+        /**
+         * 將內容映射到記憶體。
+         *
+         * @return 傳回唯讀的ByteBuffer
+         * @throws IOException 拋出例外
+         */
+        ByteBuffer map() throws IOException {
+            // 關閉檔案通道之後，映射的內容仍然可以使用
+            return channel.map(FileChannel.MapMode.READ_ONLY, bodyOffset, bodyLength).asReadOnlyBuffer();
+        }
+
+        /**
+         * 關閉內容檔案。
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (final IOException ex) {
+                // 不影響結果
+            }
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 將來源通道的內容複製到目標通道。
+     *
+     * @param source 傳入來源通道
+     * @param position 傳入來源的開始位置
+     * @param length 傳入要複製的長度
+     * @param target 傳入目標通道
+     * @throws IOException 拋出例外
+     */
+    private static void transfer(final FileChannel source, final long position, final long length, final FileChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            final long n = source.transferTo(position + transferred, length - transferred, target);
+            if (n <= 0) {
+                throw new IOException("The source file is shorter than expected.");
+            }
+            transferred += n;
+        }
+    }
+
+    /**
+     * 計算鍵值的128位元雜湊值。
+     *
+     * @param key 傳入快取的鍵值
+     * @return 傳回雜湊值的高位和低位
+     */
+    private static long[] hash(final String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(digest);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    /**
+     * 取得大於或等於傳入數值的2的次方。
+     *
+     * @param n 傳入數值
+     * @return 傳回2的次方
+     */
+    private static int powerOfTwo(final int n) {
+        int capacity = 16;
+        while (capacity < n && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // -----物件常數-----
+    /**
+     * 快取所在的目錄。
+     */
+    private final File directory;
+    /**
+     * 快取的大小上限。
+     */
+    private final long maxSize;
+    /**
+     * 要加入快取鍵值的標頭名稱。
+     */
+    private final String[] keyHeaders;
+    /**
+     * 映射到記憶體的索引。
+     */
+    private final MappedByteBuffer index;
+    /**
+     * 索引的容量。
+     */
+    private final int capacity;
+    /**
+     * 使用中的內容，依照最後使用的順序排列，最久沒被使用的在最前面，淘汰時不必掃描整個索引。
+     */
+    private final LinkedHashMap<Key, Key> lru = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 命中次數。
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * 未命中次數。
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * 重新驗證的次數。
+     */
+    private final AtomicLong revalidationCount = new AtomicLong();
+    /**
+     * 重新驗證後確認內容沒有改變(304)的次數。
+     */
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    /**
+     * 因為使用快取而不必下載的位元組數量。
+     */
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 快取目前的大小。
+     */
+    private long size = 0;
+    /**
+     * 快取目前的內容數量。
+     */
+    private int entryCount = 0;
+    /**
+     * 索引中被移除的欄位數量。
+     */
+    private int deletedCount = 0;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用預設的索引容量。
+     *
+     * @param directory 傳入快取所在的目錄
+     * @param maxSize 傳入快取的大小上限(位元組)
+     * @param keyHeaders 傳入要加入快取鍵值的標頭名稱，例如Authorization、Accept
+     */
+    public DiskResponseCache(final File directory, final long maxSize, final String... keyHeaders) {
+        this(directory, maxSize, DEFAULT_INDEX_CAPACITY, keyHeaders);
+    }
+
+    /**
+     * 建構子。如果目錄中已經有索引檔案，會繼續使用原本的索引和內容。
+     *
+     * @param directory 傳入快取所在的目錄
+     * @param maxSize 傳入快取的大小上限(位元組)
+     * @param indexCapacity 傳入索引的容量，最多能存放的內容數量為容量的四分之三。只有在建立新的索引檔案時才會使用
+     * @param keyHeaders 傳入要加入快取鍵值的標頭名稱，例如Authorization、Accept
+     */
+    public DiskResponseCache(final File directory, final long maxSize, final int indexCapacity, final String... keyHeaders) {
+        if (directory == null) {
+            throw new RuntimeException("A cache directory is needed.");
+        }
+        if (maxSize <= 0) {
+            throw new RuntimeException("Cache size needs to be more than 0.");
+        }
+        if (indexCapacity <= 0) {
+            throw new RuntimeException("Index capacity needs to be more than 0.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Cannot create the cache directory \"".concat(directory.getAbsolutePath()).concat("\"."));
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.keyHeaders = keyHeaders == null ? new String[0] : keyHeaders.clone();
+
+        final File indexFile = new File(directory, INDEX_FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            int indexSize = powerOfTwo(indexCapacity);
+            boolean valid = false;
+            if (raf.length() >= HEADER_SIZE) {
+                final int magic = raf.readInt();
+                final int version = raf.readInt();
+                final int storedCapacity = raf.readInt();
+                if (magic == MAGIC && version == VERSION && storedCapacity > 0 && (storedCapacity & (storedCapacity - 1)) == 0 && raf.length() == HEADER_SIZE + (long) storedCapacity * SLOT_SIZE) {
+                    indexSize = storedCapacity;
+                    valid = true;
+                }
+            }
+            if (!valid) {
+                raf.setLength(0);
+                raf.setLength(HEADER_SIZE + (long) indexSize * SLOT_SIZE);
+            }
+            capacity = indexSize;
+            index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            if (!valid) {
+                index.putInt(0, MAGIC);
+                index.putInt(4, VERSION);
+                index.putInt(8, capacity);
+                index.force();
+            }
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        recover();
+    }
+
+    // -----物件方法-----
+    /**
+     * 檢查索引和內容檔案是否一致，移除不完整的內容和沒有被索引的檔案。
+     */
+    private void recover() {
+        final HashSet<String> names = new HashSet<>();
+        final ArrayList<long[]> used = new ArrayList<>();
+        for (int slot = 0; slot < capacity; ++slot) {
+            final int offset = offset(slot);
+            final int state = index.getInt(offset + SLOT_STATE);
+            if (state == STATE_USED) {
+                final long hashHigh = index.getLong(offset + SLOT_HASH_HIGH);
+                final long hashLow = index.getLong(offset + SLOT_HASH_LOW);
+                final File file = contentFile(hashHigh, hashLow);
+                final long fileSize = index.getLong(offset + SLOT_SIZE_OFFSET);
+                if (file.isFile() && file.length() == fileSize) {
+                    names.add(file.getName());
+                    used.add(new long[]{index.getLong(offset + SLOT_ACCESS), hashHigh, hashLow});
+                    size += fileSize;
+                    ++entryCount;
+                } else {
+                    index.putInt(offset + SLOT_STATE, STATE_DELETED);
+                    ++deletedCount;
+                }
+            } else if (state == STATE_DELETED) {
+                ++deletedCount;
+            } else if (state != STATE_EMPTY) {
+                index.putInt(offset + SLOT_STATE, STATE_DELETED);
+                ++deletedCount;
+            }
+        }
+        // 依照索引中的最後使用時間重建使用的順序
+        Collections.sort(used, new Comparator<long[]>() {
+
+            @Override
+            public int compare(final long[] a, final long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        for (final long[] u : used) {
+            final Key key = new Key(u[1], u[2]);
+            lru.put(key, key);
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if ((name.endsWith(CONTENT_EXTENSION) && !names.contains(name)) || name.endsWith(TEMP_EXTENSION)) {
+                    file.delete();
+                }
+            }
+        }
+        if (deletedCount > 0 || size > maxSize) {
+            compact();
+        }
+        index.force();
+    }
+
+    /**
+     * 取得索引欄位在索引檔案中的位置。
+     *
+     * @param slot 傳入索引欄位
+     * @return 傳回位置
+     */
+    private int offset(final int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * 取得內容檔案。
+     *
+     * @param hashHigh 傳入雜湊值的高位
+     * @param hashLow 傳入雜湊值的低位
+     * @return 傳回內容檔案
+     */
+    private File contentFile(final long hashHigh, final long hashLow) {
+        return new File(directory, String.format("%016x%016x%s", hashHigh, hashLow, CONTENT_EXTENSION));
+    }
+
+    /**
+     * 尋找鍵值所在的索引欄位。
+     *
+     * @param hashHigh 傳入雜湊值的高位
+     * @param hashLow 傳入雜湊值的低位
+     * @return 傳回索引欄位，如果找不到，傳回-1
+     */
+    private int findSlot(final long hashHigh, final long hashLow) {
+        final int mask = capacity - 1;
+        int slot = (int) hashLow & mask;
+        for (int i = 0; i < capacity; ++i) {
+            final int offset = offset(slot);
+            final int state = index.getInt(offset + SLOT_STATE);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_USED && index.getLong(offset + SLOT_HASH_HIGH) == hashHigh && index.getLong(offset + SLOT_HASH_LOW) == hashLow) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 尋找可以存放鍵值的索引欄位。
+     *
+     * @param hashLow 傳入雜湊值的低位
+     * @return 傳回索引欄位
+     */
+    private int findFreeSlot(final long hashLow) {
+        final int mask = capacity - 1;
+        int slot = (int) hashLow & mask;
+        while (index.getInt(offset(slot) + SLOT_STATE) == STATE_USED) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 移除索引欄位和它的內容檔案。
+     *
+     * @param slot 傳入索引欄位
+     */
+    private void removeSlot(final int slot) {
+        final int offset = offset(slot);
+        final long hashHigh = index.getLong(offset + SLOT_HASH_HIGH);
+        final long hashLow = index.getLong(offset + SLOT_HASH_LOW);
+        index.putInt(offset + SLOT_STATE, STATE_DELETED);
+        size -= index.getLong(offset + SLOT_SIZE_OFFSET);
+        --entryCount;
+        ++deletedCount;
+        lru.remove(new Key(hashHigh, hashLow));
+        contentFile(hashHigh, hashLow).delete();
+    }
+
+    /**
+     * 淘汰最久沒被使用的內容。
+     *
+     * @param excluded 傳入不能被淘汰的內容，如果為null，表示沒有
+     * @return 傳回是否有內容被淘汰
+     */
+    private boolean evictLeastRecentlyUsed(final Key excluded) {
+        Key victim = null;
+        for (final Key key : lru.keySet()) {
+            if (!key.equals(excluded)) {
+                victim = key;
+                break;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        final int slot = findSlot(victim.high, victim.low);
+        if (slot < 0) {
+            lru.remove(victim);
+        } else {
+            removeSlot(slot);
+        }
+        return true;
+    }
+
+    /**
+     * 淘汰超過大小上限的內容，並重新排列索引，清除被移除的欄位。
+     */
+    private void compact() {
+        while (size > maxSize && evictLeastRecentlyUsed(null)) {
+        }
+        final byte[][] slots = new byte[entryCount][];
+        int n = 0;
+        for (int slot = 0; slot < capacity; ++slot) {
+            final int offset = offset(slot);
+            if (index.getInt(offset + SLOT_STATE) == STATE_USED) {
+                final byte[] data = new byte[SLOT_SIZE];
+                index.position(offset);
+                index.get(data);
+                slots[n++] = data;
+            }
+            index.putInt(offset + SLOT_STATE, STATE_EMPTY);
+        }
+        for (final byte[] data : slots) {
+            final int slot = findFreeSlot(ByteBuffer.wrap(data).getLong(SLOT_HASH_LOW));
+            index.position(offset(slot));
+            index.put(data);
+        }
+        index.position(0);
+        deletedCount = 0;
+    }
+
+    /**
+     * 取得要加入快取鍵值的標頭名稱。
+     *
+     * @return 傳回要加入快取鍵值的標頭名稱
+     */
+    String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    /**
+     * 取得快取的內容。內容檔案在索引的鎖中開啟，所以索引中的資料和開啟的檔案一定是一致的。
+     *
+     * @param key 傳入快取的鍵值
+     * @return 傳回快取的內容，用完之後需要關閉。如果不存在，傳回null
+     */
+    Entry get(final String key) {
+        final long[] hash = hash(key);
+        final long expiresAt;
+        RandomAccessFile raf = null;
+        try {
+            synchronized (this) {
+                final int slot = findSlot(hash[0], hash[1]);
+                if (slot < 0) {
+                    missCount.incrementAndGet();
+                    return null;
+                }
+                final int offset = offset(slot);
+                index.putLong(offset + SLOT_ACCESS, System.currentTimeMillis());
+                lru.get(new Key(hash[0], hash[1]));
+                expiresAt = index.getLong(offset + SLOT_EXPIRES);
+                raf = new RandomAccessFile(contentFile(hash[0], hash[1]), "r");
+            }
+            final int headerLength = raf.readInt();
+            final byte[] headerData = new byte[headerLength];
+            raf.readFully(headerData);
+            final long bodyOffset = 4 + headerLength;
+            return new Entry(hash[0], hash[1], raf.getChannel(), bodyOffset, raf.length() - bodyOffset, new JSONObject(new String(headerData, UTF_8)), expiresAt);
+        } catch (final Exception ex) {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (final IOException ex2) {
+                    // 不影響結果
+                }
+            }
+            // 內容檔案已損毀或被刪除
+            synchronized (this) {
+                final int slot = findSlot(hash[0], hash[1]);
+                if (slot >= 0) {
+                    removeSlot(slot);
+                }
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 紀錄一次命中。
+     *
+     * @param entry 傳入命中的快取內容
+     */
+    void recordHit(final Entry entry) {
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(entry.bodyLength);
+    }
+
+    /**
+     * 紀錄一次重新驗證。
+     */
+    void recordRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    /**
+     * 紀錄一次確認內容沒有改變，並更新有效期限。
+     *
+     * @param entry 傳入快取內容
+     * @param headers 傳入304回應的標頭
+     */
+    void recordNotModified(final Entry entry, final JSONObject headers) {
+        notModifiedCount.incrementAndGet();
+        savedBytes.addAndGet(entry.bodyLength);
+        final long expiresAt = HTTPResponseCache.computeExpiresAt(HTTPResponseCache.getHeader(headers, "Cache-Control") == null ? entry.headers : headers);
+        if (expiresAt >= 0) {
+            synchronized (this) {
+                final int slot = findSlot(entry.hashHigh, entry.hashLow);
+                if (slot >= 0) {
+                    index.putLong(offset(slot) + SLOT_EXPIRES, expiresAt);
+                }
+            }
+        }
+    }
+
+    /**
+     * 將回應存入快取。
+     *
+     * @param key 傳入快取的鍵值
+     * @param content 傳入回應的內容，可以是位元組陣列或是檔案
+     * @param headers 傳入回應的標頭
+     * @throws IOException 拋出例外
+     */
+    void put(final String key, final Object content, final JSONObject headers) throws IOException {
+        final long expiresAt = HTTPResponseCache.computeExpiresAt(headers);
+        final byte[] headerData = headers.toString().getBytes(UTF_8);
+        final long bodyLength = content instanceof byte[] ? ((byte[]) content).length : ((File) content).length();
+        final long fileSize = 4 + headerData.length + bodyLength;
+        final boolean revalidatable = HTTPResponseCache.getHeader(headers, "ETag") != null || HTTPResponseCache.getHeader(headers, "Last-Modified") != null;
+        if (expiresAt < 0 || fileSize > maxSize || (expiresAt <= System.currentTimeMillis() && !revalidatable)) {
+            remove(key);
+            return;
+        }
+
+        // 先寫到暫存檔案，並同步到磁碟
+        final File tempFile = File.createTempFile("entry", TEMP_EXTENSION, directory);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                final FileChannel channel = fos.getChannel();
+                final ByteBuffer head = ByteBuffer.allocate(4 + headerData.length);
+                head.putInt(headerData.length).put(headerData).flip();
+                while (head.hasRemaining()) {
+                    channel.write(head);
+                }
+                if (content instanceof byte[]) {
+                    final ByteBuffer body = ByteBuffer.wrap((byte[]) content);
+                    while (body.hasRemaining()) {
+                        channel.write(body);
+                    }
+                } else {
+                    try (FileInputStream fis = new FileInputStream((File) content)) {
+                        transfer(fis.getChannel(), 0, bodyLength, channel);
+                    }
+                }
+                channel.force(true);
+            }
+
+            final long[] hash = hash(key);
+            synchronized (this) {
+                final Key entryKey = new Key(hash[0], hash[1]);
+                int slot = findSlot(hash[0], hash[1]);
+                final long oldSize;
+                if (slot < 0) {
+                    while (entryCount >= capacity - (capacity >> 2) && evictLeastRecentlyUsed(null)) {
+                    }
+                    if (entryCount + deletedCount >= capacity - (capacity >> 2)) {
+                        compact();
+                    }
+                    slot = findFreeSlot(hash[1]);
+                    oldSize = 0;
+                } else {
+                    oldSize = index.getLong(offset(slot) + SLOT_SIZE_OFFSET);
+                }
+                while (size - oldSize + fileSize > maxSize && evictLeastRecentlyUsed(entryKey)) {
+                }
+
+                // 改名之後才更新索引，狀態最後寫入
+                Files.move(tempFile.toPath(), contentFile(hash[0], hash[1]).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final int offset = offset(slot);
+                final int state = index.getInt(offset + SLOT_STATE);
+                index.putLong(offset + SLOT_HASH_HIGH, hash[0]);
+                index.putLong(offset + SLOT_HASH_LOW, hash[1]);
+                index.putLong(offset + SLOT_SIZE_OFFSET, fileSize);
+                index.putLong(offset + SLOT_ACCESS, System.currentTimeMillis());
+                index.putLong(offset + SLOT_EXPIRES, expiresAt);
+                index.putInt(offset + SLOT_STATE, STATE_USED);
+                index.force();
+                if (state == STATE_DELETED) {
+                    --deletedCount;
+                }
+                if (state != STATE_USED) {
+                    ++entryCount;
+                }
+                lru.put(entryKey, entryKey);
+                size += fileSize - oldSize;
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * 從快取中移除內容。
+     *
+     * @param key 傳入快取的鍵值
+     */
+    synchronized void remove(final String key) {
+        final long[] hash = hash(key);
+        final int slot = findSlot(hash[0], hash[1]);
+        if (slot >= 0) {
+            removeSlot(slot);
+            index.force();
+        }
+    }
+
+    /**
+     * 清空快取，刪除所有內容檔案。
+     */
+    public synchronized void clear() {
+        for (int slot = 0; slot < capacity; ++slot) {
+            final int offset = offset(slot);
+            if (index.getInt(offset + SLOT_STATE) == STATE_USED) {
+                contentFile(index.getLong(offset + SLOT_HASH_HIGH), index.getLong(offset + SLOT_HASH_LOW)).delete();
+            }
+            index.putInt(offset + SLOT_STATE, STATE_EMPTY);
+        }
+        index.force();
+        lru.clear();
+        size = 0;
+        entryCount = 0;
+        deletedCount = 0;
+    }
+
+    /**
+     * 取得快取所在的目錄。
+     *
+     * @return 傳回快取所在的目錄
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 取得快取的大小上限。
+     *
+     * @return 傳回快取的大小上限
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 取得索引的容量。
+     *
+     * @return 傳回索引的容量
+     */
+    public int getIndexCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 取得快取目前的大小。
+     *
+     * @return 傳回快取目前的大小
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * 取得快取目前的內容數量。
+     *
+     * @return 傳回快取目前的內容數量
+     */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * 取得命中且不需要連線的次數。
+     *
+     * @return 傳回命中次數
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 取得未命中的次數。
+     *
+     * @return 傳回未命中次數
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 取得向伺服器重新驗證的次數。
+     *
+     * @return 傳回重新驗證的次數
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * 取得重新驗證後確認內容沒有改變(304)的次數。
+     *
+     * @return 傳回重新驗證後確認內容沒有改變的次數
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * 取得因為使用快取而不必下載的位元組數量。
+     *
+     * @return 傳回不必下載的位元組數量
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * 將統計數據歸零。
+     */
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        revalidationCount.set(0);
+        notModifiedCount.set(0);
+        savedBytes.set(0);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.UnknownHostException;
+
+/**
+ * 結構化的失敗原因，可以從MagicURLNetwork物件取得，也會交給錯誤接收者。
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#getFailureCause()
+ * @see MagicURLNetwork.ErrorSink
+ */
+public final class FailureCause {
+
+    // -----類別列舉-----
+    /**
+     * 失敗的種類。
+     */
+    public static enum Kind {
+
+        /**
+         * 建立連線、等待回應、傳輸停滯或是超過期限。
+         */
+        TIMEOUT,
+        /**
+         * 無法建立連線或是無法解析主機名稱。
+         */
+        CONNECT,
+        /**
+         * 收到不被接受的HTTP回應碼。
+         */
+        HTTP_STATUS,
+        /**
+         * 連線被斷開。
+         */
+        CANCELLED,
+        /**
+         * 超過並行數量限制、排程器的佇列已滿或是排隊時超過期限而被拒絕，沒有建立連線。
+         */
+        REJECTED,
+        /**
+         * 其它的輸入輸出錯誤。
+         */
+        IO,
+        /**
+         * 監聽者拋出例外。
+         */
+        LISTENER,
+        /**
+         * 無法寫入回應快取。
+         */
+        CACHE,
+        /**
+         * 其它錯誤。
+         */
+        OTHER
+    }
+
+    // -----類別方法-----
+    /**
+     * 依照例外判斷失敗的種類。
+     *
+     * @param ex 傳入例外
+     * @return 傳回失敗的種類
+     */
+    static Kind classify(final Throwable ex) {
+        if (ex instanceof ConnectException || ex instanceof NoRouteToHostException || ex instanceof PortUnreachableException || ex instanceof UnknownHostException) {
+            return Kind.CONNECT;
+        }
+        if (ex instanceof IOException) {
+            return Kind.IO;
+        }
+        return Kind.OTHER;
+    }
+
+    // -----物件常數-----
+    /**
+     * 失敗的種類。
+     */
+    private final Kind kind;
+    /**
+     * 失敗訊息。
+     */
+    private final String message;
+    /**
+     * URL。
+     */
+    private final String url;
+    /**
+     * 第幾次嘗試，如果為0，表示和嘗試無關。
+     */
+    private final int attempt;
+    /**
+     * HTTP回應碼，如果為-1，表示沒有收到。
+     */
+    private final int responseCode;
+    /**
+     * 造成失敗的例外，可能為null。
+     */
+    private final Throwable throwable;
+    /**
+     * 發生的時間(毫秒)。
+     */
+    private final long time;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param kind 傳入失敗的種類
+     * @param message 傳入失敗訊息
+     * @param url 傳入URL
+     * @param attempt 傳入第幾次嘗試
+     * @param responseCode 傳入HTTP回應碼
+     * @param throwable 傳入造成失敗的例外
+     */
+    FailureCause(final Kind kind, final String message, final String url, final int attempt, final int responseCode, final Throwable throwable) {
+        this.kind = kind;
+        this.message = message;
+        this.url = url;
+        this.attempt = attempt;
+        this.responseCode = responseCode;
+        this.throwable = throwable;
+        this.time = System.currentTimeMillis();
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得失敗的種類。
+     *
+     * @return 傳回失敗的種類
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * 取得失敗訊息。
+     *
+     * @return 傳回失敗訊息
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * 取得URL。
+     *
+     * @return 傳回URL
+     */
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * 取得第幾次嘗試。
+     *
+     * @return 傳回第幾次嘗試，如果為0，表示和嘗試無關
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * 取得HTTP回應碼。
+     *
+     * @return 傳回HTTP回應碼，如果為-1，表示沒有收到
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * 取得造成失敗的例外。
+     *
+     * @return 傳回造成失敗的例外，可能為null
+     */
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    /**
+     * 取得發生的時間。
+     *
+     * @return 傳回發生的時間(毫秒)
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(kind);
+        if (url != null) {
+            sb.append(' ').append(url);
+        }
+        if (attempt > 0) {
+            sb.append(" (attempt ").append(attempt).append(')');
+        }
+        if (responseCode >= 0) {
+            sb.append(" [").append(responseCode).append(']');
+        }
+        sb.append(": ").append(message);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * 送出JDK Flight Recorder(JFR)事件。
+ * </p>
+ *
+ * <p>
+ * 為了支援Java 7，JFR的API都是透過反射使用，在沒有jdk.jfr.EventFactory的JDK上(JDK 12之前的版本)，所有事件都不會有任何作用。有JFR時會監聽錄製的狀態，沒有正在錄製時，呼叫者只需要讀取一個volatile變數，不會建立事件物件。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork
+ */
+final class FlightRecorderEvents {
+
+    // -----類別常數-----
+    /**
+     * 事件：開啟URL，包含所有嘗試。
+     */
+    static final int REQUEST = 0;
+    /**
+     * 事件：建立連線，HTTPS包含TLS交握。
+     */
+    static final int CONNECT = 1;
+    /**
+     * 事件：TLS交握。
+     */
+    static final int TLS_HANDSHAKE = 2;
+    /**
+     * 事件：傳送需求內容。
+     */
+    static final int SEND = 3;
+    /**
+     * 事件：接收回應內容。
+     */
+    static final int RECEIVE = 4;
+    /**
+     * 事件：逾時。
+     */
+    static final int TIMEOUT = 5;
+    /**
+     * 事件：重試。
+     */
+    static final int RETRY = 6;
+    /**
+     * 事件：回應緩衝空間變大或改存到暫存檔案。
+     */
+    static final int BUFFER_GROWTH = 7;
+    /**
+     * 事件的名稱、標籤和欄位(型態與名稱)。
+     */
+    private static final Object[][] DEFINITIONS = {
+        {"Request", "HTTP Request", String.class, "host", String.class, "method", String.class, "url", int.class, "statusCode", long.class, "bytesSent", long.class, "bytesReceived", int.class, "attempts", String.class, "failure"},
+        {"Connect", "HTTP Connect", String.class, "host", int.class, "port", boolean.class, "secure"},
+        {"TLSHandshake", "TLS Handshake", String.class, "host", int.class, "port", String.class, "protocol", String.class, "cipherSuite"},
+        {"Send", "HTTP Send", String.class, "host", String.class, "method", long.class, "bytes"},
+        {"Receive", "HTTP Receive", String.class, "host", String.class, "method", int.class, "statusCode", long.class, "bytes"},
+        {"Timeout", "HTTP Timeout", String.class, "host", String.class, "method", String.class, "reason"},
+        {"Retry", "HTTP Retry", String.class, "host", String.class, "method", int.class, "attempt", long.class, "delay", String.class, "failure"},
+        {"BufferGrowth", "Response Buffer Growth", long.class, "size", boolean.class, "spilled"}
+    };
+    /**
+     * 各種事件的工廠物件(jdk.jfr.EventFactory)，如果為null，表示無法使用JFR。
+     */
+    private static final Object[] FACTORIES;
+    /**
+     * jdk.jfr.EventFactory.newEvent()。
+     */
+    private static final Method NEW_EVENT;
+    /**
+     * jdk.jfr.Event.begin()。
+     */
+    private static final Method BEGIN;
+    /**
+     * jdk.jfr.Event.end()。
+     */
+    private static final Method END;
+    /**
+     * jdk.jfr.Event.commit()。
+     */
+    private static final Method COMMIT;
+    /**
+     * jdk.jfr.Event.set(int, Object)。
+     */
+    private static final Method SET;
+
+    // -----類別變數-----
+    /**
+     * 是否有正在錄製的JFR。
+     */
+    private static volatile boolean recording = false;
+    /**
+     * 最近一次包裝的SSLSocketFactory，重複使用同一個物件才能讓HTTPS連線回到連線池中。
+     */
+    private static volatile TimedSSLSocketFactory timedFactory = null;
+
+    static {
+        Object[] factories = null;
+        Method newEvent = null;
+        Method begin = null;
+        Method end = null;
+        Method commit = null;
+        Method set = null;
+        try {
+            final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            final Constructor<?> annotationElementConstructor = annotationElementClass.getConstructor(Class.class, Object.class);
+            final Constructor<?> valueDescriptorConstructor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            final Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+            final Class<?> nameClass = Class.forName("jdk.jfr.Name");
+            final Class<?> labelClass = Class.forName("jdk.jfr.Label");
+            final Class<?> categoryClass = Class.forName("jdk.jfr.Category");
+
+            factories = new Object[DEFINITIONS.length];
+            for (int i = 0; i < DEFINITIONS.length; ++i) {
+                final Object[] definition = DEFINITIONS[i];
+                final List<Object> annotations = new ArrayList<>();
+                annotations.add(annotationElementConstructor.newInstance(nameClass, "org.magiclen.magicurlnetwork.".concat((String) definition[0])));
+                annotations.add(annotationElementConstructor.newInstance(labelClass, definition[1]));
+                annotations.add(annotationElementConstructor.newInstance(categoryClass, new String[]{"MagicURLNetwork"}));
+                final List<Object> fields = new ArrayList<>();
+                for (int j = 2; j < definition.length; j += 2) {
+                    fields.add(valueDescriptorConstructor.newInstance(definition[j], definition[j + 1]));
+                }
+                factories[i] = create.invoke(null, annotations, fields);
+            }
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+
+            // 監聽錄製狀態的改變
+            final Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            final Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            final Object listener = Proxy.newProxyInstance(FlightRecorderEvents.class.getClassLoader(), new Class<?>[]{listenerClass}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "MagicURLNetwork FlightRecorderListener";
+                        }
+                    }
+                    updateRecording();
+                    return null;
+                }
+            });
+            flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+            if ((Boolean) flightRecorderClass.getMethod("isInitialized").invoke(null)) {
+                updateRecording();
+            }
+        } catch (final Throwable ex) {
+            // 沒有JFR
+            factories = null;
+        }
+        FACTORIES = factories;
+        NEW_EVENT = newEvent;
+        BEGIN = begin;
+        END = end;
+        COMMIT = commit;
+        SET = set;
+    }
+
+    // -----類別類別-----
+    /**
+     * 在TLS交握完成時送出事件的SSLSocketFactory。
+     */
+    private static final class TimedSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory factory;
+
+        TimedSSLSocketFactory(final SSLSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        private Socket watch(final Socket socket, final String host, final int port) {
+            if (socket instanceof SSLSocket) {
+                final Object event = begin(TLS_HANDSHAKE);
+                if (event != null) {
+                    ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+                        @Override
+                        public void handshakeCompleted(final HandshakeCompletedEvent hce) {
+                            ((SSLSocket) socket).removeHandshakeCompletedListener(this);
+                            commit(event, host, port, hce.getSession().getProtocol(), hce.getCipherSuite());
+                        }
+                    });
+                }
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(final Socket s, final String host, final int port, final boolean autoClose) throws IOException {
+            return watch(factory.createSocket(s, host, port, autoClose), host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return watch(factory.createSocket(host, port), host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+            return watch(factory.createSocket(host, port, localHost, localPort), host, port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return watch(factory.createSocket(host, port), host.getHostName(), port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return watch(factory.createSocket(address, port, localAddress, localPort), address.getHostName(), port);
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 重新檢查是否有正在錄製的JFR。
+     */
+    private static void updateRecording() {
+        boolean running = false;
+        try {
+            final Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            final Object recorder = flightRecorderClass.getMethod("getFlightRecorder").invoke(null);
+            final List<?> recordings = (List<?>) flightRecorderClass.getMethod("getRecordings").invoke(recorder);
+            for (final Object recording : recordings) {
+                if ("RUNNING".equals(String.valueOf(recording.getClass().getMethod("getState").invoke(recording)))) {
+                    running = true;
+                    break;
+                }
+            }
+        } catch (final Throwable ex) {
+            running = false;
+        }
+        recording = running;
+    }
+
+    /**
+     * 取得是否有正在錄製的JFR。呼叫者應該先用這個方法判斷，再準備事件的欄位值。
+     *
+     * @return 傳回是否有正在錄製的JFR
+     */
+    static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * 開始一個有持續時間的事件。
+     *
+     * @param type 傳入事件的種類
+     * @return 傳回事件物件，如果沒有正在錄製的JFR，傳回null
+     */
+    static Object begin(final int type) {
+        if (!recording) {
+            return null;
+        }
+        try {
+            final Object event = NEW_EVENT.invoke(FACTORIES[type]);
+            BEGIN.invoke(event);
+            return event;
+        } catch (final Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 結束並送出事件。
+     *
+     * @param event 傳入事件物件，如果為null，則不做任何事
+     * @param values 傳入事件的欄位值，順序和定義的欄位相同
+     */
+    static void commit(final Object event, final Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < values.length; ++i) {
+                SET.invoke(event, i, values[i]);
+            }
+            END.invoke(event);
+            COMMIT.invoke(event);
+        } catch (final Exception ex) {
+            // 不影響需求
+        }
+    }
+
+    /**
+     * 送出沒有持續時間的事件。
+     *
+     * @param type 傳入事件的種類
+     * @param values 傳入事件的欄位值，順序和定義的欄位相同
+     */
+    static void emit(final int type, final Object... values) {
+        commit(begin(type), values);
+    }
+
+    /**
+     * 如果有正在錄製的JFR，包裝SSLSocketFactory來送出TLS交握的事件。
+     *
+     * @param factory 傳入SSLSocketFactory
+     * @return 傳回SSLSocketFactory
+     */
+    static SSLSocketFactory wrap(final SSLSocketFactory factory) {
+        if (!recording) {
+            return factory;
+        }
+        TimedSSLSocketFactory timed = timedFactory;
+        if (timed == null || timed.factory != factory) {
+            timed = new TimedSSLSocketFactory(factory);
+            timedFactory = timed;
+        }
+        return timed;
+    }
+
+    // -----建構子-----
+    /**
+     * 私有建構子，讓這個類別無法被實體化。
+     */
+    private FlightRecorderEvents() {
+
+    }
+}
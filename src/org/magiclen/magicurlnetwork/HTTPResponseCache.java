@@ -0,0 +1,406 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.magiclen.json.JSONArray;
+import org.magiclen.json.JSONObject;
+
+/**
+ * <p>
+ * 存在記憶體中的HTTP回應快取，可以被多個MagicGET物件共用。
+ * </p>
+ *
+ * <p>
+ * 快取的鍵值由需求方法、包含參數的URL，以及建構時指定的標頭組成。快取會依照回應的Cache-Control(max-age、no-cache、no-store)決定內容的有效時間；過期的內容如果有ETag或Last-Modified，會用If-None-Match或If-Modified-Since向伺服器重新驗證，收到304時直接使用快取的內容。快取的總大小有上限，超過時會淘汰最久沒被使用的內容。
+ * </p>
+ *
+ * <p>
+ * 存入快取和快取命中時都會複製內容和標頭，呼叫者修改getResult和getResultHeader方法傳回的物件不會影響快取。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicGET
+ */
+public class HTTPResponseCache {
+
+    // -----類別類別-----
+    /**
+     * 快取的內容。
+     */
+    static final class Entry {
+
+        final byte[] body;
+        final JSONObject headers;
+        final String etag;
+        final String lastModified;
+        volatile long expiresAt;
+
+        Entry(final byte[] body, final JSONObject headers, final String etag, final String lastModified, final long expiresAt) {
+            this.body = body;
+            this.headers = headers;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * 判斷內容是否還在有效時間內。
+         *
+         * @return 傳回內容是否還在有效時間內
+         */
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * 取得內容的副本，避免呼叫者修改到快取的內容。
+         *
+         * @return 傳回內容的副本
+         */
+        byte[] copyBody() {
+            return body.clone();
+        }
+
+        /**
+         * 取得標頭的副本，避免呼叫者修改到快取的內容。
+         *
+         * @return 傳回標頭的副本
+         */
+        JSONObject copyHeaders() {
+            return new JSONObject(headers.toString());
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 取得標頭中第一個值。
+     *
+     * @param headers 傳入標頭
+     * @param name 傳入標頭名稱，不分大小寫
+     * @return 傳回標頭中第一個值，如果沒有這個標頭，傳回null
+     */
+    static String getHeader(final JSONObject headers, final String name) {
+        for (final String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                final JSONArray array = headers.optJSONArray(key);
+                if (array != null && array.length() > 0) {
+                    return array.optString(0, null);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 依照Cache-Control計算內容的有效期限。
+     *
+     * @param headers 傳入回應的標頭
+     * @return 傳回有效期限(毫秒時間戳)，如果為-1，表示不能被儲存
+     */
+    static long computeExpiresAt(final JSONObject headers) {
+        long maxAge = 0;
+        boolean noCache = false;
+        final String cacheControl = getHeader(headers, "Cache-Control");
+        if (cacheControl != null) {
+            // 不管順序，no-store都優先於其它指令，no-cache優先於max-age
+            for (final String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+                final String d = directive.trim();
+                if (d.equals("no-store")) {
+                    return -1;
+                } else if (d.equals("no-cache")) {
+                    noCache = true;
+                } else if (d.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(d.substring(8).trim());
+                    } catch (final Exception ex) {
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+        if (noCache) {
+            maxAge = 0;
+        }
+        return System.currentTimeMillis() + Math.max(0, maxAge) * 1000;
+    }
+
+    // -----物件常數-----
+    /**
+     * 快取內容，使用LRU的順序。
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * 快取的大小上限。
+     */
+    private final long maxSize;
+    /**
+     * 要加入快取鍵值的標頭名稱。
+     */
+    private final String[] keyHeaders;
+    /**
+     * 命中次數。
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * 未命中次數。
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * 重新驗證的次數。
+     */
+    private final AtomicLong revalidationCount = new AtomicLong();
+    /**
+     * 重新驗證後確認內容沒有改變(304)的次數。
+     */
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    /**
+     * 因為使用快取而不必下載的位元組數量。
+     */
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 快取目前的大小。
+     */
+    private long size = 0;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param maxSize 傳入快取的大小上限(位元組)
+     * @param keyHeaders 傳入要加入快取鍵值的標頭名稱，例如Authorization、Accept
+     */
+    public HTTPResponseCache(final long maxSize, final String... keyHeaders) {
+        if (maxSize <= 0) {
+            throw new RuntimeException("Cache size needs to be more than 0.");
+        }
+        this.maxSize = maxSize;
+        this.keyHeaders = keyHeaders == null ? new String[0] : keyHeaders.clone();
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得要加入快取鍵值的標頭名稱。
+     *
+     * @return 傳回要加入快取鍵值的標頭名稱
+     */
+    String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    /**
+     * 取得快取的內容。
+     *
+     * @param key 傳入快取的鍵值
+     * @return 傳回快取的內容，如果不存在，傳回null
+     */
+    Entry get(final String key) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * 紀錄一次命中。
+     *
+     * @param entry 傳入命中的快取內容
+     */
+    void recordHit(final Entry entry) {
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(entry.body.length);
+    }
+
+    /**
+     * 紀錄一次重新驗證。
+     */
+    void recordRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    /**
+     * 紀錄一次確認內容沒有改變，並更新有效期限。
+     *
+     * @param entry 傳入快取內容
+     * @param headers 傳入304回應的標頭
+     */
+    void recordNotModified(final Entry entry, final JSONObject headers) {
+        notModifiedCount.incrementAndGet();
+        savedBytes.addAndGet(entry.body.length);
+        final long expiresAt = computeExpiresAt(getHeader(headers, "Cache-Control") == null ? entry.headers : headers);
+        if (expiresAt >= 0) {
+            entry.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 將回應存入快取。會儲存內容和標頭的副本，因為傳入的物件也會被交給呼叫者。
+     *
+     * @param key 傳入快取的鍵值
+     * @param body 傳入回應的內容
+     * @param headers 傳入回應的標頭
+     */
+    void put(final String key, final byte[] body, final JSONObject headers) {
+        final long expiresAt = computeExpiresAt(headers);
+        if (expiresAt < 0 || body.length > maxSize) {
+            remove(key);
+            return;
+        }
+        final String etag = getHeader(headers, "ETag");
+        final String lastModified = getHeader(headers, "Last-Modified");
+        if (expiresAt <= System.currentTimeMillis() && etag == null && lastModified == null) {
+            // 沒有有效時間，也無法重新驗證，存了也沒用
+            remove(key);
+            return;
+        }
+        final Entry entry = new Entry(body.clone(), new JSONObject(headers.toString()), etag, lastModified, expiresAt);
+        synchronized (entries) {
+            final Entry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.body.length;
+            }
+            size += body.length;
+            final Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().body.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 從快取中移除內容。
+     *
+     * @param key 傳入快取的鍵值
+     */
+    void remove(final String key) {
+        synchronized (entries) {
+            final Entry old = entries.remove(key);
+            if (old != null) {
+                size -= old.body.length;
+            }
+        }
+    }
+
+    /**
+     * 清空快取。
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * 取得快取的大小上限。
+     *
+     * @return 傳回快取的大小上限
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 取得快取目前的大小。
+     *
+     * @return 傳回快取目前的大小
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * 取得快取目前的內容數量。
+     *
+     * @return 傳回快取目前的內容數量
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * 取得命中且不需要連線的次數。
+     *
+     * @return 傳回命中次數
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 取得未命中的次數。
+     *
+     * @return 傳回未命中次數
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 取得向伺服器重新驗證的次數。
+     *
+     * @return 傳回重新驗證的次數
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * 取得重新驗證後確認內容沒有改變(304)的次數。
+     *
+     * @return 傳回重新驗證後確認內容沒有改變的次數
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * 取得因為使用快取而不必下載的位元組數量。
+     *
+     * @return 傳回不必下載的位元組數量
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * 將統計數據歸零。
+     */
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        revalidationCount.set(0);
+        notModifiedCount.set(0);
+        savedBytes.set(0);
+    }
+}
@@ -0,0 +1,611 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * HTTPS連線的主機名稱解析快取，可以被所有MagicURLNetwork物件共用，不受JVM本身的快取策略影響。
+ * </p>
+ *
+ * <p>
+ * 解析成功的結果和解析失敗的結果分別有各自的存活時間。常用的主機名稱在存活時間快要結束時，會在背景重新解析，需求不必等待解析；背景解析失敗時，會繼續使用原本的結果直到過期。同一個主機名稱同時只會有一個解析在進行，其它的執行緒會等待它的結果。解析時間會被記錄在直方圖中，可以透過方法或是JMX的MBean讀取。
+ * </p>
+ *
+ * <p>
+ * 實際的解析由lookup方法進行，預設使用InetAddress，可以覆寫成其它的解析方式。
+ * </p>
+ *
+ * <p>
+ * 只有HTTPS連線會使用這個快取，一般的HTTP連線完全由JVM解析主機名稱。每次嘗試建立HTTPS連線只會查詢一次這個快取，結果會直接交給連線使用。HttpsURLConnection在連線之前還是會透過JVM解析一次主機名稱，這個快取決定的是要連線的IP位址和解析失敗時是否直接失敗，無法讓JVM的解析離開連線的路徑；要讓所有連線都使用同一個解析方式，必須替換JVM本身的解析器，這個類別不會這麼做。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setHTTPSDNSCache(HTTPSDNSCache)
+ */
+public class HTTPSDNSCache implements HTTPSDNSCacheMBean {
+
+    // -----類別常數-----
+    /**
+     * 預設解析成功的結果的存活時間(毫秒)。
+     */
+    public static final long DEFAULT_POSITIVE_TTL = 60000;
+    /**
+     * 預設解析失敗的結果的存活時間(毫秒)。
+     */
+    public static final long DEFAULT_NEGATIVE_TTL = 10000;
+    /**
+     * 預設剩下多少比例的存活時間時開始在背景重新解析。
+     */
+    public static final double DEFAULT_REFRESH_RATIO = 0.25;
+    /**
+     * 預設在背景重新解析所需的最少使用次數。
+     */
+    public static final int DEFAULT_REFRESH_MIN_HITS = 2;
+    /**
+     * 預設快取的主機名稱數量上限。
+     */
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    // -----類別類別-----
+    /**
+     * 快取中的一個主機名稱。
+     */
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final String failure;
+        final long resolvedTime;
+        final long expireTime;
+        final long refreshTime;
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(final InetAddress[] addresses, final String failure, final long resolvedTime, final long expireTime, final long refreshTime) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.resolvedTime = resolvedTime;
+            this.expireTime = expireTime;
+            this.refreshTime = refreshTime;
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 判斷主機名稱是否為IP位址。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機名稱是否為IP位址
+     */
+    private static boolean isAddressLiteral(final String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        final int length = host.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    // -----物件常數-----
+    /**
+     * 快取的內容。
+     */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * 正在進行的解析。
+     */
+    private final ConcurrentHashMap<String, FutureTask<Entry>> lookups = new ConcurrentHashMap<>();
+    /**
+     * 在背景重新解析的執行緒池。
+     */
+    private final ThreadPoolExecutor refresher;
+    /**
+     * 解析時間(微秒)。
+     */
+    private final LatencyHistogram lookupTimes = new LatencyHistogram();
+    /**
+     * 直接使用快取的次數。
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    /**
+     * 需要解析的次數。
+     */
+    private final AtomicLong missCount = new AtomicLong();
+    /**
+     * 使用失敗的快取的次數。
+     */
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    /**
+     * 在背景重新解析的次數。
+     */
+    private final AtomicLong refreshCount = new AtomicLong();
+    /**
+     * 解析失敗的次數。
+     */
+    private final AtomicLong failureCount = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 解析成功的結果的存活時間(毫秒)。
+     */
+    private volatile long positiveTTL = DEFAULT_POSITIVE_TTL;
+    /**
+     * 解析失敗的結果的存活時間(毫秒)。
+     */
+    private volatile long negativeTTL = DEFAULT_NEGATIVE_TTL;
+    /**
+     * 剩下多少比例的存活時間時開始在背景重新解析。
+     */
+    private volatile double refreshRatio = DEFAULT_REFRESH_RATIO;
+    /**
+     * 在背景重新解析所需的最少使用次數，0表示不在背景重新解析。
+     */
+    private volatile int refreshMinHits = DEFAULT_REFRESH_MIN_HITS;
+    /**
+     * 快取的主機名稱數量上限。
+     */
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+    /**
+     * 註冊的MBean名稱，如果為null，表示沒有註冊。
+     */
+    private ObjectName jmxName = null;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     */
+    public HTTPSDNSCache() {
+        refresher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "MagicURLNetwork-DNSRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.allowCoreThreadTimeOut(true);
+    }
+
+    // -----物件方法-----
+    /**
+     * 解析主機名稱，這個方法可以被覆寫成其它的解析方式。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機名稱的所有IP位址
+     * @throws UnknownHostException 無法解析時拋出例外
+     */
+    protected InetAddress[] lookup(final String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    /**
+     * 取得主機名稱的所有IP位址，優先使用快取。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機名稱的所有IP位址
+     * @throws UnknownHostException 無法解析或是快取中為解析失敗時拋出例外
+     */
+    public InetAddress[] resolve(final String host) throws UnknownHostException {
+        if (host == null || isAddressLiteral(host)) {
+            return InetAddress.getAllByName(host);
+        }
+        final String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        final long now = System.nanoTime();
+        if (entry != null && entry.expireTime - now > 0) {
+            hitCount.incrementAndGet();
+            if (entry.addresses == null) {
+                negativeHitCount.incrementAndGet();
+                throw new UnknownHostException(entry.failure);
+            }
+            final int minHits = refreshMinHits;
+            if (entry.hits.incrementAndGet() >= minHits && minHits > 0 && entry.refreshTime - now <= 0) {
+                refresh(key, entry);
+            }
+            return entry.addresses.clone();
+        }
+        missCount.incrementAndGet();
+        entry = load(key);
+        if (entry.addresses == null) {
+            throw new UnknownHostException(entry.failure);
+        }
+        return entry.addresses.clone();
+    }
+
+    /**
+     * 解析主機名稱並存入快取。同一個主機名稱同時只會有一個解析在進行。
+     *
+     * @param key 傳入主機名稱
+     * @return 傳回快取的內容
+     */
+    private Entry load(final String key) {
+        final FutureTask<Entry> newTask = new FutureTask<>(new Callable<Entry>() {
+
+            @Override
+            public Entry call() {
+                final Entry entry = resolveEntry(key, null);
+                store(key, entry);
+                return entry;
+            }
+        });
+        FutureTask<Entry> task = lookups.putIfAbsent(key, newTask);
+        if (task == null) {
+            task = newTask;
+            try {
+                task.run();
+            } finally {
+                lookups.remove(key, task);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 在背景重新解析主機名稱，失敗時繼續使用原本的結果。
+     *
+     * @param key 傳入主機名稱
+     * @param entry 傳入目前的快取內容
+     */
+    private void refresh(final String key, final Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    refreshCount.incrementAndGet();
+                    final Entry newEntry = resolveEntry(key, entry);
+                    if (newEntry != entry) {
+                        store(key, newEntry);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * 解析主機名稱，並建立快取的內容。
+     *
+     * @param key 傳入主機名稱
+     * @param previous 傳入原本的快取內容，如果不為null，解析失敗時傳回原本的快取內容
+     * @return 傳回快取的內容
+     */
+    private Entry resolveEntry(final String key, final Entry previous) {
+        final long start = System.nanoTime();
+        InetAddress[] addresses = null;
+        String failure = null;
+        try {
+            addresses = lookup(key);
+            if (addresses == null || addresses.length == 0) {
+                addresses = null;
+                failure = key;
+            }
+        } catch (final UnknownHostException ex) {
+            failure = ex.getMessage() != null ? ex.getMessage() : key;
+        }
+        final long now = System.nanoTime();
+        lookupTimes.record((now - start) / 1000);
+        if (addresses == null) {
+            failureCount.incrementAndGet();
+            if (previous != null) {
+                return previous;
+            }
+            final long ttl = negativeTTL * 1000000L;
+            return new Entry(null, failure, now, now + ttl, now + ttl);
+        }
+        final long ttl = positiveTTL * 1000000L;
+        return new Entry(addresses, null, now, now + ttl, now + ttl - (long) (ttl * refreshRatio));
+    }
+
+    /**
+     * 將快取的內容存入快取，超過數量上限時移除已過期或是最早過期的內容。
+     *
+     * @param key 傳入主機名稱
+     * @param entry 傳入快取的內容
+     */
+    private void store(final String key, final Entry entry) {
+        entries.put(key, entry);
+        if (entries.size() <= maxSize) {
+            return;
+        }
+        final long now = System.nanoTime();
+        String earliestKey = null;
+        long earliestTime = 0;
+        final Iterator<java.util.Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final java.util.Map.Entry<String, Entry> e = it.next();
+            final long expireTime = e.getValue().expireTime;
+            if (expireTime - now <= 0) {
+                it.remove();
+            } else if (earliestKey == null || expireTime - earliestTime < 0) {
+                earliestKey = e.getKey();
+                earliestTime = expireTime;
+            }
+        }
+        if (entries.size() > maxSize && earliestKey != null) {
+            entries.remove(earliestKey);
+        }
+    }
+
+    /**
+     * 從快取中移除某個主機名稱。
+     *
+     * @param host 傳入主機名稱
+     */
+    public void remove(final String host) {
+        entries.remove(host.toLowerCase());
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 取得解析成功的結果的存活時間。
+     *
+     * @return 傳回解析成功的結果的存活時間(毫秒)
+     */
+    public long getPositiveTTL() {
+        return positiveTTL;
+    }
+
+    /**
+     * 設定解析成功的結果的存活時間，會影響之後解析的結果。
+     *
+     * @param positiveTTL 傳入解析成功的結果的存活時間(毫秒)
+     */
+    public void setPositiveTTL(final long positiveTTL) {
+        if (positiveTTL < 0) {
+            throw new RuntimeException("The positive TTL needs to be at least 0.");
+        }
+        this.positiveTTL = positiveTTL;
+    }
+
+    /**
+     * 取得解析失敗的結果的存活時間。
+     *
+     * @return 傳回解析失敗的結果的存活時間(毫秒)
+     */
+    public long getNegativeTTL() {
+        return negativeTTL;
+    }
+
+    /**
+     * 設定解析失敗的結果的存活時間，會影響之後解析的結果。
+     *
+     * @param negativeTTL 傳入解析失敗的結果的存活時間(毫秒)，0表示不快取失敗的結果
+     */
+    public void setNegativeTTL(final long negativeTTL) {
+        if (negativeTTL < 0) {
+            throw new RuntimeException("The negative TTL needs to be at least 0.");
+        }
+        this.negativeTTL = negativeTTL;
+    }
+
+    /**
+     * 取得剩下多少比例的存活時間時開始在背景重新解析。
+     *
+     * @return 傳回剩下多少比例的存活時間時開始在背景重新解析
+     */
+    public double getRefreshRatio() {
+        return refreshRatio;
+    }
+
+    /**
+     * 設定剩下多少比例的存活時間時開始在背景重新解析，會影響之後解析的結果。
+     *
+     * @param refreshRatio 傳入剩下多少比例的存活時間時開始在背景重新解析，範圍是0到1
+     */
+    public void setRefreshRatio(final double refreshRatio) {
+        if (refreshRatio < 0 || refreshRatio > 1) {
+            throw new RuntimeException("The refresh ratio needs to be between 0 and 1.");
+        }
+        this.refreshRatio = refreshRatio;
+    }
+
+    /**
+     * 取得在背景重新解析所需的最少使用次數。
+     *
+     * @return 傳回在背景重新解析所需的最少使用次數，0表示不在背景重新解析
+     */
+    public int getRefreshMinHits() {
+        return refreshMinHits;
+    }
+
+    /**
+     * 設定在背景重新解析所需的最少使用次數，只有在這次解析之後被使用超過這個次數的主機名稱才會在背景重新解析。
+     *
+     * @param refreshMinHits 傳入在背景重新解析所需的最少使用次數，0表示不在背景重新解析
+     */
+    public void setRefreshMinHits(final int refreshMinHits) {
+        if (refreshMinHits < 0) {
+            throw new RuntimeException("The refresh min hits needs to be at least 0.");
+        }
+        this.refreshMinHits = refreshMinHits;
+    }
+
+    /**
+     * 取得快取的主機名稱數量上限。
+     *
+     * @return 傳回快取的主機名稱數量上限
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 設定快取的主機名稱數量上限。
+     *
+     * @param maxSize 傳入快取的主機名稱數量上限
+     */
+    public void setMaxSize(final int maxSize) {
+        if (maxSize < 1) {
+            throw new RuntimeException("The max size needs to be at least 1.");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * 建立解析時間的快照。
+     *
+     * @return 傳回解析時間(微秒)的快照
+     */
+    public LatencyHistogram.Snapshot getLookupSnapshot() {
+        return lookupTimes.snapshot();
+    }
+
+    @Override
+    public double getMeanLookupTime() {
+        return lookupTimes.getMean() / 1000;
+    }
+
+    @Override
+    public double getP99LookupTime() {
+        return lookupTimes.snapshot().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxLookupTime() {
+        return lookupTimes.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        hitCount.set(0);
+        missCount.set(0);
+        negativeHitCount.set(0);
+        refreshCount.set(0);
+        failureCount.set(0);
+        lookupTimes.reset();
+    }
+
+    /**
+     * 將解析快取註冊到平台的MBean伺服器。
+     *
+     * @param domain 傳入MBean的網域，例如org.magiclen.magicurlnetwork
+     * @param name 傳入解析快取的名稱
+     */
+    public synchronized void registerMBean(final String domain, final String name) {
+        if (domain == null || domain.isEmpty()) {
+            throw new RuntimeException("The JMX domain is empty.");
+        }
+        if (jmxName != null) {
+            throw new RuntimeException("The MBean has been registered.");
+        }
+        try {
+            final ObjectName objectName = new ObjectName(domain.concat(":type=dns,name=").concat(ObjectName.quote(name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            jmxName = objectName;
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * 從平台的MBean伺服器移除解析快取。
+     */
+    public synchronized void unregisterMBean() {
+        final ObjectName objectName = jmxName;
+        if (objectName == null) {
+            return;
+        }
+        jmxName = null;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (final Exception ex) {
+            MagicURLNetwork.reportError(MagicURLNetwork.getDefaultErrorSink(), new FailureCause(FailureCause.Kind.OTHER, "Failed to update the MBean.", null, 0, -1, ex));
+        }
+    }
+}
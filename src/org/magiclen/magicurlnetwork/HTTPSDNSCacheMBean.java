@@ -0,0 +1,100 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+/**
+ * 透過JMX讀取HTTPSDNSCache的介面。
+ *
+ * @author Magic Len
+ * @see HTTPSDNSCache
+ */
+public interface HTTPSDNSCacheMBean {
+
+    /**
+     * 取得快取中的主機名稱數量。
+     *
+     * @return 傳回快取中的主機名稱數量
+     */
+    public int getSize();
+
+    /**
+     * 取得直接使用快取的次數，包含失敗的快取。
+     *
+     * @return 傳回直接使用快取的次數
+     */
+    public long getHitCount();
+
+    /**
+     * 取得需要解析主機名稱的次數。
+     *
+     * @return 傳回需要解析主機名稱的次數
+     */
+    public long getMissCount();
+
+    /**
+     * 取得使用失敗的快取的次數。
+     *
+     * @return 傳回使用失敗的快取的次數
+     */
+    public long getNegativeHitCount();
+
+    /**
+     * 取得在背景重新解析的次數。
+     *
+     * @return 傳回在背景重新解析的次數
+     */
+    public long getRefreshCount();
+
+    /**
+     * 取得解析失敗的次數。
+     *
+     * @return 傳回解析失敗的次數
+     */
+    public long getFailureCount();
+
+    /**
+     * 取得平均的解析時間。
+     *
+     * @return 傳回平均的解析時間(毫秒)
+     */
+    public double getMeanLookupTime();
+
+    /**
+     * 取得解析時間的第99百分位數。
+     *
+     * @return 傳回解析時間的第99百分位數(毫秒)
+     */
+    public double getP99LookupTime();
+
+    /**
+     * 取得最長的解析時間。
+     *
+     * @return 傳回最長的解析時間(毫秒)
+     */
+    public double getMaxLookupTime();
+
+    /**
+     * 清除所有快取。
+     */
+    public void clear();
+
+    /**
+     * 清除所有統計。
+     */
+    public void reset();
+}
@@ -0,0 +1,301 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * 一個被對沖的需求。
+ * </p>
+ *
+ * <p>
+ * 原本的需求在呼叫者的執行緒中執行；共用的計時器會在延遲時間過後，如果原本的需求還沒有收到回應，在預算內送出額外的需求。原本的需求收到回應時會取消計時，所以大部分沒有送出額外需求的情況不需要建立執行緒。額外的需求如果先成功完成，會斷開原本的需求；原本的需求如果先成功完成，會斷開額外的需求。
+ * </p>
+ *
+ * @author Magic Len
+ * @see HedgingPolicy
+ */
+final class HedgedRequest implements Runnable {
+
+    // -----類別常數-----
+    /**
+     * 共用的計時器，負責在延遲時間過後送出額外的需求。
+     */
+    private static final ScheduledThreadPoolExecutor TIMER;
+    /**
+     * 執行額外需求的執行緒池。
+     */
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "MagicURLNetwork-HedgeTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+        EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "MagicURLNetwork-Hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // -----物件常數-----
+    /**
+     * 原本的需求。
+     */
+    private final MagicURLNetwork primary;
+    /**
+     * 對沖需求的策略。
+     */
+    private final HedgingPolicy policy;
+    /**
+     * 開始的時間(奈秒)。
+     */
+    private final long startTime = System.nanoTime();
+
+    // -----物件變數-----
+    /**
+     * 計時器中的工作。
+     */
+    private ScheduledFuture<?> task;
+    /**
+     * 額外的需求。
+     */
+    private MagicURLNetwork hedge;
+    /**
+     * 等待額外需求完成的執行緒。
+     */
+    private volatile Thread waiter;
+    /**
+     * 原本的需求是否已經收到回應。
+     */
+    private boolean responseArrived = false;
+    /**
+     * 原本的需求是否已經結束。
+     */
+    private boolean primaryDone = false;
+    /**
+     * 原本的需求是否成功完成。
+     */
+    private boolean primarySucceeded = false;
+    /**
+     * 額外的需求是否已經結束。
+     */
+    private boolean hedgeDone = false;
+    /**
+     * 額外的需求是否先成功完成。
+     */
+    private boolean hedgeWon = false;
+
+    // -----建構子-----
+    /**
+     * 建構子，建立之後就開始計時。
+     *
+     * @param primary 傳入原本的需求
+     * @param policy 傳入對沖需求的策略
+     */
+    HedgedRequest(final MagicURLNetwork primary, final HedgingPolicy policy) {
+        this.primary = primary;
+        this.policy = policy;
+        policy.recordRequest();
+        final ScheduledFuture<?> scheduled = TIMER.schedule(this, policy.getDelay(), TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            task = scheduled;
+        }
+    }
+
+    // -----物件方法-----
+    /**
+     * 延遲時間過後，如果原本的需求還沒有收到回應，送出額外的需求。
+     */
+    @Override
+    public void run() {
+        final MagicURLNetwork h;
+        synchronized (this) {
+            if (responseArrived || primaryDone || !policy.tryAcquireHedge()) {
+                return;
+            }
+            h = primary.createHedge();
+            if (h == null) {
+                return;
+            }
+            hedge = h;
+        }
+        try {
+            EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    runHedge(h);
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            finishHedge(false);
+        }
+    }
+
+    /**
+     * 執行額外的需求。
+     *
+     * @param h 傳入額外的需求
+     */
+    private void runHedge(final MagicURLNetwork h) {
+        if (h.isAttemptDisconnecting()) {
+            // 原本的需求在額外的需求開始之前就結束了
+            finishHedge(false);
+            return;
+        }
+        h.open();
+        if (finishHedge(h.getResultHeader() != null)) {
+            policy.recordHedgeWin();
+            primary.abort();
+        }
+    }
+
+    /**
+     * 額外的需求結束，叫醒等待它的執行緒。
+     *
+     * @param succeeded 傳入額外的需求是否成功完成
+     * @return 傳回額外的需求是否先成功完成
+     */
+    private boolean finishHedge(final boolean succeeded) {
+        final boolean won;
+        synchronized (this) {
+            hedgeDone = true;
+            won = succeeded && !primarySucceeded && !primary.isAttemptDisconnecting();
+            hedgeWon = won;
+        }
+        final Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return won;
+    }
+
+    /**
+     * 取消計時器中還沒有執行的工作。
+     */
+    private void cancelTask() {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * 原本的需求收到回應。
+     */
+    synchronized void responseArrived() {
+        if (!responseArrived) {
+            responseArrived = true;
+            cancelTask();
+            policy.recordLatency((System.nanoTime() - startTime) / 1000000);
+        }
+    }
+
+    /**
+     * 原本的需求成功完成，斷開額外的需求。
+     */
+    void primarySucceeded() {
+        final MagicURLNetwork h;
+        synchronized (this) {
+            if (hedgeWon) {
+                return;
+            }
+            primarySucceeded = true;
+            primaryDone = true;
+            cancelTask();
+            h = hedge;
+        }
+        if (h != null) {
+            h.attemptDisconnect();
+        }
+    }
+
+    /**
+     * 原本的需求失敗，如果已經送出額外的需求，等待它完成，但不超過原本需求的期限。原本的需求被嘗試關閉、等待的執行緒被中斷或是超過期限時，會斷開額外的需求。等待的執行緒需要讓原本需求的attemptDisconnect方法可以叫醒它。
+     *
+     * @param deadline 傳入原本需求的期限(奈秒時間)，0表示沒有期限
+     * @return 傳回額外的需求是否成功完成，並且可以使用它的結果
+     */
+    boolean primaryFailed(final long deadline) {
+        final MagicURLNetwork h;
+        synchronized (this) {
+            primaryDone = true;
+            cancelTask();
+            h = hedge;
+            if (h == null) {
+                return false;
+            }
+        }
+        waiter = Thread.currentThread();
+        try {
+            while (!primary.isAttemptDisconnecting() && !Thread.currentThread().isInterrupted()) {
+                synchronized (this) {
+                    if (hedgeDone) {
+                        break;
+                    }
+                }
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remain = deadline - System.nanoTime();
+                    if (remain <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remain);
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+        synchronized (this) {
+            if (hedgeDone && hedgeWon && !primary.isAttemptDisconnecting()) {
+                return true;
+            }
+        }
+        h.attemptDisconnect();
+        return false;
+    }
+
+    /**
+     * 取得額外的需求。
+     *
+     * @return 傳回額外的需求
+     */
+    synchronized MagicURLNetwork getHedge() {
+        return hedge;
+    }
+}
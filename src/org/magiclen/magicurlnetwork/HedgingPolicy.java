@@ -0,0 +1,232 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 對沖需求的策略，可以被多個MagicGET或MagicHEAD物件共用。
+ * </p>
+ *
+ * <p>
+ * 送出需求之後，如果在延遲時間內還沒有收到回應，會再送出一個相同的需求，先完成的需求的結果會被使用，另一個需求會被斷開。延遲時間可以是固定的，也可以使用最近收到回應所花的時間的第95百分位數。額外送出的需求數量不會超過所有需求數量的預算百分比。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicGET
+ * @see MagicHEAD
+ */
+public class HedgingPolicy {
+
+    // -----類別常數-----
+    /**
+     * 自動調整延遲時間時，樣本數量不足所使用的延遲時間(毫秒)。
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    /**
+     * 保留的樣本數量。
+     */
+    private static final int WINDOW_SIZE = 256;
+    /**
+     * 計算百分位數所需的最少樣本數量。
+     */
+    private static final int MIN_SAMPLES = 20;
+    /**
+     * 重新計算百分位數的樣本間隔。
+     */
+    private static final int RECOMPUTE_INTERVAL = 16;
+
+    // -----物件常數-----
+    /**
+     * 固定的延遲時間(毫秒)，如果小於或等於0，表示自動調整。
+     */
+    private final long delay;
+    /**
+     * 額外需求的預算百分比。
+     */
+    private final double budget;
+    /**
+     * 最近收到回應所花的時間(毫秒)。
+     */
+    private final long[] samples = new long[WINDOW_SIZE];
+    /**
+     * 需求數量。
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+    /**
+     * 額外送出的需求數量。
+     */
+    private final AtomicLong hedgeCount = new AtomicLong();
+    /**
+     * 額外送出的需求先完成的次數。
+     */
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 樣本總數。
+     */
+    private long sampleCount = 0;
+    /**
+     * 目前使用的延遲時間(毫秒)。
+     */
+    private volatile long currentDelay;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用最近收到回應所花的時間的第95百分位數作為延遲時間。
+     *
+     * @param budget 傳入額外需求的預算百分比，例如5表示額外需求的數量最多為所有需求的5%
+     */
+    public HedgingPolicy(final double budget) {
+        this(0, budget);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param delay 傳入延遲時間(毫秒)，如果小於或等於0，表示使用最近收到回應所花的時間的第95百分位數
+     * @param budget 傳入額外需求的預算百分比，例如5表示額外需求的數量最多為所有需求的5%
+     */
+    public HedgingPolicy(final long delay, final double budget) {
+        if (budget < 0 || budget > 100) {
+            throw new RuntimeException("Budget needs to be between 0 and 100.");
+        }
+        this.delay = delay;
+        this.budget = budget;
+        this.currentDelay = delay > 0 ? delay : DEFAULT_INITIAL_DELAY;
+    }
+
+    // -----物件方法-----
+    /**
+     * 紀錄一個需求。
+     */
+    void recordRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * 紀錄收到回應所花的時間。
+     *
+     * @param latency 傳入收到回應所花的時間(毫秒)
+     */
+    void recordLatency(final long latency) {
+        if (delay > 0) {
+            return;
+        }
+        synchronized (samples) {
+            samples[(int) (sampleCount % WINDOW_SIZE)] = latency;
+            ++sampleCount;
+            if (sampleCount >= MIN_SAMPLES && sampleCount % RECOMPUTE_INTERVAL == 0) {
+                final int n = (int) Math.min(sampleCount, WINDOW_SIZE);
+                final long[] sorted = Arrays.copyOf(samples, n);
+                Arrays.sort(sorted);
+                currentDelay = Math.max(1, sorted[(int) Math.ceil(n * 0.95) - 1]);
+            }
+        }
+    }
+
+    /**
+     * 在預算內取得送出額外需求的許可。
+     *
+     * @return 傳回是否可以送出額外需求
+     */
+    boolean tryAcquireHedge() {
+        while (true) {
+            final long hedges = hedgeCount.get();
+            if ((hedges + 1) * 100 > requestCount.get() * budget) {
+                return false;
+            }
+            if (hedgeCount.compareAndSet(hedges, hedges + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 紀錄一次額外送出的需求先完成。
+     */
+    void recordHedgeWin() {
+        hedgeWinCount.incrementAndGet();
+    }
+
+    /**
+     * 取得目前使用的延遲時間。
+     *
+     * @return 傳回目前使用的延遲時間(毫秒)
+     */
+    public long getDelay() {
+        return currentDelay;
+    }
+
+    /**
+     * 取得延遲時間是否會自動調整。
+     *
+     * @return 傳回延遲時間是否會自動調整
+     */
+    public boolean isAdaptive() {
+        return delay <= 0;
+    }
+
+    /**
+     * 取得額外需求的預算百分比。
+     *
+     * @return 傳回額外需求的預算百分比
+     */
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * 取得需求數量。
+     *
+     * @return 傳回需求數量
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 取得額外送出的需求數量。
+     *
+     * @return 傳回額外送出的需求數量
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * 取得額外送出的需求先完成的次數。
+     *
+     * @return 傳回額外送出的需求先完成的次數
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /**
+     * 將統計數據歸零，預算也會重新計算。
+     */
+    public void resetStatistics() {
+        requestCount.set(0);
+        hedgeCount.set(0);
+        hedgeWinCount.set(0);
+    }
+}
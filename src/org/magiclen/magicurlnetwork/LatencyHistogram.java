@@ -0,0 +1,256 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * 以對數線性的區間統計延遲時間的直方圖，類似HDR Histogram。
+ * </p>
+ *
+ * <p>
+ * 每個2的次方範圍再平均分成32個區間，所以相對誤差大約在3%以內。紀錄時只會更新固定大小的原子陣列，不會配置記憶體也不會使用鎖，可以被多個執行緒同時紀錄。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MetricsRegistry
+ */
+public final class LatencyHistogram {
+
+    // -----類別常數-----
+    /**
+     * 每個2的次方範圍的區間數量的位元數。
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * 每個2的次方範圍的區間數量。
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * 可以紀錄的最大值的位元數，超過的值會被當作最大值。
+     */
+    private static final int MAX_VALUE_BITS = 40;
+    /**
+     * 可以紀錄的最大值(微秒)。
+     */
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    /**
+     * 區間數量。
+     */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    // -----類別類別-----
+    /**
+     * 直方圖在某個時間點的快照。
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * 取得紀錄的數量。
+         *
+         * @return 傳回紀錄的數量
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 取得平均值。
+         *
+         * @return 傳回平均值(微秒)，如果沒有紀錄，傳回0
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * 取得最大值。
+         *
+         * @return 傳回最大值(微秒)
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * 取得百分位數。
+         *
+         * @param percentile 傳入百分位數，範圍是0到100
+         * @return 傳回百分位數所在區間的上限(微秒)，不會超過最大值，如果沒有紀錄，傳回0
+         */
+        public long getPercentile(final double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new RuntimeException("The percentile needs to be between 0 and 100.");
+            }
+            long total = 0;
+            for (final long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(getUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.1fus, p50=%dus, p90=%dus, p99=%dus, max=%dus", count, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 取得值所在的區間。
+     *
+     * @param value 傳入值
+     * @return 傳回區間的索引
+     */
+    private static int getBucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * 取得區間的上限。
+     *
+     * @param index 傳入區間的索引
+     * @return 傳回區間中最大的值
+     */
+    private static long getUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        final long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+    }
+
+    // -----物件常數-----
+    /**
+     * 每個區間的數量。
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    /**
+     * 紀錄的數量。
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * 紀錄的總和。
+     */
+    private final AtomicLong sum = new AtomicLong();
+    /**
+     * 紀錄的最大值。
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    // -----物件方法-----
+    /**
+     * 紀錄一個值。
+     *
+     * @param value 傳入值(微秒)，小於0的值會被當作0，超過上限的值會被當作上限
+     */
+    public void record(final long value) {
+        final long v = value < 0 ? 0 : Math.min(value, MAX_VALUE);
+        counts.incrementAndGet(getBucketIndex(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 取得紀錄的數量。
+     *
+     * @return 傳回紀錄的數量
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 取得平均值。
+     *
+     * @return 傳回平均值(微秒)，如果沒有紀錄，傳回0
+     */
+    public double getMean() {
+        final long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * 取得最大值。
+     *
+     * @return 傳回最大值(微秒)
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 建立快照。紀錄的同時建立快照時，各項數值之間可能會有些微的差距。
+     *
+     * @return 傳回快照
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, count.get(), sum.get(), max.get());
+    }
+
+    /**
+     * 清除所有紀錄。
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
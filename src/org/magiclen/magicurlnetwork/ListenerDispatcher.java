@@ -0,0 +1,274 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.magiclen.json.JSONObject;
+import org.magiclen.magicurlnetwork.MagicURLNetwork.NetworkListener;
+
+/**
+ * <p>
+ * 將監聽者的事件交給其它執行緒執行，讓緩慢的監聽者不會拖慢傳輸。
+ * </p>
+ *
+ * <p>
+ * 事件放在固定大小的環狀佇列中，由一個MagicURLNetwork物件(同一時間只有一個執行緒)放入，同一時間只會有一個Executor的工作依序取出，不使用鎖。連續的進度事件只會保留最新的一個；onStarted、onFailed和onFinished會維持原本的順序，不會被捨棄，佇列滿的時候，放入事件的執行緒會等待。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setListenerExecutor(java.util.concurrent.Executor)
+ */
+final class ListenerDispatcher {
+
+    // -----類別常數-----
+    /**
+     * 佇列的大小，必須是2的次方。
+     */
+    private static final int CAPACITY = 64;
+    /**
+     * 佇列索引的遮罩。
+     */
+    private static final int MASK = CAPACITY - 1;
+    /**
+     * 事件：開始。
+     */
+    private static final int STARTED = 0;
+    /**
+     * 事件：進度。
+     */
+    private static final int RUNNING = 1;
+    /**
+     * 事件：失敗。
+     */
+    private static final int FAILED = 2;
+    /**
+     * 事件：結束。
+     */
+    private static final int FINISHED = 3;
+
+    // -----類別類別-----
+    /**
+     * 一個監聽者事件。放入佇列之後就不會再被修改。
+     */
+    private static final class Event {
+
+        final NetworkListener target;
+        final int type;
+        final boolean flag;
+        final long currentBytes;
+        final long totalBytes;
+        final String message;
+        final JSONObject resultHeader;
+        final Object result;
+
+        Event(final NetworkListener target, final int type, final boolean flag, final long currentBytes, final long totalBytes, final String message, final JSONObject resultHeader, final Object result) {
+            this.target = target;
+            this.type = type;
+            this.flag = flag;
+            this.currentBytes = currentBytes;
+            this.totalBytes = totalBytes;
+            this.message = message;
+            this.resultHeader = resultHeader;
+            this.result = result;
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 執行事件的Executor。
+     */
+    private final Executor executor;
+    /**
+     * 使用這個分派器的MagicURLNetwork物件，用來回報監聽者拋出的例外。
+     */
+    private final MagicURLNetwork owner;
+    /**
+     * 環狀佇列，null表示空的位置。
+     */
+    private final AtomicReferenceArray<Event> slots = new AtomicReferenceArray<>(CAPACITY);
+    /**
+     * 是否已經安排取出事件的工作。
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * 取出事件的工作。
+     */
+    private final Runnable drain = new Runnable() {
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+                while ((event = slots.getAndSet((int) (head & MASK), null)) != null) {
+                    ++head;
+                    deliver(event);
+                }
+                scheduled.set(false);
+                if (slots.get((int) (head & MASK)) == null || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    };
+
+    // -----物件變數-----
+    /**
+     * 下一個要取出的位置，只有取出事件的工作會使用。
+     */
+    private long head = 0;
+    /**
+     * 下一個要放入的位置，只有放入事件的執行緒會使用。
+     */
+    private long tail = 0;
+    /**
+     * 最後放入的進度事件，如果為null，表示最後放入的不是進度事件。
+     */
+    private Event lastProgress = null;
+    /**
+     * 最後放入的進度事件的位置。
+     */
+    private int lastProgressIndex = 0;
+
+    // -----建構子-----
+    /**
+     * 建構子，傳入執行事件的Executor和使用這個分派器的MagicURLNetwork物件。
+     *
+     * @param executor 傳入執行事件的Executor
+     * @param owner 傳入使用這個分派器的MagicURLNetwork物件
+     */
+    ListenerDispatcher(final Executor executor, final MagicURLNetwork owner) {
+        if (executor == null) {
+            throw new RuntimeException("The executor is null.");
+        }
+        this.executor = executor;
+        this.owner = owner;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得執行事件的Executor。
+     *
+     * @return 傳回執行事件的Executor
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 包裝監聽者，讓它的事件交給Executor執行。
+     *
+     * @param target 傳入監聽者
+     * @return 傳回包裝後的監聽者
+     */
+    NetworkListener wrap(final NetworkListener target) {
+        return new NetworkListener() {
+
+            @Override
+            public void onStarted() {
+                enqueue(new Event(target, STARTED, false, 0, 0, null, null, null));
+            }
+
+            @Override
+            public void onRunning(final boolean receiving, final long currentBytes, final long totalBytes) {
+                enqueue(new Event(target, RUNNING, receiving, currentBytes, totalBytes, null, null, null));
+            }
+
+            @Override
+            public void onFailed(final String message, final boolean attemptDisconnect) {
+                enqueue(new Event(target, FAILED, attemptDisconnect, 0, 0, message, null, null));
+            }
+
+            @Override
+            public void onFinished(final JSONObject resultHeader, final Object result) {
+                enqueue(new Event(target, FINISHED, false, 0, 0, null, resultHeader, result));
+            }
+        };
+    }
+
+    /**
+     * 放入事件。如果最後放入的進度事件還沒有被取出，新的進度事件會直接取代它。
+     *
+     * @param event 傳入事件
+     */
+    private void enqueue(final Event event) {
+        if (event.type == RUNNING && lastProgress != null && lastProgress.target == event.target && lastProgress.flag == event.flag && slots.compareAndSet(lastProgressIndex, lastProgress, event)) {
+            lastProgress = event;
+            schedule();
+            return;
+        }
+        final int index = (int) (tail & MASK);
+        while (slots.get(index) != null) {
+            // 佇列已滿，等待事件被取出
+            schedule();
+            LockSupport.parkNanos(100000L);
+        }
+        slots.set(index, event);
+        ++tail;
+        if (event.type == RUNNING) {
+            lastProgress = event;
+            lastProgressIndex = index;
+        } else {
+            lastProgress = null;
+        }
+        schedule();
+    }
+
+    /**
+     * 如果還沒有安排取出事件的工作，交給Executor執行。
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (final RejectedExecutionException ex) {
+                // Executor無法執行時，直接在目前的執行緒中執行
+                drain.run();
+            }
+        }
+    }
+
+    /**
+     * 執行事件。
+     *
+     * @param event 傳入事件
+     */
+    private void deliver(final Event event) {
+        try {
+            switch (event.type) {
+                case STARTED:
+                    event.target.onStarted();
+                    break;
+                case RUNNING:
+                    event.target.onRunning(event.flag, event.currentBytes, event.totalBytes);
+                    break;
+                case FAILED:
+                    event.target.onFailed(event.message, event.flag);
+                    break;
+                default:
+                    event.target.onFinished(event.resultHeader, event.result);
+                    break;
+            }
+        } catch (final Exception ex) {
+            owner.reportError(FailureCause.Kind.LISTENER, "NetworkListener threw an exception.", ex);
+        }
+    }
+}
@@ -0,0 +1,644 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.magiclen.json.JSONObject;
+
+/**
+ * <p>
+ * 用戶端的負載平衡器，可以被多個MagicURLNetwork物件共用，讓需求分散到提供相同內容的多個基本URL，例如不同區域的端點或是鏡像站。
+ * </p>
+ *
+ * <p>
+ * 需求的URL以其中一個基本URL開頭時，每次嘗試都會重新選擇端點，並把URL的開頭換成所選端點的基本URL。選擇時隨機挑出兩個端點，比較「延遲時間的指數加權移動平均(EWMA)×(進行中的需求數量+1)」，使用較小的那一個(Power of Two Choices)。
+ * </p>
+ *
+ * <p>
+ * 連續失敗達到次數的端點會被暫時移除，移除時間過後由背景執行緒送出HEAD需求探測，探測成功才會重新使用；所有端點都被移除時，會使用最早可以重新探測的端點。設定目標檔案的大型下載可以先向所有端點要求一小段內容，使用最快完成的端點。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setLoadBalancer(LoadBalancer)
+ */
+public class LoadBalancer {
+
+    // -----類別常數-----
+    /**
+     * 預設移除端點前的連續失敗次數。
+     */
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    /**
+     * 預設移除端點的時間(毫秒)。
+     */
+    public static final long DEFAULT_EJECTION_TIME = 10000;
+    /**
+     * 預設探測端點的路徑。
+     */
+    public static final String DEFAULT_PROBE_PATH = "/";
+    /**
+     * 預設探測的逾時時間(毫秒)。
+     */
+    public static final int DEFAULT_PROBE_TIMEOUT = 3000;
+    /**
+     * 預設探測下載速度時要求的位元組數量，0表示不探測。
+     */
+    public static final long DEFAULT_MIRROR_PROBE_SIZE = 0;
+    /**
+     * EWMA中新樣本的權重。
+     */
+    private static final double EWMA_WEIGHT = 0.3;
+    /**
+     * 失敗時延遲時間樣本的倍數。
+     */
+    private static final int FAILURE_PENALTY = 2;
+    /**
+     * 不回報錯誤的錯誤接收者，探測失敗是預期中的情況。
+     */
+    private static final MagicURLNetwork.ErrorSink SILENT_ERROR_SINK = new MagicURLNetwork.ErrorSink() {
+
+        @Override
+        public void report(final FailureCause cause) {
+        }
+    };
+
+    // -----類別類別-----
+    /**
+     * 負載平衡器中的一個端點。
+     */
+    public static final class Endpoint {
+
+        private final String baseURL;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double ewmaNanos;
+        private int consecutiveFailures;
+        private long requestCount;
+        private long failureCount;
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+
+        private Endpoint(final String baseURL) {
+            this.baseURL = baseURL;
+        }
+
+        /**
+         * 取得基本URL。
+         *
+         * @return 傳回基本URL
+         */
+        public String getBaseURL() {
+            return baseURL;
+        }
+
+        /**
+         * 取得延遲時間的指數加權移動平均。
+         *
+         * @return 傳回延遲時間的指數加權移動平均(奈秒)，0表示還沒有取樣
+         */
+        public double getLatencyNanos() {
+            return ewmaNanos;
+        }
+
+        /**
+         * 取得進行中的需求數量。
+         *
+         * @return 傳回進行中的需求數量
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * 取得是否被暫時移除。
+         *
+         * @return 傳回是否被暫時移除
+         */
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * 取得已結束的需求數量。
+         *
+         * @return 傳回已結束的需求數量
+         */
+        public synchronized long getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * 取得失敗的需求數量。
+         *
+         * @return 傳回失敗的需求數量
+         */
+        public synchronized long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * 加入延遲時間的樣本。
+         *
+         * @param latencyNanos 傳入延遲時間(奈秒)
+         */
+        private void addSample(final double latencyNanos) {
+            final double ewma = ewmaNanos;
+            ewmaNanos = ewma == 0 ? latencyNanos : ewma + (latencyNanos - ewma) * EWMA_WEIGHT;
+        }
+
+        /**
+         * 計算選擇時的成本。
+         *
+         * @return 傳回成本，越小越好
+         */
+        private double cost() {
+            return ewmaNanos * (inFlight.get() + 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: latency=%.1fms, inFlight=%d%s", baseURL, ewmaNanos / 1000000, inFlight.get(), ejected ? ", ejected" : "");
+        }
+    }
+
+    /**
+     * 探測下載速度時，等待最快完成的端點。
+     */
+    private static final class MirrorRace {
+
+        private int remaining;
+        private Endpoint winner;
+
+        MirrorRace(final int remaining) {
+            this.remaining = remaining;
+        }
+
+        synchronized void win(final Endpoint endpoint) {
+            if (winner == null) {
+                winner = endpoint;
+                notifyAll();
+            }
+        }
+
+        synchronized void lose() {
+            if (--remaining <= 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized Endpoint await(final long timeout) {
+            final long due = System.nanoTime() + timeout * 1000000L;
+            while (winner == null && remaining > 0) {
+                final long remain = due - System.nanoTime();
+                if (remain <= 0) {
+                    break;
+                }
+                try {
+                    wait(remain / 1000000 + 1);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return winner;
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 移除基本URL結尾的斜線。
+     *
+     * @param baseURL 傳入基本URL
+     * @return 傳回沒有結尾斜線的基本URL
+     */
+    private static String trimBaseURL(final String baseURL) {
+        String s = baseURL.trim();
+        while (s.endsWith("/")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return s;
+    }
+
+    // -----物件常數-----
+    /**
+     * 所有端點。
+     */
+    private final Endpoint[] endpoints;
+    /**
+     * 端點的協定。
+     */
+    private final String protocol;
+
+    // -----物件變數-----
+    /**
+     * 移除端點前的連續失敗次數。
+     */
+    private volatile int maxFailures = DEFAULT_MAX_FAILURES;
+    /**
+     * 移除端點的時間(毫秒)。
+     */
+    private volatile long ejectionTime = DEFAULT_EJECTION_TIME;
+    /**
+     * 探測端點的路徑。
+     */
+    private volatile String probePath = DEFAULT_PROBE_PATH;
+    /**
+     * 探測的逾時時間(毫秒)。
+     */
+    private volatile int probeTimeout = DEFAULT_PROBE_TIMEOUT;
+    /**
+     * 探測下載速度時要求的位元組數量，0表示不探測。
+     */
+    private volatile long mirrorProbeSize = DEFAULT_MIRROR_PROBE_SIZE;
+
+    // -----建構子-----
+    /**
+     * 建構子。所有基本URL都必須使用相同的協定。
+     *
+     * @param baseURLs 傳入提供相同內容的基本URL
+     */
+    public LoadBalancer(final String... baseURLs) {
+        if (baseURLs == null || baseURLs.length == 0) {
+            throw new RuntimeException("No base URL.");
+        }
+        endpoints = new Endpoint[baseURLs.length];
+        String p = null;
+        for (int i = 0; i < baseURLs.length; ++i) {
+            final String baseURL = trimBaseURL(baseURLs[i]);
+            final String urlProtocol;
+            try {
+                final URL url = new URL(baseURL);
+                if (url.getQuery() != null) {
+                    throw new Exception();
+                }
+                urlProtocol = url.getProtocol().toLowerCase();
+            } catch (final Exception ex) {
+                throw new RuntimeException("\"".concat(baseURL).concat("\" is not a valid base URL."));
+            }
+            if (p == null) {
+                p = urlProtocol;
+            } else if (!p.equals(urlProtocol)) {
+                throw new RuntimeException("The base URLs need to use the same protocol.");
+            }
+            endpoints[i] = new Endpoint(baseURL);
+        }
+        protocol = p;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得URL在基本URL之後的部分。
+     *
+     * @param url 傳入URL
+     * @return 傳回URL在基本URL之後的部分，如果為null，表示URL不是以任何一個基本URL開頭
+     */
+    String getSuffix(final URL url) {
+        if (!protocol.equalsIgnoreCase(url.getProtocol())) {
+            return null;
+        }
+        final String s = url.toString();
+        for (final Endpoint endpoint : endpoints) {
+            final String baseURL = endpoint.baseURL;
+            if (s.startsWith(baseURL) && (s.length() == baseURL.length() || s.charAt(baseURL.length()) == '/')) {
+                return s.substring(baseURL.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 使用Power of Two Choices選擇端點。
+     *
+     * @return 傳回端點
+     */
+    Endpoint select() {
+        final List<Endpoint> available = getAvailableEndpoints();
+        final int size = available.size();
+        if (size == 1) {
+            return available.get(0);
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            ++j;
+        }
+        final Endpoint a = available.get(i);
+        final Endpoint b = available.get(j);
+        return a.cost() <= b.cost() ? a : b;
+    }
+
+    /**
+     * 向所有可用的端點要求一小段內容，選擇最快完成的端點。如果沒有設定探測的大小，或是所有探測都失敗，使用Power of Two Choices選擇端點。
+     *
+     * @param request 傳入要下載的需求
+     * @param suffix 傳入URL在基本URL之後的部分
+     * @return 傳回端點
+     */
+    Endpoint selectFastest(final MagicURLNetwork request, final String suffix) {
+        final long size = mirrorProbeSize;
+        final List<Endpoint> available = getAvailableEndpoints();
+        if (size <= 0 || available.size() == 1) {
+            return select();
+        }
+        final int timeout = probeTimeout;
+        final MirrorRace race = new MirrorRace(available.size());
+        final MagicURLNetwork[] probes = new MagicURLNetwork[available.size()];
+        for (int i = 0; i < probes.length; ++i) {
+            final Endpoint endpoint = available.get(i);
+            final MagicURLNetwork probe;
+            try {
+                probe = request.createMirrorProbe(new URL(endpoint.baseURL.concat(suffix)));
+            } catch (final Exception ex) {
+                race.lose();
+                continue;
+            }
+            probe.setProperty("Range", "bytes=0-".concat(String.valueOf(size - 1)));
+            probe.setTimeout(timeout);
+            probe.setTotalTimeout(timeout);
+            probe.setErrorSink(SILENT_ERROR_SINK);
+            probe.setNetworkListener(new MagicURLNetwork.NetworkListener() {
+
+                @Override
+                public void onStarted() {
+                }
+
+                @Override
+                public void onRunning(final boolean receiving, final long currentBytes, final long totalBytes) {
+                    if (receiving && currentBytes >= size) {
+                        // 已經收到足夠的內容，不必再下載
+                        race.win(endpoint);
+                        probe.attemptDisconnect();
+                    }
+                }
+
+                @Override
+                public void onFailed(final String message, final boolean attemptDisconnect) {
+                }
+
+                @Override
+                public void onFinished(final JSONObject resultHeader, final Object result) {
+                    if (resultHeader != null) {
+                        race.win(endpoint);
+                    } else {
+                        race.lose();
+                    }
+                }
+            });
+            probes[i] = probe;
+            final Thread thread = new Thread("MagicURLNetwork-MirrorProbe") {
+                @Override
+                public void run() {
+                    probe.open();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final Endpoint winner = race.await(timeout);
+        for (final MagicURLNetwork probe : probes) {
+            if (probe != null) {
+                probe.attemptDisconnect();
+            }
+        }
+        return winner != null ? winner : select();
+    }
+
+    /**
+     * 取得可以使用的端點。所有端點都被移除時，傳回最早可以重新探測的端點。
+     *
+     * @return 傳回可以使用的端點
+     */
+    private List<Endpoint> getAvailableEndpoints() {
+        final ArrayList<Endpoint> available = new ArrayList<>(endpoints.length);
+        Endpoint earliest = null;
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.ejected) {
+                available.add(endpoint);
+            } else if (earliest == null || endpoint.ejectedUntil - earliest.ejectedUntil < 0) {
+                earliest = endpoint;
+            }
+        }
+        if (available.isEmpty()) {
+            available.add(earliest);
+        }
+        return available;
+    }
+
+    /**
+     * 需求開始使用端點。
+     *
+     * @param endpoint 傳入端點
+     */
+    void begin(final Endpoint endpoint) {
+        endpoint.inFlight.incrementAndGet();
+    }
+
+    /**
+     * 需求結束使用端點，並依照結果更新延遲時間和失敗次數。
+     *
+     * @param endpoint 傳入端點
+     * @param latencyNanos 傳入收到回應所花的時間(奈秒)
+     * @param outcome 傳入需求的結果
+     */
+    void end(final Endpoint endpoint, final long latencyNanos, final int outcome) {
+        endpoint.inFlight.decrementAndGet();
+        if (outcome == ConcurrencyLimiter.IGNORED) {
+            return;
+        }
+        boolean eject = false;
+        synchronized (endpoint) {
+            ++endpoint.requestCount;
+            if (outcome == ConcurrencyLimiter.SUCCESS) {
+                endpoint.consecutiveFailures = 0;
+                endpoint.addSample(latencyNanos);
+            } else {
+                ++endpoint.failureCount;
+                endpoint.addSample(Math.max(latencyNanos, endpoint.ewmaNanos) * FAILURE_PENALTY);
+                if (++endpoint.consecutiveFailures >= maxFailures && !endpoint.ejected) {
+                    endpoint.ejected = true;
+                    endpoint.ejectedUntil = System.nanoTime() + ejectionTime * 1000000L;
+                    eject = true;
+                }
+            }
+        }
+        if (eject) {
+            startProbe(endpoint);
+        }
+    }
+
+    /**
+     * 啟動探測被移除的端點的背景執行緒，探測成功時重新使用端點。
+     *
+     * @param endpoint 傳入被移除的端點
+     */
+    private void startProbe(final Endpoint endpoint) {
+        final Thread thread = new Thread("MagicURLNetwork-EndpointProbe") {
+            @Override
+            public void run() {
+                while (true) {
+                    final long remain = endpoint.ejectedUntil - System.nanoTime();
+                    if (remain > 0) {
+                        try {
+                            Thread.sleep(remain / 1000000, (int) (remain % 1000000));
+                        } catch (final InterruptedException ex) {
+                            return;
+                        }
+                        continue;
+                    }
+                    final MagicHEAD probe = new MagicHEAD(endpoint.baseURL.concat(probePath));
+                    probe.setTimeout(probeTimeout);
+                    probe.setTotalTimeout(probeTimeout);
+                    probe.setErrorSink(SILENT_ERROR_SINK);
+                    final long start = System.nanoTime();
+                    probe.open();
+                    synchronized (endpoint) {
+                        if (probe.getFailureCause() == null) {
+                            endpoint.consecutiveFailures = 0;
+                            endpoint.ewmaNanos = System.nanoTime() - start;
+                            endpoint.ejected = false;
+                            return;
+                        }
+                        endpoint.ejectedUntil = System.nanoTime() + ejectionTime * 1000000L;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 取得所有端點。
+     *
+     * @return 傳回所有端點
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    /**
+     * 取得移除端點前的連續失敗次數。
+     *
+     * @return 傳回移除端點前的連續失敗次數
+     */
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    /**
+     * 設定移除端點前的連續失敗次數。
+     *
+     * @param maxFailures 傳入移除端點前的連續失敗次數
+     */
+    public void setMaxFailures(final int maxFailures) {
+        if (maxFailures < 1) {
+            throw new RuntimeException("The max failures needs to be at least 1.");
+        }
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * 取得移除端點的時間。
+     *
+     * @return 傳回移除端點的時間(毫秒)
+     */
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    /**
+     * 設定移除端點的時間，時間過後才會探測端點，探測失敗時會再等待相同的時間。
+     *
+     * @param ejectionTime 傳入移除端點的時間(毫秒)
+     */
+    public void setEjectionTime(final long ejectionTime) {
+        if (ejectionTime < 0) {
+            throw new RuntimeException("The ejection time needs to be at least 0.");
+        }
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * 取得探測端點的路徑。
+     *
+     * @return 傳回探測端點的路徑
+     */
+    public String getProbePath() {
+        return probePath;
+    }
+
+    /**
+     * 設定探測端點的路徑，這個路徑的HEAD需求在端點正常時應該傳回2XX的回應碼。
+     *
+     * @param probePath 傳入探測端點的路徑，例如/health
+     */
+    public void setProbePath(final String probePath) {
+        if (probePath == null) {
+            throw new RuntimeException("Null probe path.");
+        }
+        this.probePath = probePath;
+    }
+
+    /**
+     * 取得探測的逾時時間。
+     *
+     * @return 傳回探測的逾時時間(毫秒)
+     */
+    public int getProbeTimeout() {
+        return probeTimeout;
+    }
+
+    /**
+     * 設定探測的逾時時間，包含探測端點和探測下載速度。
+     *
+     * @param probeTimeout 傳入探測的逾時時間(毫秒)
+     */
+    public void setProbeTimeout(final int probeTimeout) {
+        if (probeTimeout < 0) {
+            throw new RuntimeException("The probe timeout needs to be at least 0.");
+        }
+        this.probeTimeout = probeTimeout;
+    }
+
+    /**
+     * 取得探測下載速度時要求的位元組數量。
+     *
+     * @return 傳回探測下載速度時要求的位元組數量，0表示不探測
+     */
+    public long getMirrorProbeSize() {
+        return mirrorProbeSize;
+    }
+
+    /**
+     * 設定探測下載速度時要求的位元組數量。設定目標檔案的MagicGET會先向所有可用的端點要求這個大小的內容，使用最快完成的端點。
+     *
+     * @param mirrorProbeSize 傳入探測下載速度時要求的位元組數量，0表示不探測
+     */
+    public void setMirrorProbeSize(final long mirrorProbeSize) {
+        if (mirrorProbeSize < 0) {
+            throw new RuntimeException("The mirror probe size needs to be at least 0.");
+        }
+        this.mirrorProbeSize = mirrorProbeSize;
+    }
+}
@@ -73,4 +73,64 @@ public class MagicDELETE extends MagicGET {
     protected boolean supportNonHTTPProtocol() {
 	return false;
     }
+
+    /**
+     * 取得是否支援回應快取。
+     *
+     * @return 傳回是否支援回應快取
+     */
+    @Override
+    protected boolean supportResponseCache() {
+	return false;
+    }
+
+    /**
+     * 取得是否支援重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    @Override
+    protected boolean supportRetry() {
+	return true;
+    }
+
+    /**
+     * 取得是否支援合併相同的需求。每個DELETE都必須送到伺服器，不能共用其它需求的結果。
+     *
+     * @return 傳回是否支援合併相同的需求
+     */
+    @Override
+    protected boolean supportRequestCoalescing() {
+	return false;
+    }
+
+    /**
+     * 取得是否支援對沖需求。DELETE會改變伺服器的狀態，不能用另一個需求取代。
+     *
+     * @return 傳回是否支援對沖需求
+     */
+    @Override
+    protected boolean supportHedging() {
+	return false;
+    }
+
+    /**
+     * 取得是否支援在下載到目標檔案前探測鏡像站的下載速度。探測會對每個鏡像站送出GET需求，不適用於DELETE。
+     *
+     * @return 傳回是否支援探測鏡像站的下載速度
+     */
+    @Override
+    protected boolean supportMirrorProbe() {
+	return false;
+    }
+
+    /**
+     * 建立一個URL相同的新需求物件。
+     *
+     * @return 傳回null，表示不支援
+     */
+    @Override
+    protected MagicURLNetwork createSameRequest() {
+	return null;
+    }
 }
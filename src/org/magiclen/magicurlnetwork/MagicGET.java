@@ -118,15 +118,10 @@ public class MagicGET extends MagicURLNetwork {
 	    if (c > 0) {
 		sum += c;
 		resetSleepCounter();
+		throttle(c);
 	    }
 	    bos.write(buffer, 0, c);
-	    if (listener != null) {
-		try {
-		    listener.onRunning(true, sum, contentLength);
-		} catch (final Exception ex) {
-		    ex.printStackTrace(System.out);
-		}
-	    }
+	    reportProgress(true, sum, contentLength);
 	}
     }
 
@@ -139,4 +134,72 @@ public class MagicGET extends MagicURLNetwork {
     protected boolean supportNonHTTPProtocol() {
 	return true;
     }
+
+    /**
+     * 取得是否支援回應快取。
+     *
+     * @return 傳回是否支援回應快取
+     */
+    @Override
+    protected boolean supportResponseCache() {
+	return true;
+    }
+
+    /**
+     * 取得是否支援合併相同的需求。
+     *
+     * @return 傳回是否支援合併相同的需求
+     */
+    @Override
+    protected boolean supportRequestCoalescing() {
+	return true;
+    }
+
+    /**
+     * 取得是否支援對沖需求。
+     *
+     * @return 傳回是否支援對沖需求
+     */
+    @Override
+    protected boolean supportHedging() {
+	return true;
+    }
+
+    /**
+     * 取得是否支援在下載到目標檔案前探測鏡像站的下載速度。
+     *
+     * @return 傳回是否支援探測鏡像站的下載速度
+     */
+    @Override
+    protected boolean supportMirrorProbe() {
+	return true;
+    }
+
+    /**
+     * 建立一個URL相同的新需求物件，類別和這個需求相同。
+     *
+     * @return 傳回新的需求物件，如果為null，表示不支援
+     */
+    @Override
+    protected MagicURLNetwork createSameRequest() {
+	if (getClass() == MagicGET.class) {
+	    return new MagicGET(getURL());
+	}
+	try {
+	    return getClass().getConstructor(URL.class).newInstance(getURL());
+	} catch (final Exception ex) {
+	    // 子類別沒有傳入URL物件的建構子
+	    return null;
+	}
+    }
+
+    /**
+     * 取得是否支援重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    @Override
+    protected boolean supportRetry() {
+	return true;
+    }
 }
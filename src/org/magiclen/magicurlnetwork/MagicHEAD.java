@@ -111,13 +111,7 @@ public class MagicHEAD extends MagicURLNetwork {
     protected void doReceiveConnection(final NetworkListener listener, final JSONObject resultHeader, final BufferedInputStream bisConn, final BufferedOutputStream bos) throws Exception {
 	final byte[] data = resultHeader.toString(true).getBytes("UTF-8");
 	bos.write(data);
-	if (listener != null) {
-	    try {
-		listener.onRunning(true, data.length, data.length);
-	    } catch (final Exception ex) {
-		ex.printStackTrace(System.out);
-	    }
-	}
+	reportProgress(true, data.length, data.length);
     }
 
     /**
@@ -129,4 +123,44 @@ public class MagicHEAD extends MagicURLNetwork {
     protected boolean supportNonHTTPProtocol() {
 	return false;
     }
+
+    /**
+     * 取得是否支援合併相同的需求。
+     *
+     * @return 傳回是否支援合併相同的需求
+     */
+    @Override
+    protected boolean supportRequestCoalescing() {
+	return true;
+    }
+
+    /**
+     * 取得是否支援對沖需求。
+     *
+     * @return 傳回是否支援對沖需求
+     */
+    @Override
+    protected boolean supportHedging() {
+	return true;
+    }
+
+    /**
+     * 建立一個URL相同的新需求物件。
+     *
+     * @return 傳回新的需求物件
+     */
+    @Override
+    protected MagicURLNetwork createSameRequest() {
+	return new MagicHEAD(getURL());
+    }
+
+    /**
+     * 取得是否支援重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    @Override
+    protected boolean supportRetry() {
+	return true;
+    }
 }
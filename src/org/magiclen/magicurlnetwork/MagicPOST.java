@@ -19,12 +19,9 @@ package org.magiclen.magicurlnetwork;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Set;
 import org.magiclen.json.JSONObject;
@@ -41,21 +38,6 @@ import org.magiclen.magicurlnetwork.parameters.BodyType;
  */
 public class MagicPOST extends MagicURLNetwork {
 
-    // -----類別類別-----
-    /**
-     * 儲存Body和鍵值，用來處理陣列型態的資料重複鍵值的情形。
-     */
-    private static class BodyWithKey {
-
-        final Body body;
-        final String key;
-
-        BodyWithKey(final Body body, final String key) {
-            this.body = body;
-            this.key = key;
-        }
-    }
-
     // -----物件常數-----
     /**
      * 儲存當以MultiPart的方式傳遞內容時，要用來分界的字串。
@@ -67,6 +49,10 @@ public class MagicPOST extends MagicURLNetwork {
      * 儲存是否要以MultiPart的方式傳遞內容。
      */
     private boolean multiPart;
+    /**
+     * 儲存以MultiPart的方式傳遞內容時所使用的MultipartWriter物件。
+     */
+    private MultipartWriter multipartWriter;
     /**
      * 儲存總共需傳送的資料大小，如果無法預估，值為-1。
      */
@@ -105,7 +91,10 @@ public class MagicPOST extends MagicURLNetwork {
      */
     @Override
     protected URLConnection buildConnection(final URL url) throws Exception {
-        multiPart = hasParameterType(BodyType.FILE, BodyType.JSON);
+        totalLength = 0;
+        sum = 0;
+        multiPart = hasParameterType(BodyType.FILE, BodyType.JSON, BodyType.BYTES, BodyType.BYTE_BUFFER, BodyType.INPUT_STREAM, BodyType.FILE_REGION);
+        multipartWriter = multiPart ? createMultipartWriter() : null;
 
         final URL urlWithoutParams = url;
         final URLConnection conn = urlWithoutParams.openConnection();
@@ -126,6 +115,47 @@ public class MagicPOST extends MagicURLNetwork {
     protected void buildHTTPConnection(final HttpURLConnection http) throws Exception {
         http.setRequestMethod("POST");
         http.setInstanceFollowRedirects(true);
+        if (multipartWriter != null) {
+            // 讓內容直接串流到伺服器，而不是整個暫存在HttpURLConnection中
+            final long length = multipartWriter.getLength();
+            if (length >= 0) {
+                http.setFixedLengthStreamingMode(length);
+            } else {
+                http.setChunkedStreamingMode(BodyWriter.WRITE_BUFFER_SIZE);
+            }
+        }
+    }
+
+    /**
+     * 建立MultipartWriter物件，展開ArrayBody並事先計算要傳送的資料量。
+     *
+     * @return 傳回MultipartWriter物件
+     */
+    private MultipartWriter createMultipartWriter() {
+        final MultipartWriter writer = new MultipartWriter(boundary) {
+            @Override
+            protected void onWritten(final int written) {
+                sum += written;
+                resetSleepCounter();
+                throttle(written);
+                reportProgress(false, sum, totalLength);
+            }
+        };
+        final HashMap<String, Body> parameters = getParameters();
+        final Set<String> keys = parameters.keySet();
+        for (final String key : keys) {
+            final Body body = parameters.get(key);
+            if (body.getBodyType() == BodyType.ARRAY) {
+                final String arrayKey = key.concat("[]");
+                final Body[] bodyArray = (Body[]) body.getSource();
+                for (final Body b : bodyArray) {
+                    writer.addPart(arrayKey, b);
+                }
+            } else {
+                writer.addPart(key, body);
+            }
+        }
+        return writer;
     }
 
     /**
@@ -139,116 +169,8 @@ public class MagicPOST extends MagicURLNetwork {
     @Override
     protected void doSendConnection(final NetworkListener listener, final HashMap<String, Body> parameters, final BufferedOutputStream bosConn) throws Exception {
         if (multiPart) {
-            final ArrayList<BodyWithKey> parametersList = new ArrayList<>();
-            final Set<String> originalKeySet = parameters.keySet();
-
-            // 展開ArrayBody
-            for (final String originalKey : originalKeySet) {
-                final Body originalBody = parameters.get(originalKey);
-                final BodyType originalBodyType = originalBody.getBodyType();
-                if (originalBodyType == BodyType.ARRAY) {
-                    final String newBodyKey = originalKey.concat("[]");
-                    final Body[] bodyArray = (Body[]) originalBody.getSource();
-                    for (final Body b : bodyArray) {
-                        parametersList.add(new BodyWithKey(b, newBodyKey));
-                    }
-                } else {
-                    parametersList.add(new BodyWithKey(originalBody, originalKey));
-                }
-            }
-
-            // 先儲存要傳送的資料，並計算要傳送資料量
-            final ArrayList<byte[]> sendList = new ArrayList<>();
-            final ArrayList<File> sendFileList = new ArrayList<>();
-
-            for (final BodyWithKey parameter : parametersList) {
-                final Body body = parameter.body;
-                final String key = parameter.key;
-                final BodyType bodyType = body.getBodyType();
-                final String contentType = body.getContentType();
-                switch (bodyType) {
-                    case FILE: {
-                        final File file = (File) body.getSource();
-                        final String formattedContentType;
-                        if (contentType == null) {
-                            formattedContentType = "";
-                        } else {
-                            formattedContentType = String.format("Content-Type: %s\r\n", contentType);
-                        }
-                        final String formData = String.format("--%s\r\nContent-Disposition: form-data; name=\"%s\"; fileName=\"%s\"\r\n%sContent-Transfer-Encoding: binary\r\n\r\n", boundary, key, encodeHeaderString(file.getName()), formattedContentType);
-                        final byte[] data = formData.getBytes("UTF-8");
-                        totalLength += data.length;
-                        sendList.add(data);
-                        totalLength += file.length();
-                        sendList.add(null);
-                        sendFileList.add(file);
-                        totalLength += LINE_CHARACTER.length;
-                        sendList.add(LINE_CHARACTER);
-                    }
-                    break;
-                    case JSON: {
-                        final String formData = String.format("--%s\r\nContent-Disposition: form-data; name=\"%s\"\r\nContent-Type: %s\r\n\r\n", boundary, key, contentType);
-                        byte[] data = formData.getBytes("UTF-8");
-                        totalLength += data.length;
-                        sendList.add(data);
-                        data = body.toString().getBytes("UTF-8");
-                        totalLength += data.length;
-                        sendList.add(data);
-                        totalLength += LINE_CHARACTER.length;
-                        sendList.add(LINE_CHARACTER);
-                    }
-                    break;
-                    default: {
-                        final String formattedContentType;
-                        if (contentType == null) {
-                            formattedContentType = "";
-                        } else {
-                            formattedContentType = String.format("Content-Type: %s; charset=UTF-8\r\n", contentType);
-                        }
-                        final String formData = String.format("--%s\r\nContent-Disposition: form-data; name=\"%s\"\r\n%s\r\n%s", boundary, key, formattedContentType, body.toString());
-                        final byte[] data = formData.getBytes("UTF-8");
-                        totalLength += data.length;
-                        sendList.add(data);
-                        totalLength += LINE_CHARACTER.length;
-                        sendList.add(LINE_CHARACTER);
-                    }
-                    break;
-                }
-            }
-
-            final String endBoundary = String.format("--%s--\r\n", boundary);
-            final byte[] endBoundaryData = endBoundary.getBytes("UTF-8");
-            totalLength += endBoundaryData.length;
-            sendList.add(endBoundaryData);
-
-            // 開始傳送資料
-            int fileIndex = 0;
-            for (final byte[] data : sendList) {
-                if (data != null) {
-                    sum += data.length;
-                    bosConn.write(data);
-                } else {
-                    final File file = sendFileList.get(fileIndex++);
-                    try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-                        final byte[] buffer = new byte[BUFFER_SIZE];
-                        int c;
-                        while ((c = bis.read(buffer)) >= 0) {
-                            if (c > 0) {
-                                sum += c;
-                                resetSleepCounter();
-                            }
-                            bosConn.write(buffer, 0, c);
-                            if (listener != null) {
-                                try {
-                                    listener.onRunning(false, sum, totalLength);
-                                } catch (final Exception ex) {
-                                    ex.printStackTrace(System.out);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            totalLength = multipartWriter.getLength();
+            multipartWriter.writeTo(bosConn);
         } else {
             final String formData = createParametersString();
             final byte[] data = formData.getBytes("UTF-8");
@@ -258,18 +180,8 @@ public class MagicPOST extends MagicURLNetwork {
         }
         bosConn.flush();
 
-        if (listener != null) {
-            try {
-                listener.onRunning(false, sum, totalLength);
-            } catch (final Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-            try {
-                listener.onRunning(true, sum, totalLength);
-            } catch (final Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-        }
+        reportProgress(false, sum, totalLength);
+        reportProgress(true, sum, totalLength);
     }
 
     /**
@@ -284,7 +196,7 @@ public class MagicPOST extends MagicURLNetwork {
     @Override
     protected void doReceiveConnection(final NetworkListener listener, final JSONObject resultHeader, final BufferedInputStream bisConn, final BufferedOutputStream bos) throws Exception {
         final long contentLength = resultHeader.getLong("Content-Length");
-        if (contentLength > -1) {
+        if (contentLength > -1 && totalLength > -1) {
             totalLength += contentLength;
         } else {
             totalLength = -1;
@@ -296,15 +208,10 @@ public class MagicPOST extends MagicURLNetwork {
             if (c > 0) {
                 sum += c;
                 resetSleepCounter();
+                throttle(c);
             }
             bos.write(buffer, 0, c);
-            if (listener != null) {
-                try {
-                    listener.onRunning(true, sum, totalLength);
-                } catch (final Exception ex) {
-                    ex.printStackTrace(System.out);
-                }
-            }
+            reportProgress(true, sum, totalLength);
         }
     }
 
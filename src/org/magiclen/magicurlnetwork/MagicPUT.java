@@ -20,7 +20,6 @@ package org.magiclen.magicurlnetwork;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
@@ -51,6 +50,10 @@ public class MagicPUT extends MagicURLNetwork {
      * 儲存目前唯一的參數資料內容。
      */
     private Body body;
+    /**
+     * 儲存唯一的參數資料內容的長度，如果無法預估，值為-1。
+     */
+    private long bodyLength;
     /**
      * 儲存總共需傳送的資料大小，如果無法預估，值為-1。
      */
@@ -127,6 +130,8 @@ public class MagicPUT extends MagicURLNetwork {
         conn.setDoInput(true);
         conn.setDoOutput(true);
         conn.setUseCaches(false);
+        totalLength = 0;
+        sum = 0;
         final Set<String> keys = getParameterKeys();
         if (keys.isEmpty()) {
             body = null;
@@ -137,10 +142,24 @@ public class MagicPUT extends MagicURLNetwork {
                 final boolean useUTF8 = contentType.equalsIgnoreCase("text/plain") || contentType.endsWith("application/json");
                 conn.setRequestProperty(PropertyKeys.CONTENT_TYPE, contentType.concat(useUTF8 ? "; charset=UTF-8" : ""));
             }
-            if (body.getBodyType() == BodyType.FILE) {
+            final BodyType bodyType = body.getBodyType();
+            if (bodyType == BodyType.FILE || bodyType == BodyType.FILE_REGION) {
                 final File file = (File) body.getSource();
                 conn.setRequestProperty(PropertyKeys.CONTENT_DISPOSITION, String.format("fileName=\"%s\"", encodeHeaderString(file.getName())));
             }
+            bodyLength = BodyWriter.getContentLength(body);
+            if (bodyLength >= 0 && bodyType == BodyType.FILE) {
+                bodyLength += LINE_CHARACTER.length;
+            }
+            if ((BodyWriter.isBinary(body) || bodyType == BodyType.JSON) && conn instanceof HttpURLConnection) {
+                // 讓二進制和JSON內容直接串流到伺服器，而不是整個暫存在HttpURLConnection中
+                final HttpURLConnection http = (HttpURLConnection) conn;
+                if (bodyLength >= 0) {
+                    http.setFixedLengthStreamingMode(bodyLength);
+                } else {
+                    http.setChunkedStreamingMode(BodyWriter.WRITE_BUFFER_SIZE);
+                }
+            }
         }
         return conn;
     }
@@ -168,60 +187,26 @@ public class MagicPUT extends MagicURLNetwork {
     @Override
     protected void doSendConnection(final NetworkListener listener, final HashMap<String, Body> parameters, final BufferedOutputStream bosConn) throws Exception {
         if (body != null) {
-            final BodyType bodyType = body.getBodyType();
-            switch (bodyType) {
-                case FILE: {
-                    final File file = (File) body.getSource();
-                    totalLength += file.length();
-                    try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-                        final byte[] buffer = new byte[BUFFER_SIZE];
-                        int c;
-                        while ((c = bis.read(buffer)) >= 0) {
-                            if (c > 0) {
-                                sum += c;
-                                resetSleepCounter();
-                            }
-                            bosConn.write(buffer, 0, c);
-                            if (listener != null) {
-                                try {
-                                    listener.onRunning(false, sum, totalLength);
-                                } catch (final Exception ex) {
-                                    ex.printStackTrace(System.out);
-                                }
-                            }
-                        }
-                    }
-                    totalLength += LINE_CHARACTER.length;
-                    sum += LINE_CHARACTER.length;
-                    bosConn.write(LINE_CHARACTER);
-                }
-                break;
-                default: {
-                    final byte[] data = body.toString().getBytes("UTF-8");
-                    final int length = data.length;
-                    totalLength += length;
-                    sum += length;
-                    bosConn.write(data);
+            totalLength = bodyLength;
+            new BodyWriter() {
+                @Override
+                protected void onWritten(final int written) {
+                    sum += written;
+                    resetSleepCounter();
+                    throttle(written);
+                    reportProgress(false, sum, totalLength);
                 }
-                break;
+            }.write(body, bosConn);
+            if (body.getBodyType() == BodyType.FILE) {
+                sum += LINE_CHARACTER.length;
+                bosConn.write(LINE_CHARACTER);
             }
         }
 
         bosConn.flush();
 
-        if (listener
-                != null) {
-            try {
-                listener.onRunning(false, sum, totalLength);
-            } catch (final Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-            try {
-                listener.onRunning(true, sum, totalLength);
-            } catch (final Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-        }
+        reportProgress(false, sum, totalLength);
+        reportProgress(true, sum, totalLength);
     }
 
     /**
@@ -236,7 +221,7 @@ public class MagicPUT extends MagicURLNetwork {
     @Override
     protected void doReceiveConnection(final NetworkListener listener, final JSONObject resultHeader, final BufferedInputStream bisConn, final BufferedOutputStream bos) throws Exception {
         final long contentLength = resultHeader.getLong("Content-Length");
-        if (contentLength > -1) {
+        if (contentLength > -1 && totalLength > -1) {
             totalLength += contentLength;
         } else {
             totalLength = -1;
@@ -248,15 +233,10 @@ public class MagicPUT extends MagicURLNetwork {
             if (c > 0) {
                 sum += c;
                 resetSleepCounter();
+                throttle(c);
             }
             bos.write(buffer, 0, c);
-            if (listener != null) {
-                try {
-                    listener.onRunning(true, sum, totalLength);
-                } catch (final Exception ex) {
-                    ex.printStackTrace(System.out);
-                }
-            }
+            reportProgress(true, sum, totalLength);
         }
     }
 
@@ -269,4 +249,14 @@ public class MagicPUT extends MagicURLNetwork {
     protected boolean supportNonHTTPProtocol() {
         return false;
     }
+
+    /**
+     * 取得是否支援重試。輸入串流的內容無法重新傳送，因此不能重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    @Override
+    protected boolean supportRetry() {
+        return !hasParameterType(BodyType.INPUT_STREAM);
+    }
 }
@@ -63,4 +63,14 @@ public class MagicSinglePOST extends MagicPUT {
 	http.setRequestMethod("POST");
 	http.setInstanceFollowRedirects(true);
     }
+
+    /**
+     * 取得是否支援重試。POST不是冪等的，伺服器可能已經處理過失敗的需求，所以不重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    @Override
+    protected boolean supportRetry() {
+	return false;
+    }
 }
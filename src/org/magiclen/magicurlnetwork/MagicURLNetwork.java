@@ -19,25 +19,34 @@ package org.magiclen.magicurlnetwork;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -75,21 +84,61 @@ public abstract class MagicURLNetwork {
 
     // -----類別常數-----
     /**
-     * 執行緒逾時和ReadTimeout、ConnectTimeout的間隔時間。
+     * 連線階段：建立連線。
      */
-    private static final int TIMEOUT_INTERVAL = 1500;
+    private static final int PHASE_CONNECTING = 0;
     /**
-     * 每次逾時檢查的間隔時間。
+     * 連線階段：傳送需求。
      */
-    private static final int SLEEP_INTERVAL = 200;
+    private static final int PHASE_SENDING = 1;
+    /**
+     * 連線階段：等待回應。
+     */
+    private static final int PHASE_WAITING = 2;
+    /**
+     * 連線階段：接收回應。
+     */
+    private static final int PHASE_RECEIVING = 3;
     /**
      * 預設的連線逾時時間。
      */
     private static final int DEFAULT_TIMEOUT = 15000;
+    /**
+     * 預設連線到主機名稱的下一個IP位址之前等待的時間(毫秒)，和RFC 8305建議的相同。
+     */
+    private static final int DEFAULT_CONNECTION_ATTEMPT_DELAY = 250;
+    /**
+     * 允許所有主機名稱的HostnameVerifier。
+     */
+    private static final HostnameVerifier ANY_HOSTNAME_VERIFIER = createAnyHostnameVerifier();
     /**
      * 是否允許非2XX的HTTP狀態碼。
      */
     private static final boolean DEFAULT_ACCEPT_NOT_2XX_HTTP_RESPONSE_CODE = false;
+    /**
+     * 預設存在記憶體中的回傳內容大小門檻值，超過時會改存到暫存檔案。
+     */
+    private static final long DEFAULT_MEMORY_THRESHOLD = Long.MAX_VALUE;
+    /**
+     * 預設的回傳內容大小上限，-1表示沒有上限。
+     */
+    private static final long DEFAULT_MAX_RESPONSE_SIZE = -1;
+    /**
+     * 預設兩次進度回呼之間最少要傳輸的位元組數量，0表示不限制。
+     */
+    private static final long DEFAULT_PROGRESS_MIN_BYTES = 0;
+    /**
+     * 預設兩次進度回呼之間最少要經過的時間(毫秒)，0表示不限制。
+     */
+    private static final long DEFAULT_PROGRESS_INTERVAL = 0;
+    /**
+     * 各主機共用的頻寬限制。
+     */
+    private static final ConcurrentHashMap<String, BandwidthLimiter> HOST_BANDWIDTH_LIMITERS = new ConcurrentHashMap<>();
+    /**
+     * 各主機共用的並行數量限制。
+     */
+    private static final ConcurrentHashMap<String, ConcurrencyLimiter> HOST_CONCURRENCY_LIMITERS = new ConcurrentHashMap<>();
     /**
      * 緩衝空間大小。
      */
@@ -107,6 +156,32 @@ public abstract class MagicURLNetwork {
         }
     }
 
+    // -----類別變數-----
+    /**
+     * 預設的錯誤接收者，如果為null，表示不回報錯誤。
+     */
+    private static volatile ErrorSink defaultErrorSink = new AsyncErrorSink();
+    /**
+     * 所有需求共用的頻寬限制，如果為null，表示不限制。
+     */
+    private static volatile BandwidthLimiter globalBandwidthLimiter = null;
+    /**
+     * 所有HTTPS需求共用的主機名稱解析快取，如果為null，表示使用JVM的解析方式。
+     */
+    private static volatile HTTPSDNSCache dnsCache = null;
+    /**
+     * HTTPS連線到主機名稱的下一個IP位址之前等待的時間(毫秒)。
+     */
+    private static volatile int connectionAttemptDelay = DEFAULT_CONNECTION_ATTEMPT_DELAY;
+    /**
+     * 所有HTTPS連線共用的SSLSocketFactory，使用同一個物件才能重複使用連線池中的連線和TLS工作階段。
+     */
+    private static SSLSocketFactory anySSLSocketFactory = null;
+    /**
+     * 所有HTTPS連線共用的連線到主機名稱所有IP位址的SSLSocketFactory。
+     */
+    private static ResolvedSSLSocketFactory resolvedSSLSocketFactory = null;
+
     // -----類別介面-----
     /**
      * MagicURLNetwork開啟後的監聽者。
@@ -144,6 +219,32 @@ public abstract class MagicURLNetwork {
         public void onFinished(final JSONObject resultHeader, final Object result);
     }
 
+    /**
+     * MagicURLNetwork開啟後，接收各階段時間的監聽者。
+     */
+    public interface TimingListener {
+
+        /**
+         * 開啟結束，在NetworkListener的onFinished之後。
+         *
+         * @param timing 最後一次嘗試的各階段時間和傳輸量
+         */
+        public void onTiming(final RequestTiming timing);
+    }
+
+    /**
+     * 接收MagicURLNetwork發生的錯誤，用來取代直接輸出堆疊追蹤。
+     */
+    public interface ErrorSink {
+
+        /**
+         * 接收錯誤。這個方法會在發生錯誤的執行緒中被呼叫，不應該阻塞。
+         *
+         * @param cause 失敗原因
+         */
+        public void report(final FailureCause cause);
+    }
+
     // -----類別類別-----
     /**
      * 屬性(Property)所使用的鍵值。
@@ -217,6 +318,192 @@ public abstract class MagicURLNetwork {
     // -----類別列舉-----
 
     // -----類別方法-----
+    /**
+     * 取得預設的錯誤接收者。
+     *
+     * @return 傳回預設的錯誤接收者，如果為null，表示不回報錯誤
+     */
+    public static ErrorSink getDefaultErrorSink() {
+        return defaultErrorSink;
+    }
+
+    /**
+     * 設定預設的錯誤接收者，沒有設定錯誤接收者的MagicURLNetwork物件都會使用它。預設為非同步並限制速率的AsyncErrorSink。
+     *
+     * @param errorSink 傳入預設的錯誤接收者，如果為null，表示不回報錯誤
+     */
+    public static void setDefaultErrorSink(final ErrorSink errorSink) {
+        defaultErrorSink = errorSink;
+    }
+
+    /**
+     * 取得所有需求共用的頻寬限制。
+     *
+     * @return 傳回所有需求共用的頻寬限制，如果為null，表示不限制
+     */
+    public static BandwidthLimiter getGlobalBandwidthLimiter() {
+        return globalBandwidthLimiter;
+    }
+
+    /**
+     * 設定所有需求共用的頻寬限制，傳送和接收都會計算在內，會影響正在傳輸之後才開啟的需求。
+     *
+     * @param bandwidthLimiter 傳入所有需求共用的頻寬限制，如果為null，表示不限制
+     */
+    public static void setGlobalBandwidthLimiter(final BandwidthLimiter bandwidthLimiter) {
+        globalBandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * 取得某個主機共用的頻寬限制。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機共用的頻寬限制，如果為null，表示不限制
+     */
+    public static BandwidthLimiter getHostBandwidthLimiter(final String host) {
+        return HOST_BANDWIDTH_LIMITERS.get(host);
+    }
+
+    /**
+     * 設定某個主機共用的頻寬限制，傳送和接收都會計算在內，會影響正在傳輸之後才開啟的需求。
+     *
+     * @param host 傳入主機名稱
+     * @param bandwidthLimiter 傳入主機共用的頻寬限制，如果為null，表示不限制
+     */
+    public static void setHostBandwidthLimiter(final String host, final BandwidthLimiter bandwidthLimiter) {
+        if (bandwidthLimiter == null) {
+            HOST_BANDWIDTH_LIMITERS.remove(host);
+        } else {
+            HOST_BANDWIDTH_LIMITERS.put(host, bandwidthLimiter);
+        }
+    }
+
+    /**
+     * 取得所有HTTPS需求共用的主機名稱解析快取。
+     *
+     * @return 傳回主機名稱解析快取，如果為null，表示使用JVM的解析方式
+     */
+    public static HTTPSDNSCache getHTTPSDNSCache() {
+        return dnsCache;
+    }
+
+    /**
+     * 設定所有HTTPS需求共用的主機名稱解析快取。設定後，每次嘗試建立HTTPS連線前都會透過它解析一次主機名稱，快取中為解析失敗的主機名稱會直接失敗而不連線，連線時會連到它解析的IP位址。HttpsURLConnection在連線之前仍然會透過JVM解析一次主機名稱，所以JVM的解析(和它自己的快取)還是在連線的路徑上。一般的HTTP連線完全由JVM解析和連線，不使用這個快取。
+     *
+     * @param dnsCache 傳入主機名稱解析快取，如果為null，表示使用JVM的解析方式
+     */
+    public static void setHTTPSDNSCache(final HTTPSDNSCache dnsCache) {
+        MagicURLNetwork.dnsCache = dnsCache;
+    }
+
+    /**
+     * 取得HTTPS連線到主機名稱的下一個IP位址之前等待的時間。
+     *
+     * @return 傳回等待的時間(毫秒)，0表示依序連線
+     */
+    public static int getConnectionAttemptDelay() {
+        return connectionAttemptDelay;
+    }
+
+    /**
+     * 設定HTTPS連線到主機名稱的下一個IP位址之前等待的時間。主機名稱有多個IP位址時，會以Happy Eyeballs(RFC 8305)的方式錯開時間同時連線，最先連線成功的會被使用，其它的連線會被取消，第一個IP位址無法連線時不必等到連線逾時。一般的HTTP連線由JVM直接連線，不受影響。
+     *
+     * @param connectionAttemptDelay 傳入等待的時間(毫秒)，0表示依序連線，前一個IP位址連線失敗後才連線到下一個
+     */
+    public static void setConnectionAttemptDelay(final int connectionAttemptDelay) {
+        if (connectionAttemptDelay < 0) {
+            throw new RuntimeException("The connection attempt delay needs to be at least 0.");
+        }
+        MagicURLNetwork.connectionAttemptDelay = connectionAttemptDelay;
+    }
+
+    /**
+     * 預先建立連線並放入連線池中，讓之後對同一個主機的需求不必再解析主機名稱、建立TCP連線和進行TLS交握，使用預設的逾時時間。
+     *
+     * @param url 傳入URL字串，只會使用協定、主機名稱和連接埠
+     * @param count 傳入要同時建立的連線數量
+     * @return 傳回成功建立並放入連線池中的連線數量
+     * @see #prewarm(java.lang.String, int, int)
+     */
+    public static int prewarm(final String url, final int count) {
+        return prewarm(url, count, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * <p>
+     * 預先建立連線並放入連線池中，讓之後對同一個主機的需求不必再解析主機名稱、建立TCP連線和進行TLS交握。
+     * </p>
+     *
+     * <p>
+     * 會先解析主機名稱(HTTPS連線有設定主機名稱解析快取時透過它解析)，再同時建立多個連線、完成TLS交握後各向主機的根路徑(/)送出一個HEAD需求，讓連線回到連線池中，HTTPS的TLS工作階段也會被記下來以便之後的連線恢復使用。伺服器回應HEAD需求之後必須保持連線，連線才能留在連線池中；連線池中每個主機最多能保留的閒置連線數量由系統屬性http.maxConnections決定(預設為5)，閒置太久的連線會被JVM關閉。
+     * </p>
+     *
+     * @param url 傳入URL字串，只會使用協定、主機名稱和連接埠
+     * @param count 傳入要同時建立的連線數量
+     * @param timeout 傳入每個連線的逾時時間(毫秒)
+     * @return 傳回成功建立並放入連線池中的連線數量
+     */
+    public static int prewarm(final String url, final int count, final int timeout) {
+        if (count < 1) {
+            throw new RuntimeException("The count needs to be at least 1.");
+        }
+        if (timeout < 0) {
+            throw new RuntimeException("The timeout needs to be at least 0.");
+        }
+        final URL u;
+        try {
+            u = new URL(url);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+        final String protocol = u.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new RuntimeException("Only HTTP and HTTPS connections can be prewarmed.");
+        }
+        return ConnectionPrewarmer.prewarm(u, count, timeout);
+    }
+
+    /**
+     * 取得某個主機共用的並行數量限制。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機共用的並行數量限制，如果為null，表示不限制
+     */
+    public static ConcurrencyLimiter getHostConcurrencyLimiter(final String host) {
+        return HOST_CONCURRENCY_LIMITERS.get(host);
+    }
+
+    /**
+     * 設定某個主機共用的並行數量限制，沒有設定並行數量限制的需求都會使用它。
+     *
+     * @param host 傳入主機名稱
+     * @param concurrencyLimiter 傳入主機共用的並行數量限制，如果為null，表示不限制
+     */
+    public static void setHostConcurrencyLimiter(final String host, final ConcurrencyLimiter concurrencyLimiter) {
+        if (concurrencyLimiter == null) {
+            HOST_CONCURRENCY_LIMITERS.remove(host);
+        } else {
+            HOST_CONCURRENCY_LIMITERS.put(host, concurrencyLimiter);
+        }
+    }
+
+    /**
+     * 將錯誤交給錯誤接收者。錯誤接收者拋出的例外會被忽略。
+     *
+     * @param errorSink 傳入錯誤接收者，如果為null，表示不回報錯誤
+     * @param cause 傳入失敗原因
+     */
+    static void reportError(final ErrorSink errorSink, final FailureCause cause) {
+        if (errorSink == null) {
+            return;
+        }
+        try {
+            errorSink.report(cause);
+        } catch (final Exception ex) {
+            // 不影響需求
+        }
+    }
+
     /**
      * 對URL發出DELETE需求(Request)，常用於刪除指定URL(URI)的資源。
      *
@@ -349,6 +636,54 @@ public abstract class MagicURLNetwork {
         return new MagicGET(url);
     }
 
+    /**
+     * 取得所有連線存在記憶體中的回傳內容的總預算。
+     *
+     * @return 傳回所有連線存在記憶體中的回傳內容的總預算
+     */
+    public static long getGlobalMemoryBudget() {
+        return ResponseBuffer.getGlobalBudget();
+    }
+
+    /**
+     * 設定所有連線存在記憶體中的回傳內容的總預算。當正在接收的回傳內容加起來超過這個預算時，新寫入的內容會改存到暫存檔案中。
+     *
+     * @param budget 傳入所有連線存在記憶體中的回傳內容的總預算
+     */
+    public static void setGlobalMemoryBudget(final long budget) {
+        if (budget < 0) {
+            throw new RuntimeException("Memory budget needs to be at least 0.");
+        }
+        ResponseBuffer.setGlobalBudget(budget);
+    }
+
+    /**
+     * 取得所有連線目前存在記憶體中的回傳內容大小。
+     *
+     * @return 傳回所有連線目前存在記憶體中的回傳內容大小
+     */
+    public static long getGlobalMemoryUsage() {
+        return ResponseBuffer.getGlobalUsage();
+    }
+
+    /**
+     * 取得回傳內容的暫存檔案所在的目錄。
+     *
+     * @return 傳回回傳內容的暫存檔案所在的目錄，如果為null，表示使用系統的暫存目錄
+     */
+    public static File getSpillDirectory() {
+        return ResponseBuffer.getSpillDirectory();
+    }
+
+    /**
+     * 設定回傳內容的暫存檔案所在的目錄。
+     *
+     * @param directory 傳入回傳內容的暫存檔案所在的目錄，如果為null，表示使用系統的暫存目錄
+     */
+    public static void setSpillDirectory(final File directory) {
+        ResponseBuffer.setSpillDirectory(directory);
+    }
+
     /**
      * 將字串編碼成能在標頭上正常使用的字串。
      *
@@ -362,6 +697,17 @@ public abstract class MagicURLNetwork {
         return string.replaceAll("[\"\'\n]", "");
     }
 
+    /**
+     * 如果有記錄各階段時間，包裝輸入串流來計算接收量。
+     *
+     * @param in 傳入輸入串流
+     * @param t 傳入各階段時間，如果為null，表示沒有記錄
+     * @return 傳回輸入串流
+     */
+    private static InputStream wrapTimingInputStream(final InputStream in, final RequestTiming t) {
+        return t != null && in != null ? new RequestTiming.TimingInputStream(in, t) : in;
+    }
+
     // -----物件常數-----
     /**
      * 使用URL時要傳遞的參數。
@@ -375,10 +721,6 @@ public abstract class MagicURLNetwork {
      * 發出需求(Request)時要傳遞的Cookie。
      */
     private final HashMap<String, String> cookies = new HashMap<>();
-    /**
-     * 停滯時間計數器的同步鎖。
-     */
-    private final String sleepCounterLock = "sleepCounterLock";
 
     // -----物件變數-----
     /**
@@ -406,21 +748,45 @@ public abstract class MagicURLNetwork {
      */
     private boolean opening = false;
     /**
-     * 連線Timeout時間。
+     * 連線停滯的Timeout時間。
      */
     private int timeout = 0;
+    /**
+     * 建立連線的Timeout時間，如果為0，表示使用連線停滯的Timeout時間。
+     */
+    private int connectTimeout = 0;
+    /**
+     * 送出需求後等待回應的Timeout時間，如果為0，表示使用連線停滯的Timeout時間。
+     */
+    private int firstByteTimeout = 0;
+    /**
+     * 整個需求的Timeout時間，如果為0，表示沒有限制。
+     */
+    private int totalTimeout = 0;
     /**
      * 連線Timeout時間計數器。
      */
     private Thread timeoutTimer = null;
     /**
-     * 儲存連線停滯的時間單位數量。
+     * 目前的連線階段。
      */
-    private int sleepCounter = 0;
+    private volatile int phase = PHASE_CONNECTING;
+    /**
+     * 目前連線階段開始的奈秒時間。
+     */
+    private volatile long phaseStart = 0;
+    /**
+     * 最後一次傳送或接收資料的奈秒時間。
+     */
+    private volatile long lastActivity = 0;
     /**
      * 儲存是否正在嘗試斷開連線。
      */
-    private boolean attemptDisconnecting = false;
+    private volatile boolean attemptDisconnecting = false;
+    /**
+     * 正在排程器或並行限制器中排隊，或是正在等待重試、等待額外需求的執行緒，如果為null，表示沒有在等待。
+     */
+    private volatile Thread queuedThread = null;
     /**
      * 儲存開啟URL之後回傳的結果。
      */
@@ -437,52 +803,220 @@ public abstract class MagicURLNetwork {
      * 網路狀態的監聽者。
      */
     private NetworkListener listener;
+    /**
+     * 將監聽者的事件交給其它執行緒執行的分派器，如果為null，表示在開啟URL的執行緒中執行。
+     */
+    private ListenerDispatcher listenerDispatcher = null;
+    /**
+     * 這次開啟URL實際使用的監聽者。
+     */
+    private NetworkListener activeListener = null;
+    /**
+     * 錯誤接收者，如果為null，表示使用預設的錯誤接收者。
+     */
+    private ErrorSink errorSink = null;
+    /**
+     * 最後一次開啟URL失敗的原因，如果為null，表示沒有失敗。
+     */
+    private FailureCause failureCause = null;
+    /**
+     * 接收各階段時間的監聽者。
+     */
+    private TimingListener timingListener;
+    /**
+     * 是否記錄各階段時間。
+     */
+    private boolean timingEnabled = false;
+    /**
+     * 最後一次嘗試的各階段時間，如果為null，表示沒有記錄。
+     */
+    private RequestTiming timing = null;
+    /**
+     * 統計需求的註冊表，如果為null，表示不統計。
+     */
+    private MetricsRegistry metricsRegistry = null;
+    /**
+     * 這個需求的頻寬限制，如果為null，表示不限制。
+     */
+    private BandwidthLimiter bandwidthLimiter = null;
+    /**
+     * 這次開啟URL要遵守的所有頻寬限制，如果為null，表示不限制。
+     */
+    private BandwidthLimiter[] activeBandwidthLimiters = null;
+    /**
+     * 這個需求的並行數量限制，如果為null，表示使用主機共用的並行數量限制。
+     */
+    private ConcurrencyLimiter concurrencyLimiter = null;
+    /**
+     * 需求的排程器，如果為null，表示不排程。
+     */
+    private RequestScheduler requestScheduler = null;
+    /**
+     * 在排程器中的優先等級。
+     */
+    private RequestScheduler.Priority priority = RequestScheduler.Priority.NORMAL;
+    /**
+     * 在排程器中的租戶鍵值，如果為null，表示預設的租戶。
+     */
+    private String tenant = null;
+    /**
+     * 負載平衡器，如果為null，表示直接使用URL。
+     */
+    private LoadBalancer loadBalancer = null;
     /**
      * 是否要允許Response Code非2XX的HTTP連線。
      */
     private boolean acceptNot2XXHTTPResponseCode;
-
-    // -----建構子-----
     /**
-     * 建構子，傳入URL字串。
-     *
-     * @param url 傳入URL字串
+     * 存在記憶體中的回傳內容大小門檻值，超過時會改存到暫存檔案。
      */
-    public MagicURLNetwork(final String url) {
-        try {
-            init(new URL(url));
-        } catch (final Exception ex) {
-            throw new RuntimeException(ex.getMessage());
-        }
-    }
-
+    private long memoryThreshold;
     /**
-     * 建構子，傳入URL物件。
-     *
-     * @param url 傳入URL物件
+     * 回傳內容大小的上限，如果小於0，表示沒有上限。
      */
-    public MagicURLNetwork(final URL url) {
-        try {
-            init(url);
-        } catch (final Exception ex) {
-            throw new RuntimeException(ex.getMessage());
-        }
-    }
-
-    // -----物件方法-----
+    private long maxResponseSize;
     /**
-     * 初始化。
-     *
-     * @param url 傳入URL物件
-     * @throws Exception 如果初始化過程中出現問題，將拋出例外
+     * 兩次進度回呼之間最少要傳輸的位元組數量。
      */
-    private void init(final URL url) throws Exception {
-        //調整URL
-        final StringBuilder sbURL = new StringBuilder();
-        sbURL.append(url.getProtocol()).append("://").append(url.getAuthority()).append(url.getPath());
-
-        final URL modifyURL = new URL(sbURL.toString());
-        this.url = modifyURL;
+    private long progressMinBytes;
+    /**
+     * 兩次進度回呼之間最少要經過的時間(毫秒)。
+     */
+    private long progressInterval;
+    /**
+     * 目前的傳輸進度快照，供輪詢進度使用。三個值放在同一個不可變的物件中一起發布，輪詢時不會看到不同階段混在一起的值。
+     */
+    private volatile TransferProgress progress = new TransferProgress(false, 0, -1);
+    /**
+     * 上次回呼進度時是否正在接收。
+     */
+    private boolean reportedReceiving = false;
+    /**
+     * 上次回呼進度時的位元組數量，如果為-1，表示還沒有回呼過。
+     */
+    private long reportedBytes = -1;
+    /**
+     * 上次回呼進度的時間(奈秒時間)。
+     */
+    private long reportedTime = 0;
+    /**
+     * 是否有被省略，還沒有回呼的進度。
+     */
+    private boolean progressPending = false;
+    /**
+     * 儲存開啟URL之後回傳的結果是否被存到暫存檔案中。
+     */
+    private boolean resultSpilled = false;
+    /**
+     * 回應快取，如果為null，表示不使用快取。
+     */
+    private HTTPResponseCache responseCache = null;
+    /**
+     * 磁碟回應快取，如果為null，表示不使用磁碟快取。
+     */
+    private DiskResponseCache diskResponseCache = null;
+    /**
+     * 是否同步目標檔案。
+     */
+    private boolean syncTargetFile = false;
+    /**
+     * 需求合併器，如果為null，表示不合併需求。
+     */
+    private RequestCoalescer requestCoalescer = null;
+    /**
+     * 對沖需求的策略，如果為null，表示不對沖需求。
+     */
+    private HedgingPolicy hedgingPolicy = null;
+    /**
+     * 這個需求是否為額外送出的對沖需求。
+     */
+    private boolean hedgeRequest = false;
+    /**
+     * 重試的策略，如果為null，表示不重試。
+     */
+    private RetryPolicy retryPolicy = null;
+    /**
+     * 所有嘗試共用的期限(奈秒時間)，如果為0，表示沒有期限。
+     */
+    private volatile long deadline = 0;
+    /**
+     * 超過期限時的失敗原因。
+     */
+    private volatile String deadlineReason = null;
+    /**
+     * 這次嘗試逾時的原因，如果為null，表示沒有逾時。
+     */
+    private volatile String timeoutReason = null;
+    /**
+     * 這次嘗試收到的非2XX回應碼，如果為-1，表示沒有。
+     */
+    private int failedResponseCode = -1;
+    /**
+     * 這次嘗試收到的Retry-After標頭。
+     */
+    private String retryAfter = null;
+    /**
+     * 由這個需求實際送出，其它相同的需求正在等待的需求。
+     */
+    private RequestCoalescer.Flight leadingFlight = null;
+    /**
+     * 儲存開啟URL之後，伺服器是否回應內容沒有改變(304)。
+     */
+    private boolean resultNotModified = false;
+    /**
+     * 最後一次嘗試所使用的方法，用於JFR事件。
+     */
+    private String requestMethod = null;
+    /**
+     * 最後一次嘗試收到的回應碼，如果為-1，表示沒有收到，用於JFR事件。
+     */
+    private int lastResponseCode = -1;
+    /**
+     * 這次嘗試收到回應的時間(奈秒時間)，0表示還沒有收到回應。
+     */
+    private long respondedTime = 0;
+
+    // -----建構子-----
+    /**
+     * 建構子，傳入URL字串。
+     *
+     * @param url 傳入URL字串
+     */
+    public MagicURLNetwork(final String url) {
+        try {
+            init(new URL(url));
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * 建構子，傳入URL物件。
+     *
+     * @param url 傳入URL物件
+     */
+    public MagicURLNetwork(final URL url) {
+        try {
+            init(url);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    // -----物件方法-----
+    /**
+     * 初始化。
+     *
+     * @param url 傳入URL物件
+     * @throws Exception 如果初始化過程中出現問題，將拋出例外
+     */
+    private void init(final URL url) throws Exception {
+        //調整URL
+        final StringBuilder sbURL = new StringBuilder();
+        sbURL.append(url.getProtocol()).append("://").append(url.getAuthority()).append(url.getPath());
+
+        final URL modifyURL = new URL(sbURL.toString());
+        this.url = modifyURL;
 
         // 判別協定
         final String protocol = url.getProtocol();
@@ -512,7 +1046,14 @@ public abstract class MagicURLNetwork {
         // 使用預設值
         useDefaultUserAgent();
         useDefaultTimeout();
+        useDefaultConnectTimeout();
+        useDefaultFirstByteTimeout();
+        useDefaultTotalTimeout();
         useDefaultAcceptNot200HTTPResponseCode();
+        useDefaultMemoryThreshold();
+        useDefaultMaxResponseSize();
+        useDefaultProgressMinBytes();
+        useDefaultProgressInterval();
     }
 
     /**
@@ -940,7 +1481,7 @@ public abstract class MagicURLNetwork {
     }
 
     /**
-     * 取得逾時時間。
+     * 取得逾時時間，也就是連線停滯(沒有傳送或接收資料)的時間上限。
      *
      * @return 傳回逾時時間
      */
@@ -956,7 +1497,7 @@ public abstract class MagicURLNetwork {
     }
 
     /**
-     * 設定逾時時間。
+     * 設定逾時時間，也就是連線停滯(沒有傳送或接收資料)的時間上限。
      *
      * @param timeout 傳入逾時時間
      */
@@ -971,254 +1512,1143 @@ public abstract class MagicURLNetwork {
     }
 
     /**
-     * 取得開啟URL之後回傳的結果。
+     * 取得建立連線的逾時時間。
      *
-     * @return 傳回開啟URL之後回傳的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     * @return 傳回建立連線的逾時時間，如果為0，表示使用連線停滯的逾時時間
      */
-    public Object getResult() {
-        return result;
+    public int getConnectTimeout() {
+        return connectTimeout;
     }
 
     /**
-     * 取得開啟URL之後回傳的標頭。
-     *
-     * @return 傳回開啟URL之後回傳的標頭，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     * 使用預設建立連線的逾時設定，也就是使用連線停滯的逾時時間。
      */
-    public JSONObject getResultHeader() {
-        return resultHeader;
+    public void useDefaultConnectTimeout() {
+        setConnectTimeout(0);
     }
 
     /**
-     * 以字串的形式取得開啟URL之後的結果。
+     * 設定建立連線的逾時時間。
      *
-     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
-     * @throws RuntimeException 當結果不是字串的時候拋出例外
+     * @param connectTimeout 傳入建立連線的逾時時間，如果為0，表示使用連線停滯的逾時時間
      */
-    public String getResultAsString() throws RuntimeException {
-        if (result == null) {
-            return null;
+    public void setConnectTimeout(final int connectTimeout) {
+        if (connectTimeout < 0) {
+            throw new RuntimeException("Timout duration cannot be negative.");
         }
-        try {
-            return new String((byte[]) result, "UTF-8");
-        } catch (final Exception ex) {
-            throw new RuntimeException(ex.getMessage());
+        if (opening) {
+            throwOpeningException();
         }
+        this.connectTimeout = connectTimeout;
     }
 
     /**
-     * 以檔案的形式取得開啟URL之後的結果。
+     * 取得送出需求後等待回應的逾時時間。
      *
-     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
-     * @throws RuntimeException 當結果不是檔案的時候拋出例外
+     * @return 傳回送出需求後等待回應的逾時時間，如果為0，表示使用連線停滯的逾時時間
      */
-    public File getResultAsFile() throws RuntimeException {
-        if (result == null) {
-            return null;
-        }
-        return (File) result;
+    public int getFirstByteTimeout() {
+        return firstByteTimeout;
     }
 
     /**
-     * 取得目標檔案。
-     *
-     * @return 傳回目標檔案，如果不為null，則開啟URL的結果將會存到這個File物件所指的檔案中
+     * 使用預設等待回應的逾時設定，也就是使用連線停滯的逾時時間。
      */
-    public File getTargetFile() {
-        return targetFile;
+    public void useDefaultFirstByteTimeout() {
+        setFirstByteTimeout(0);
     }
 
     /**
-     * 設定目標檔案。
+     * 設定送出需求後等待回應的逾時時間。
      *
-     * @param targetFile 傳入目標檔案，如果不為null，則開啟URL的結果將會存到這個File物件所指的檔案中
+     * @param firstByteTimeout 傳入送出需求後等待回應的逾時時間，如果為0，表示使用連線停滯的逾時時間
      */
-    public void setTargetFile(final File targetFile) {
+    public void setFirstByteTimeout(final int firstByteTimeout) {
+        if (firstByteTimeout < 0) {
+            throw new RuntimeException("Timout duration cannot be negative.");
+        }
         if (opening) {
             throwOpeningException();
         }
-        this.targetFile = targetFile;
+        this.firstByteTimeout = firstByteTimeout;
     }
 
     /**
-     * 取得MagicURLNetwork開啟後的監聽者。
+     * 取得整個需求的逾時時間。
      *
-     * @return 傳回MagicURLNetwork開啟後的監聽者，如果沒有設定，傳回null
+     * @return 傳回整個需求的逾時時間，如果為0，表示沒有限制
      */
-    public NetworkListener getNetworkListener() {
-        return listener;
+    public int getTotalTimeout() {
+        return totalTimeout;
     }
 
     /**
-     * 設定MagicURLNetwork開啟後的監聽者。
+     * 使用預設整個需求的逾時設定，也就是沒有限制。
+     */
+    public void useDefaultTotalTimeout() {
+        setTotalTimeout(0);
+    }
+
+    /**
+     * 設定整個需求的逾時時間，從開啟URL時開始計算，包含重試。即使伺服器一直緩慢地傳送資料，超過這個時間也會中斷連線。
      *
-     * @param listener 傳入MagicURLNetwork開啟後的監聽者
+     * @param totalTimeout 傳入整個需求的逾時時間，如果為0，表示沒有限制
      */
-    public void setNetworkListener(final NetworkListener listener) {
+    public void setTotalTimeout(final int totalTimeout) {
+        if (totalTimeout < 0) {
+            throw new RuntimeException("Timout duration cannot be negative.");
+        }
         if (opening) {
             throwOpeningException();
         }
-        this.listener = listener;
+        this.totalTimeout = totalTimeout;
     }
 
     /**
-     * 使用預設值設定是否要允許Response Code非2XX的HTTP連線。
+     * 取得存在記憶體中的回傳內容大小門檻值。
      *
+     * @return 傳回存在記憶體中的回傳內容大小門檻值
      */
-    public void useDefaultAcceptNot200HTTPResponseCode() {
-        acceptNot2XXHTTPResponseCode = DEFAULT_ACCEPT_NOT_2XX_HTTP_RESPONSE_CODE;
+    public long getMemoryThreshold() {
+        return memoryThreshold;
     }
 
     /**
-     * 使用預設值設定是否要允許Response Code非2XX的HTTP連線。
-     *
+     * 使用預設的回傳內容大小門檻值設定。
      */
-    public void useDefaultAcceptNot2XXHTTPResponseCode() {
-        useDefaultAcceptNot200HTTPResponseCode();
+    public void useDefaultMemoryThreshold() {
+        setMemoryThreshold(DEFAULT_MEMORY_THRESHOLD);
     }
 
     /**
-     * 設定是否要允許Response Code非2XX的HTTP連線。
+     * 設定存在記憶體中的回傳內容大小門檻值。沒有目標檔案時，超過這個大小的回傳內容會改存到暫存檔案中。
      *
-     * @param acceptNot2XXHTTPResponseCode 傳入是否要允許Response Code非2XX的HTTP連線
+     * @param memoryThreshold 傳入存在記憶體中的回傳內容大小門檻值
      */
-    public void setAcceptNot200HTTPResponseCode(final boolean acceptNot2XXHTTPResponseCode) {
-        this.acceptNot2XXHTTPResponseCode = acceptNot2XXHTTPResponseCode;
+    public void setMemoryThreshold(final long memoryThreshold) {
+        if (memoryThreshold < 0) {
+            throw new RuntimeException("Memory threshold needs to be at least 0.");
+        }
+        if (opening) {
+            throwOpeningException();
+        }
+        this.memoryThreshold = memoryThreshold;
     }
 
     /**
-     * 設定是否要允許Response Code非2XX的HTTP連線。
+     * 取得回傳內容大小的上限。
      *
-     * @param acceptNot2XXHTTPResponseCode 傳入是否要允許Response Code非2XX的HTTP連線
+     * @return 傳回回傳內容大小的上限，如果小於0，表示沒有上限
      */
-    public void setAcceptNot2XXHTTPResponseCode(final boolean acceptNot2XXHTTPResponseCode) {
-        setAcceptNot200HTTPResponseCode(acceptNot2XXHTTPResponseCode);
+    public long getMaxResponseSize() {
+        return maxResponseSize;
     }
 
     /**
-     * 取得是否要允許Response Code非2XX的HTTP連線。
+     * 使用預設的回傳內容大小上限設定。
+     */
+    public void useDefaultMaxResponseSize() {
+        setMaxResponseSize(DEFAULT_MAX_RESPONSE_SIZE);
+    }
+
+    /**
+     * 設定回傳內容大小的上限。超過上限時會立刻中止傳輸，並視為失敗。
      *
-     * @return 傳回是否要允許Response Code非2XX的HTTP連線
+     * @param maxResponseSize 傳入回傳內容大小的上限，如果小於0，表示沒有上限
      */
-    public boolean isAcceptNot200HTTPResponseCode() {
-        return acceptNot2XXHTTPResponseCode;
+    public void setMaxResponseSize(final long maxResponseSize) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.maxResponseSize = maxResponseSize;
     }
 
     /**
-     * 取得是否要允許Response Code非2XX的HTTP連線。
+     * 取得兩次進度回呼之間最少要傳輸的位元組數量。
      *
-     * @return 傳回是否要允許Response Code非2XX的HTTP連線
+     * @return 傳回兩次進度回呼之間最少要傳輸的位元組數量，0表示不限制
      */
-    public boolean isAcceptNot2XXHTTPResponseCode() {
-        return isAcceptNot200HTTPResponseCode();
+    public long getProgressMinBytes() {
+        return progressMinBytes;
     }
 
     /**
-     * 嘗試關閉連線。
+     * 使用預設的兩次進度回呼之間最少要傳輸的位元組數量設定。
      */
-    public void attemptDisconnect() {
-        attemptDisconnecting = true;
-        stop();
+    public void useDefaultProgressMinBytes() {
+        setProgressMinBytes(DEFAULT_PROGRESS_MIN_BYTES);
     }
 
     /**
-     * 將Cookie中的資料串成一個字串。
+     * 設定兩次進度回呼之間最少要傳輸的位元組數量。和最少時間間隔都滿足時才會呼叫onRunning，傳送和接收切換時與傳輸結束時一定會呼叫。
      *
-     * @return 傳回串好的字串
+     * @param progressMinBytes 傳入兩次進度回呼之間最少要傳輸的位元組數量，0表示不限制
      */
-    protected String createCookiesString() {
-        final StringBuilder sb = new StringBuilder("");
-        synchronized (cookies) {
-            final Set<String> keys = cookies.keySet();
-            for (final String key : keys) {
-                final String cookie = cookies.get(key);
-                try {
-                    sb.append(URLEncoder.encode(key, "UTF-8")).append("=");
-                    sb.append(URLEncoder.encode(cookie, "UTF-8"));
-                    sb.append("; ");
-                } catch (final Exception ex) {
-                    //不可能執行到這裡
-                }
-            }
+    public void setProgressMinBytes(final long progressMinBytes) {
+        if (progressMinBytes < 0) {
+            throw new RuntimeException("Progress min bytes needs to be at least 0.");
         }
-        final int length = sb.length();
-        if (length > 0) {
-            sb.deleteCharAt(length - 2);
+        if (opening) {
+            throwOpeningException();
         }
-        return sb.toString();
+        this.progressMinBytes = progressMinBytes;
     }
 
     /**
-     * 將參數(parameter)中的資料串成一個字串(常用於GET)。
+     * 取得兩次進度回呼之間最少要經過的時間。
      *
-     * @return 傳回串好的字串
+     * @return 傳回兩次進度回呼之間最少要經過的時間(毫秒)，0表示不限制
      */
-    protected String createParametersString() {
-        final StringBuilder sb = new StringBuilder("");
-        synchronized (parameters) {
-            final Set<String> keys = parameters.keySet();
-            for (final String key : keys) {
-                final Body body = parameters.get(key);
-                final BodyType bodyType = body.getBodyType();
-                try {
-                    if (bodyType == BodyType.ARRAY) {
-                        final Body[] bodyArray = (Body[]) body.getSource();
-                        for (final Body b : bodyArray) {
-                            sb.append(URLEncoder.encode(key.concat("[]"), "UTF-8")).append("=");
-                            sb.append(URLEncoder.encode(b.toString(), "UTF-8"));
-                            sb.append("&");
-                        }
-                    } else {
-                        sb.append(URLEncoder.encode(key, "UTF-8")).append("=");
-                        sb.append(URLEncoder.encode(body.toString(), "UTF-8"));
-                        sb.append("&");
-                    }
-                } catch (final Exception ex) {
-                    //不可能執行到這裡
-                }
-            }
-        }
-        final int length = sb.length();
-        if (length > 0) {
-            sb.deleteCharAt(length - 1);
-        }
-        return sb.toString();
+    public long getProgressInterval() {
+        return progressInterval;
     }
 
     /**
-     * 重設停滯計數器。
+     * 使用預設的兩次進度回呼之間最少要經過的時間設定。
      */
-    protected void resetSleepCounter() {
-        synchronized (sleepCounterLock) {
-            sleepCounter = 0;
-        }
+    public void useDefaultProgressInterval() {
+        setProgressInterval(DEFAULT_PROGRESS_INTERVAL);
     }
 
     /**
-     * 判斷參數中是否有指定的參數資料類型。
+     * 設定兩次進度回呼之間最少要經過的時間。和最少位元組數量都滿足時才會呼叫onRunning，傳送和接收切換時與傳輸結束時一定會呼叫。
      *
-     * @param types 傳入指定的參數資料類型
-     * @return 傳回參數中是否有檔案資料
+     * @param progressInterval 傳入兩次進度回呼之間最少要經過的時間(毫秒)，0表示不限制
      */
-    protected boolean hasParameterType(final BodyType... types) {
-        if (types == null || types.length == 0) {
-            return false;
+    public void setProgressInterval(final long progressInterval) {
+        if (progressInterval < 0) {
+            throw new RuntimeException("Progress interval needs to be at least 0.");
         }
-        final HashSet<BodyType> typeSet = new HashSet<>();
-        for (final BodyType type : types) {
-            typeSet.add(type);
+        if (opening) {
+            throwOpeningException();
         }
-        synchronized (parameters) {
-            final Set<String> keys = parameters.keySet();
-            for (final String key : keys) {
-                final Body body = parameters.get(key);
-                final BodyType type = body.getBodyType();
-                if (typeSet.contains(type)) {
-                    return true;
-                }
-                if (type == BodyType.ARRAY) {
-                    final Body[] bodyArray = (Body[]) body.getSource();
-                    for (final Body b : bodyArray) {
-                        final BodyType t = b.getBodyType();
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * 取得目前的傳輸進度，可以在其它執行緒中輪詢，不需要使用監聽者。
+     *
+     * @return 傳回目前的傳輸進度
+     */
+    public TransferProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * 取得開啟URL之後回傳的結果。
+     *
+     * @return 傳回開啟URL之後回傳的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功。回傳內容存在記憶體中時為位元組陣列，存到目標檔案或暫存檔案中時為File物件，由磁碟回應快取映射到記憶體時為唯讀的ByteBuffer物件
+     */
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * 取得開啟URL之後回傳的結果是否因為太大而被存到暫存檔案中。暫存檔案會在下一次開啟URL時被刪除，不再使用時也可以自行刪除。
+     *
+     * @return 傳回開啟URL之後回傳的結果是否被存到暫存檔案中
+     */
+    public boolean isResultSpilled() {
+        return resultSpilled;
+    }
+
+    /**
+     * 取得開啟URL之後，伺服器是否回應內容沒有改變(304)，而使用了快取或是原本的目標檔案。
+     *
+     * @return 傳回伺服器是否回應內容沒有改變
+     */
+    public boolean isResultNotModified() {
+        return resultNotModified;
+    }
+
+    /**
+     * 取得開啟URL之後回傳的標頭。
+     *
+     * @return 傳回開啟URL之後回傳的標頭，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     */
+    public JSONObject getResultHeader() {
+        return resultHeader;
+    }
+
+    /**
+     * 以字串的形式取得開啟URL之後的結果。
+     *
+     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     * @throws RuntimeException 當結果不是字串的時候拋出例外
+     */
+    public String getResultAsString() throws RuntimeException {
+        final byte[] data = getResultAsBytes();
+        if (data == null) {
+            return null;
+        }
+        try {
+            return new String(data, "UTF-8");
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * 以位元組陣列的形式取得開啟URL之後的結果。如果結果存在檔案中，會讀取整個檔案。
+     *
+     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     * @throws RuntimeException 當結果無法讀取的時候拋出例外
+     */
+    public byte[] getResultAsBytes() throws RuntimeException {
+        if (result == null) {
+            return null;
+        }
+        if (result instanceof File) {
+            try {
+                return Files.readAllBytes(((File) result).toPath());
+            } catch (final Exception ex) {
+                throw new RuntimeException(ex.getMessage());
+            }
+        }
+        if (result instanceof ByteBuffer) {
+            final ByteBuffer buffer = ((ByteBuffer) result).duplicate();
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
+        return (byte[]) result;
+    }
+
+    /**
+     * 以輸入串流的形式取得開啟URL之後的結果，無論結果存在記憶體或是檔案中都不需要整個讀進記憶體。
+     *
+     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功
+     * @throws RuntimeException 當結果無法讀取的時候拋出例外
+     */
+    public InputStream getResultAsInputStream() throws RuntimeException {
+        if (result == null) {
+            return null;
+        }
+        if (result instanceof File) {
+            try {
+                return new FileInputStream((File) result);
+            } catch (final Exception ex) {
+                throw new RuntimeException(ex.getMessage());
+            }
+        }
+        if (result instanceof ByteBuffer) {
+            final ByteBuffer buffer = ((ByteBuffer) result).duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    final int n = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+        return new ByteArrayInputStream((byte[]) result);
+    }
+
+    /**
+     * 以檔案的形式取得開啟URL之後的結果。
+     *
+     * @return 傳回開啟URL之後的結果，如果傳回null，表示URL還沒有開啟，或是URL沒有開啟成功。如果結果被存到暫存檔案中，會傳回暫存檔案
+     * @throws RuntimeException 當結果不是檔案的時候拋出例外
+     */
+    public File getResultAsFile() throws RuntimeException {
+        if (result == null) {
+            return null;
+        }
+        return (File) result;
+    }
+
+    /**
+     * 取得目標檔案。
+     *
+     * @return 傳回目標檔案，如果不為null，則開啟URL的結果將會存到這個File物件所指的檔案中
+     */
+    public File getTargetFile() {
+        return targetFile;
+    }
+
+    /**
+     * 設定目標檔案。
+     *
+     * @param targetFile 傳入目標檔案，如果不為null，則開啟URL的結果將會存到這個File物件所指的檔案中
+     */
+    public void setTargetFile(final File targetFile) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.targetFile = targetFile;
+    }
+
+    /**
+     * 取得是否同步目標檔案。
+     *
+     * @return 傳回是否同步目標檔案
+     */
+    public boolean isSyncTargetFile() {
+        return syncTargetFile;
+    }
+
+    /**
+     * <p>
+     * 設定是否同步目標檔案。只有支援快取的需求(例如GET)才能使用。
+     * </p>
+     *
+     * <p>
+     * 同步時，如果目標檔案已經存在，會以目標檔案的修改時間送出If-Modified-Since，並以上次儲存的ETag送出If-None-Match。伺服器回應304時，不會變動目標檔案，直接視為成功；否則新的內容會先存到同一個目錄的暫存檔案中，完成後才以不可分割的方式改名成目標檔案，並將檔案的修改時間設為回應的Last-Modified。ETag會存在目標檔案所在目錄中名為「.檔名.etag」的檔案中。
+     * </p>
+     *
+     * @param syncTargetFile 傳入是否同步目標檔案
+     */
+    public void setSyncTargetFile(final boolean syncTargetFile) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.syncTargetFile = syncTargetFile;
+    }
+
+    /**
+     * 取得回應快取。
+     *
+     * @return 傳回回應快取，如果為null，表示不使用快取
+     */
+    public HTTPResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * 設定回應快取。只有支援快取的需求(例如GET)，而且沒有設定目標檔案時才會使用快取。
+     *
+     * @param responseCache 傳入回應快取，如果為null，表示不使用快取
+     */
+    public void setResponseCache(final HTTPResponseCache responseCache) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * 取得需求合併器。
+     *
+     * @return 傳回需求合併器，如果為null，表示不合併需求
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * 設定需求合併器。只有支援合併的需求(例如GET、HEAD)，而且沒有設定目標檔案時才會合併。
+     *
+     * @param requestCoalescer 傳入需求合併器，如果為null，表示不合併需求
+     */
+    public void setRequestCoalescer(final RequestCoalescer requestCoalescer) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * 取得重試的策略。
+     *
+     * @return 傳回重試的策略，如果為null，表示不重試
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * 設定重試的策略。只有冪等的需求(例如GET、HEAD、PUT、DELETE)才會重試。
+     *
+     * @param retryPolicy 傳入重試的策略，如果為null，表示不重試
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * 取得對沖需求的策略。
+     *
+     * @return 傳回對沖需求的策略，如果為null，表示不對沖需求
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * 設定對沖需求的策略。只有支援對沖的需求(例如GET、HEAD)，而且沒有設定目標檔案時才會對沖。
+     *
+     * @param hedgingPolicy 傳入對沖需求的策略，如果為null，表示不對沖需求
+     */
+    public void setHedgingPolicy(final HedgingPolicy hedgingPolicy) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * 取得磁碟回應快取。
+     *
+     * @return 傳回磁碟回應快取，如果為null，表示不使用磁碟快取
+     */
+    public DiskResponseCache getDiskResponseCache() {
+        return diskResponseCache;
+    }
+
+    /**
+     * 設定磁碟回應快取。只有支援快取的需求(例如GET)才會使用快取。如果同時有設定回應快取，會先使用記憶體中的回應快取。
+     *
+     * @param diskResponseCache 傳入磁碟回應快取，如果為null，表示不使用磁碟快取
+     */
+    public void setDiskResponseCache(final DiskResponseCache diskResponseCache) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.diskResponseCache = diskResponseCache;
+    }
+
+    /**
+     * 取得MagicURLNetwork開啟後的監聽者。
+     *
+     * @return 傳回MagicURLNetwork開啟後的監聽者，如果沒有設定，傳回null
+     */
+    public NetworkListener getNetworkListener() {
+        return listener;
+    }
+
+    /**
+     * 設定MagicURLNetwork開啟後的監聽者。
+     *
+     * @param listener 傳入MagicURLNetwork開啟後的監聽者
+     */
+    public void setNetworkListener(final NetworkListener listener) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * 取得錯誤接收者。
+     *
+     * @return 傳回錯誤接收者，如果為null，表示使用預設的錯誤接收者
+     */
+    public ErrorSink getErrorSink() {
+        return errorSink;
+    }
+
+    /**
+     * 設定錯誤接收者。
+     *
+     * @param errorSink 傳入錯誤接收者，如果為null，表示使用預設的錯誤接收者
+     */
+    public void setErrorSink(final ErrorSink errorSink) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.errorSink = errorSink;
+    }
+
+    /**
+     * 取得最後一次開啟URL失敗的原因。
+     *
+     * @return 傳回失敗的原因，如果為null，表示沒有失敗或是還沒有開啟
+     */
+    public FailureCause getFailureCause() {
+        return failureCause;
+    }
+
+    /**
+     * 取得這次開啟URL要遵守的所有頻寬限制。
+     *
+     * @return 傳回所有頻寬限制，如果為null，表示不限制
+     */
+    private BandwidthLimiter[] createActiveBandwidthLimiters() {
+        final BandwidthLimiter hostLimiter = HOST_BANDWIDTH_LIMITERS.isEmpty() ? null : HOST_BANDWIDTH_LIMITERS.get(url.getHost());
+        final BandwidthLimiter globalLimiter = globalBandwidthLimiter;
+        if (bandwidthLimiter == null && hostLimiter == null && globalLimiter == null) {
+            return null;
+        }
+        final ArrayList<BandwidthLimiter> limiters = new ArrayList<>(3);
+        if (bandwidthLimiter != null) {
+            limiters.add(bandwidthLimiter);
+        }
+        if (hostLimiter != null) {
+            limiters.add(hostLimiter);
+        }
+        if (globalLimiter != null) {
+            limiters.add(globalLimiter);
+        }
+        return limiters.toArray(new BandwidthLimiter[limiters.size()]);
+    }
+
+    /**
+     * 將錯誤交給這個物件使用的錯誤接收者。
+     *
+     * @param kind 傳入失敗的種類
+     * @param message 傳入失敗訊息
+     * @param ex 傳入造成失敗的例外
+     */
+    void reportError(final FailureCause.Kind kind, final String message, final Throwable ex) {
+        final ErrorSink sink = errorSink != null ? errorSink : defaultErrorSink;
+        if (sink != null) {
+            reportError(sink, new FailureCause(kind, message, url.toString(), 0, -1, ex));
+        }
+    }
+
+    /**
+     * 取得執行監聽者事件的Executor。
+     *
+     * @return 傳回執行監聽者事件的Executor，如果為null，表示在開啟URL的執行緒中執行
+     */
+    public Executor getListenerExecutor() {
+        return listenerDispatcher == null ? null : listenerDispatcher.getExecutor();
+    }
+
+    /**
+     * 設定執行監聽者事件的Executor。設定之後，監聽者的事件會經過固定大小的佇列交給Executor依序執行，傳輸不會等待監聽者；連續的進度事件只會保留最新的一個，onStarted、onFailed和onFinished的順序不變。open方法傳回時，監聽者的事件可能還沒有執行完畢。
+     *
+     * @param listenerExecutor 傳入執行監聽者事件的Executor，如果為null，表示在開啟URL的執行緒中執行
+     */
+    public void setListenerExecutor(final Executor listenerExecutor) {
+        if (opening) {
+            throwOpeningException();
+        }
+        if (listenerExecutor == null) {
+            listenerDispatcher = null;
+        } else if (listenerDispatcher == null || listenerDispatcher.getExecutor() != listenerExecutor) {
+            listenerDispatcher = new ListenerDispatcher(listenerExecutor, this);
+        }
+    }
+
+    /**
+     * 取得接收各階段時間的監聽者。
+     *
+     * @return 傳回接收各階段時間的監聽者
+     */
+    public TimingListener getTimingListener() {
+        return timingListener;
+    }
+
+    /**
+     * 設定接收各階段時間的監聽者。有設定監聽者時，會自動記錄各階段時間。
+     *
+     * @param timingListener 傳入接收各階段時間的監聽者
+     */
+    public void setTimingListener(final TimingListener timingListener) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.timingListener = timingListener;
+    }
+
+    /**
+     * 取得是否記錄各階段時間。
+     *
+     * @return 傳回是否記錄各階段時間
+     */
+    public boolean isTimingEnabled() {
+        return timingEnabled;
+    }
+
+    /**
+     * 設定是否記錄各階段時間。沒有記錄也沒有監聽者時，不會產生額外的物件。
+     *
+     * @param timingEnabled 傳入是否記錄各階段時間
+     */
+    public void setTimingEnabled(final boolean timingEnabled) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.timingEnabled = timingEnabled;
+    }
+
+    /**
+     * 取得最後一次開啟URL時，最後一次嘗試的各階段時間。
+     *
+     * @return 傳回各階段時間，如果為null，表示沒有記錄
+     */
+    public RequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * 取得統計需求的註冊表。
+     *
+     * @return 傳回統計需求的註冊表，如果為null，表示不統計
+     */
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * 設定統計需求的註冊表。每次開啟URL結束時，會依照主機名稱和需求的類別紀錄延遲時間、是否失敗和傳輸量。
+     *
+     * @param metricsRegistry 傳入統計需求的註冊表，如果為null，表示不統計
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * 取得這個需求的頻寬限制。
+     *
+     * @return 傳回這個需求的頻寬限制，如果為null，表示不限制
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * 設定這個需求的頻寬限制。同一個BandwidthLimiter物件可以被多個需求共用；主機和全域的頻寬限制也會同時生效。等待頻寬的時間不會被當作傳輸停滯。
+     *
+     * @param bandwidthLimiter 傳入這個需求的頻寬限制，如果為null，表示不限制
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter bandwidthLimiter) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * 取得這個需求的並行數量限制。
+     *
+     * @return 傳回這個需求的並行數量限制，如果為null，表示使用主機共用的並行數量限制
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * 設定這個需求的並行數量限制，通常會讓連到同一個後端的需求共用同一個ConcurrencyLimiter物件。每次嘗試建立連線前都要取得許可，被拒絕時會以REJECTED的失敗原因結束，不會重試。
+     *
+     * @param concurrencyLimiter 傳入這個需求的並行數量限制，如果為null，表示使用主機共用的並行數量限制
+     */
+    public void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * 取得需求的排程器。
+     *
+     * @return 傳回需求的排程器，如果為null，表示不排程
+     */
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * 設定需求的排程器。每次嘗試建立連線前都要在排程器中排隊，排隊時超過期限或是佇列已滿時，會以REJECTED的失敗原因結束，不會重試。
+     *
+     * @param requestScheduler 傳入需求的排程器，如果為null，表示不排程
+     */
+    public void setRequestScheduler(final RequestScheduler requestScheduler) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.requestScheduler = requestScheduler;
+    }
+
+    /**
+     * 取得在排程器中的優先等級。
+     *
+     * @return 傳回在排程器中的優先等級
+     */
+    public RequestScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * 設定在排程器中的優先等級，預設為NORMAL。
+     *
+     * @param priority 傳入在排程器中的優先等級
+     */
+    public void setPriority(final RequestScheduler.Priority priority) {
+        if (opening) {
+            throwOpeningException();
+        }
+        if (priority == null) {
+            throw new RuntimeException("Null priority.");
+        }
+        this.priority = priority;
+    }
+
+    /**
+     * 取得在排程器中的租戶鍵值。
+     *
+     * @return 傳回在排程器中的租戶鍵值，如果為null，表示預設的租戶
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * 設定在排程器中的租戶鍵值，相同優先等級的需求會依照租戶的權重公平地分配名額。
+     *
+     * @param tenant 傳入在排程器中的租戶鍵值，如果為null，表示預設的租戶
+     */
+    public void setTenant(final String tenant) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.tenant = tenant;
+    }
+
+    /**
+     * 取得負載平衡器。
+     *
+     * @return 傳回負載平衡器，如果為null，表示直接使用URL
+     */
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    /**
+     * 設定負載平衡器。URL以負載平衡器的其中一個基本URL開頭時，每次嘗試都會選擇一個端點，並把URL的開頭換成端點的基本URL，所以重試可能會使用不同的端點。
+     *
+     * @param loadBalancer 傳入負載平衡器，如果為null，表示直接使用URL
+     */
+    public void setLoadBalancer(final LoadBalancer loadBalancer) {
+        if (opening) {
+            throwOpeningException();
+        }
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * 使用預設值設定是否要允許Response Code非2XX的HTTP連線。
+     *
+     */
+    public void useDefaultAcceptNot200HTTPResponseCode() {
+        acceptNot2XXHTTPResponseCode = DEFAULT_ACCEPT_NOT_2XX_HTTP_RESPONSE_CODE;
+    }
+
+    /**
+     * 使用預設值設定是否要允許Response Code非2XX的HTTP連線。
+     *
+     */
+    public void useDefaultAcceptNot2XXHTTPResponseCode() {
+        useDefaultAcceptNot200HTTPResponseCode();
+    }
+
+    /**
+     * 設定是否要允許Response Code非2XX的HTTP連線。
+     *
+     * @param acceptNot2XXHTTPResponseCode 傳入是否要允許Response Code非2XX的HTTP連線
+     */
+    public void setAcceptNot200HTTPResponseCode(final boolean acceptNot2XXHTTPResponseCode) {
+        this.acceptNot2XXHTTPResponseCode = acceptNot2XXHTTPResponseCode;
+    }
+
+    /**
+     * 設定是否要允許Response Code非2XX的HTTP連線。
+     *
+     * @param acceptNot2XXHTTPResponseCode 傳入是否要允許Response Code非2XX的HTTP連線
+     */
+    public void setAcceptNot2XXHTTPResponseCode(final boolean acceptNot2XXHTTPResponseCode) {
+        setAcceptNot200HTTPResponseCode(acceptNot2XXHTTPResponseCode);
+    }
+
+    /**
+     * 取得是否要允許Response Code非2XX的HTTP連線。
+     *
+     * @return 傳回是否要允許Response Code非2XX的HTTP連線
+     */
+    public boolean isAcceptNot200HTTPResponseCode() {
+        return acceptNot2XXHTTPResponseCode;
+    }
+
+    /**
+     * 取得是否要允許Response Code非2XX的HTTP連線。
+     *
+     * @return 傳回是否要允許Response Code非2XX的HTTP連線
+     */
+    public boolean isAcceptNot2XXHTTPResponseCode() {
+        return isAcceptNot200HTTPResponseCode();
+    }
+
+    /**
+     * 嘗試關閉連線。
+     */
+    public void attemptDisconnect() {
+        attemptDisconnecting = true;
+        final Thread queued = queuedThread;
+        if (queued != null) {
+            // 讓正在排隊或等待重試的需求立刻離開
+            LockSupport.unpark(queued);
+        }
+        stop();
+    }
+
+    /**
+     * 取得是否正在嘗試關閉連線。
+     *
+     * @return 傳回是否正在嘗試關閉連線
+     */
+    boolean isAttemptDisconnecting() {
+        return attemptDisconnecting;
+    }
+
+    /**
+     * 將Cookie中的資料串成一個字串。
+     *
+     * @return 傳回串好的字串
+     */
+    protected String createCookiesString() {
+        final StringBuilder sb = new StringBuilder("");
+        synchronized (cookies) {
+            final Set<String> keys = cookies.keySet();
+            for (final String key : keys) {
+                final String cookie = cookies.get(key);
+                try {
+                    sb.append(URLEncoder.encode(key, "UTF-8")).append("=");
+                    sb.append(URLEncoder.encode(cookie, "UTF-8"));
+                    sb.append("; ");
+                } catch (final Exception ex) {
+                    //不可能執行到這裡
+                }
+            }
+        }
+        final int length = sb.length();
+        if (length > 0) {
+            sb.deleteCharAt(length - 2);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 將參數(parameter)中的資料串成一個字串(常用於GET)。串流和ByteBuffer的資料無法表示成參數字串，因此不被接受。
+     *
+     * @return 傳回串好的字串
+     */
+    protected String createParametersString() {
+        if (hasParameterType(BodyType.INPUT_STREAM, BodyType.BYTE_BUFFER)) {
+            throw new RuntimeException("Stream and buffer bodies cannot be sent as URL parameters.");
+        }
+        final StringBuilder sb = new StringBuilder("");
+        synchronized (parameters) {
+            final Set<String> keys = parameters.keySet();
+            for (final String key : keys) {
+                final Body body = parameters.get(key);
+                final BodyType bodyType = body.getBodyType();
+                try {
+                    if (bodyType == BodyType.ARRAY) {
+                        final Body[] bodyArray = (Body[]) body.getSource();
+                        for (final Body b : bodyArray) {
+                            sb.append(URLEncoder.encode(key.concat("[]"), "UTF-8")).append("=");
+                            sb.append(URLEncoder.encode(b.toString(), "UTF-8"));
+                            sb.append("&");
+                        }
+                    } else {
+                        sb.append(URLEncoder.encode(key, "UTF-8")).append("=");
+                        sb.append(URLEncoder.encode(body.toString(), "UTF-8"));
+                        sb.append("&");
+                    }
+                } catch (final Exception ex) {
+                    //不可能執行到這裡
+                }
+            }
+        }
+        final int length = sb.length();
+        if (length > 0) {
+            sb.deleteCharAt(length - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 判斷例外是否由Socket的逾時造成。
+     *
+     * @param ex 傳入例外
+     * @return 傳回例外是否由Socket的逾時造成
+     */
+    private static boolean isTimeout(final Throwable ex) {
+        Throwable t = ex;
+        while (t != null) {
+            if (t instanceof SocketTimeoutException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 讓逾時時間不超過期限剩下的時間。
+     *
+     * @param timeout 傳入逾時時間(毫秒)
+     * @return 傳回調整後的逾時時間(毫秒)
+     */
+    private int capTimeout(final int timeout) {
+        if (deadline == 0) {
+            return timeout;
+        }
+        return (int) Math.max(1, Math.min(timeout, (deadline - System.nanoTime()) / 1000000));
+    }
+
+    /**
+     * 進入新的連線階段，並讓計時器重新計算期限。
+     *
+     * @param newPhase 傳入新的連線階段
+     */
+    private void enterPhase(final int newPhase) {
+        final long now = System.nanoTime();
+        phaseStart = now;
+        lastActivity = now;
+        phase = newPhase;
+        final Thread timer = timeoutTimer;
+        if (timer != null) {
+            LockSupport.unpark(timer);
+        }
+    }
+
+    /**
+     * 重設停滯計數器，在每次傳送或接收資料時呼叫。
+     */
+    protected void resetSleepCounter() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * 依照頻寬限制等待，在每次傳送或接收資料之後呼叫。等待的時間不會被當作傳輸停滯。
+     *
+     * @param bytes 傳入這次傳送或接收的位元組數量
+     */
+    protected void throttle(final int bytes) {
+        final BandwidthLimiter[] limiters = activeBandwidthLimiters;
+        if (limiters == null || bytes <= 0) {
+            return;
+        }
+        long wait = 0;
+        for (final BandwidthLimiter limiter : limiters) {
+            wait = Math.max(wait, limiter.reserve(bytes));
+        }
+        if (wait <= 0) {
+            return;
+        }
+        // 讓逾時計時器把等待的時間當作有活動
+        lastActivity = System.nanoTime() + wait;
+        final RequestTiming t = timing;
+        if (t != null) {
+            t.throttleNanos += wait;
+        }
+        try {
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        resetSleepCounter();
+    }
+
+    /**
+     * 回報傳輸進度，在每次傳送或接收資料之後呼叫。進度會立刻更新到可以輪詢的快照中，但只有在超過最少位元組數量和最少時間間隔時才會呼叫監聽者的onRunning。
+     *
+     * @param receiving 傳入是否正在接收，否則為傳送
+     * @param currentBytes 傳入目前已傳送和接收的位元組數量
+     * @param totalBytes 傳入總共需傳送和接收的位元組數量，如果為-1，表示無法取得正確的數量
+     */
+    protected void reportProgress(final boolean receiving, final long currentBytes, final long totalBytes) {
+        if (progressPending && receiving != reportedReceiving) {
+            // 切換傳送和接收之前，先回呼被省略的進度
+            flushProgress();
+        }
+        progress = new TransferProgress(receiving, currentBytes, totalBytes);
+        if (activeListener == null) {
+            return;
+        }
+        final long now = progressInterval > 0 ? System.nanoTime() : 0;
+        if (reportedBytes >= 0 && receiving == reportedReceiving && currentBytes != totalBytes) {
+            if (currentBytes - reportedBytes < progressMinBytes || now - reportedTime < progressInterval * 1000000L) {
+                // 省略這次的回呼
+                progressPending = true;
+                return;
+            }
+        }
+        deliverProgress(receiving, currentBytes, totalBytes, now);
+    }
+
+    /**
+     * 如果有被省略的進度，立刻回呼最新的進度。
+     */
+    private void flushProgress() {
+        if (progressPending) {
+            final TransferProgress p = progress;
+            deliverProgress(p.isReceiving(), p.getCurrentBytes(), p.getTotalBytes(), System.nanoTime());
+        }
+    }
+
+    /**
+     * 呼叫監聽者的onRunning。
+     *
+     * @param receiving 傳入是否正在接收，否則為傳送
+     * @param currentBytes 傳入目前已傳送和接收的位元組數量
+     * @param totalBytes 傳入總共需傳送和接收的位元組數量
+     * @param now 傳入目前的時間(奈秒時間)
+     */
+    private void deliverProgress(final boolean receiving, final long currentBytes, final long totalBytes, final long now) {
+        progressPending = false;
+        reportedReceiving = receiving;
+        reportedBytes = currentBytes;
+        reportedTime = now;
+        if (activeListener != null) {
+            try {
+                activeListener.onRunning(receiving, currentBytes, totalBytes);
+            } catch (final Exception ex) {
+                reportError(FailureCause.Kind.LISTENER, "NetworkListener.onRunning threw an exception.", ex);
+            }
+        }
+    }
+
+    /**
+     * 判斷參數中是否有指定的參數資料類型。
+     *
+     * @param types 傳入指定的參數資料類型
+     * @return 傳回參數中是否有檔案資料
+     */
+    protected boolean hasParameterType(final BodyType... types) {
+        if (types == null || types.length == 0) {
+            return false;
+        }
+        final HashSet<BodyType> typeSet = new HashSet<>();
+        for (final BodyType type : types) {
+            typeSet.add(type);
+        }
+        synchronized (parameters) {
+            final Set<String> keys = parameters.keySet();
+            for (final String key : keys) {
+                final Body body = parameters.get(key);
+                final BodyType type = body.getBodyType();
+                if (typeSet.contains(type)) {
+                    return true;
+                }
+                if (type == BodyType.ARRAY) {
+                    final Body[] bodyArray = (Body[]) body.getSource();
+                    for (final Body b : bodyArray) {
+                        final BodyType t = b.getBodyType();
                         if (typeSet.contains(t)) {
                             return true;
                         }
@@ -1229,6 +2659,38 @@ public abstract class MagicURLNetwork {
         return false;
     }
 
+    /**
+     * 建立回應快取的鍵值，由需求方法、包含參數的URL，以及回應快取指定的標頭組成。URL使用原本的URL而不是實際連線的端點，送到不同端點的相同需求會有相同的鍵值。
+     *
+     * @param keyHeaders 傳入要加入快取鍵值的標頭名稱
+     * @return 傳回快取的鍵值
+     */
+    private String createCacheKey(final String[] keyHeaders) {
+        final StringBuilder sb = new StringBuilder();
+        if (conn instanceof HttpURLConnection) {
+            sb.append(((HttpURLConnection) conn).getRequestMethod());
+        } else {
+            sb.append(conn.getURL().getProtocol());
+        }
+        sb.append(' ').append(url.toString()).append('?').append(createParametersString());
+        for (final String header : keyHeaders) {
+            sb.append('\n').append(header).append(':');
+            if (header.equalsIgnoreCase(PropertyKeys.COOKIE)) {
+                sb.append(createCookiesString());
+            } else {
+                synchronized (properties) {
+                    for (final String propertyKey : properties.keySet()) {
+                        if (propertyKey.equalsIgnoreCase(header)) {
+                            sb.append(properties.get(propertyKey));
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+
     /**
      * 建立不檢查證書，允許所有SSL連線的SSLSocketFactory。
      *
@@ -1236,7 +2698,7 @@ public abstract class MagicURLNetwork {
      * @throws NoSuchAlgorithmException
      * @throws KeyManagementException
      */
-    private SSLSocketFactory createAnySSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+    private static SSLSocketFactory createAnySSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
         final SSLContext ctx = SSLContext.getInstance("TLS");
         ctx.init(null, new TrustManager[]{new X509TrustManager() {
 
@@ -1256,12 +2718,40 @@ public abstract class MagicURLNetwork {
         return ctx.getSocketFactory();
     }
 
+    /**
+     * 取得所有HTTPS連線共用的SSLSocketFactory。會以Happy Eyeballs的方式連線到主機名稱的所有IP位址，有設定主機名稱解析快取時，使用它解析的IP位址。
+     *
+     * @return 傳回SSLSocketFactory
+     * @throws NoSuchAlgorithmException
+     * @throws KeyManagementException
+     */
+    static synchronized SSLSocketFactory getSharedSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        if (anySSLSocketFactory == null) {
+            anySSLSocketFactory = createAnySSLSocketFactory();
+        }
+        final SSLSocketFactory factory = FlightRecorderEvents.wrap(anySSLSocketFactory);
+        final HTTPSDNSCache dns = dnsCache;
+        if (resolvedSSLSocketFactory == null || !resolvedSSLSocketFactory.uses(factory, dns)) {
+            resolvedSSLSocketFactory = new ResolvedSSLSocketFactory(factory, dns);
+        }
+        return resolvedSSLSocketFactory;
+    }
+
+    /**
+     * 取得允許所有主機名稱的HostnameVerifier。
+     *
+     * @return 傳回HostnameVerifier
+     */
+    static HostnameVerifier getAnyHostnameVerifier() {
+        return ANY_HOSTNAME_VERIFIER;
+    }
+
     /**
      * 建立允許所有主機名稱的HostnameVerifier。
      *
      * @return 傳回HostnameVerifier
      */
-    private HostnameVerifier createAnyHostnameVerifier() {
+    private static HostnameVerifier createAnyHostnameVerifier() {
         return new HostnameVerifier() {
 
             @Override
@@ -1357,24 +2847,204 @@ public abstract class MagicURLNetwork {
     }
 
     /**
-     * 開啟URL。
-     */
-    public synchronized void open() {
-        if (opening || timeoutTimer != null) {
-            throwOpeningException();
-        }
-        opening = true;
+     * 開啟URL。
+     */
+    public synchronized void open() {
+        if (opening || timeoutTimer != null) {
+            throwOpeningException();
+        }
+        opening = true;
+
+        if (resultSpilled) {
+            // 刪除上一次開啟時的暫存檔案
+            ((File) result).delete();
+            resultSpilled = false;
+        }
+        result = null;
+        resultNotModified = false;
+        leadingFlight = null;
+        timing = null;
+        failureCause = null;
+        activeBandwidthLimiters = createActiveBandwidthLimiters();
+        activeListener = listener != null && listenerDispatcher != null ? listenerDispatcher.wrap(listener) : listener;
+        progress = new TransferProgress(false, 0, -1);
+
+        if (activeListener != null) {
+            try {
+                activeListener.onStarted();
+            } catch (final Exception ex) {
+                reportError(FailureCause.Kind.LISTENER, "NetworkListener.onStarted threw an exception.", ex);
+            }
+        }
+        final Object jfrRequest = FlightRecorderEvents.begin(FlightRecorderEvents.REQUEST);
+        final RetryPolicy retry = supportRetry() ? retryPolicy : null;
+        final long openTime = System.nanoTime();
+        deadline = 0;
+        deadlineReason = null;
+        if (totalTimeout > 0) {
+            deadline = openTime + totalTimeout * 1000000L;
+            deadlineReason = "Total timeout";
+        }
+        if (retry != null && retry.getDeadline() > 0) {
+            final long retryDeadline = openTime + retry.getDeadline() * 1000000L;
+            if (deadline == 0 || retryDeadline - deadline < 0) {
+                deadline = retryDeadline;
+                deadlineReason = "Deadline exceeded";
+            }
+        }
+        final RequestMetrics hostMetrics;
+        final RequestMetrics typeMetrics;
+        if (metricsRegistry != null) {
+            hostMetrics = metricsRegistry.getHostMetrics(url.getHost());
+            typeMetrics = metricsRegistry.getTypeMetrics(getClass());
+            hostMetrics.recordStart();
+            typeMetrics.recordStart();
+        } else {
+            hostMetrics = null;
+            typeMetrics = null;
+        }
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long throttleNanos = 0;
+        boolean success = false;
+        String failure = null;
+        int attempts = 0;
+        try {
+            for (int attempt = 1;; ++attempt) {
+                attempts = attempt;
+                final Exception ex = openOnce(attempt);
+                if (timing != null) {
+                    bytesSent += timing.bytesSent;
+                    bytesReceived += timing.bytesReceived;
+                    throttleNanos += timing.throttleNanos;
+                }
+                if (ex == null) {
+                    success = true;
+                    failureCause = null;
+                    if (retry != null) {
+                        retry.recordSuccess();
+                    }
+                    return;
+                }
+                failure = timeoutReason != null ? timeoutReason : ex.getMessage();
+                if (timeoutReason != null && FlightRecorderEvents.isRecording()) {
+                    FlightRecorderEvents.emit(FlightRecorderEvents.TIMEOUT, url.getHost(), requestMethod, timeoutReason);
+                }
+                if (retry == null || attemptDisconnecting || failureCause.getKind() == FailureCause.Kind.REJECTED) {
+                    break;
+                }
+                final long delay = retry.computeDelay(attempt, ex, failedResponseCode, retryAfter, timeoutReason != null, deadline);
+                if (delay < 0) {
+                    break;
+                }
+                if (FlightRecorderEvents.isRecording()) {
+                    FlightRecorderEvents.emit(FlightRecorderEvents.RETRY, url.getHost(), requestMethod, attempt, delay, failure);
+                }
+                // 等待時可以被attemptDisconnect方法叫醒，不必等完整個延遲時間
+                final long wakeTime = System.nanoTime() + delay * 1000000L;
+                queuedThread = Thread.currentThread();
+                try {
+                    long remain = delay * 1000000L;
+                    while (remain > 0 && !attemptDisconnecting && !Thread.currentThread().isInterrupted()) {
+                        LockSupport.parkNanos(this, remain);
+                        remain = wakeTime - System.nanoTime();
+                    }
+                } finally {
+                    queuedThread = null;
+                }
+                if (attemptDisconnecting || Thread.currentThread().isInterrupted()) {
+                    // 保留中斷狀態，讓呼叫者可以知道
+                    break;
+                }
+            }
+            if (activeListener != null) {
+                try {
+                    activeListener.onFailed(failure, attemptDisconnecting);
+                } catch (final Exception ex2) {
+                    reportError(FailureCause.Kind.LISTENER, "NetworkListener.onFailed threw an exception.", ex2);
+                }
+                try {
+                    activeListener.onFinished(null, result);
+                } catch (final Exception ex2) {
+                    reportError(FailureCause.Kind.LISTENER, "NetworkListener.onFinished threw an exception.", ex2);
+                }
+            }
+        } finally {
+            if (leadingFlight != null) {
+                // 讓等待的需求不會一直等下去
+                leadingFlight.fail(failure);
+                leadingFlight = null;
+            }
+            if (hostMetrics != null) {
+                final long nanos = System.nanoTime() - openTime;
+                hostMetrics.recordEnd(nanos, bytesSent, bytesReceived, throttleNanos, success);
+                typeMetrics.recordEnd(nanos, bytesSent, bytesReceived, throttleNanos, success);
+            }
+            if (jfrRequest != null) {
+                FlightRecorderEvents.commit(jfrRequest, url.getHost(), requestMethod, url.toString(), lastResponseCode, bytesSent, bytesReceived, attempts, success ? null : failure);
+            }
+            if (timingListener != null && timing != null) {
+                try {
+                    timingListener.onTiming(timing);
+                } catch (final Exception ex) {
+                    reportError(FailureCause.Kind.LISTENER, "TimingListener.onTiming threw an exception.", ex);
+                }
+            }
+            opening = false;
+        }
+    }
+
+    /**
+     * 嘗試開啟URL一次。
+     *
+     * @param attempt 傳入第幾次嘗試
+     * @return 傳回失敗的例外，如果為null，表示成功
+     */
+    private Exception openOnce(final int attempt) {
+        ResponseBuffer responseBuffer = null;
+        HedgedRequest hedgedRequest = null;
+        final RequestTiming t = timingEnabled || timingListener != null || metricsRegistry != null || FlightRecorderEvents.isRecording() ? new RequestTiming(attempt) : null;
+        RequestScheduler scheduler = null;
+        ConcurrencyLimiter limiter = null;
+        long limiterStart = 0;
+        int backendOutcome = ConcurrencyLimiter.SUCCESS;
+        URL attemptURL = url;
+        LoadBalancer.Endpoint endpoint = null;
+        long endpointStart = 0;
+        boolean rejected = false;
+        boolean reusable = false;
+        HTTPResponseCache cache = null;
+        String cacheKey = null;
+        DiskResponseCache diskCache = null;
+        String diskCacheKey = null;
+        DiskResponseCache.Entry diskEntry = null;
+        timing = t;
+        lastResponseCode = -1;
+        respondedTime = 0;
+        reportedBytes = -1;
+        progressPending = false;
+        timeoutReason = null;
+        failedResponseCode = -1;
+        retryAfter = null;
+        try {
+            if (deadline != 0 && deadline - System.nanoTime() <= 0) {
+                timeoutReason = deadlineReason;
+                throw new Exception(deadlineReason);
+            }
 
-        if (listener != null) {
-            try {
-                listener.onStarted();
-            } catch (final Exception ex) {
-                ex.printStackTrace(System.out);
+            // 選擇端點
+            final LoadBalancer balancer = loadBalancer;
+            final String suffix = balancer != null ? balancer.getSuffix(url) : null;
+            if (suffix != null) {
+                endpoint = targetFile != null && supportMirrorProbe() ? balancer.selectFastest(this, suffix) : balancer.select();
+                attemptURL = new URL(endpoint.getBaseURL().concat(suffix));
             }
-        }
-        try {
+
             // 建立連線
-            conn = buildConnection(url);
+            if (t != null) {
+                t.building = System.nanoTime();
+            }
+            conn = buildConnection(attemptURL);
 
             // 設定屬性
             final Set<String> propertyKeys = properties.keySet();
@@ -1391,83 +3061,298 @@ public abstract class MagicURLNetwork {
                 buildHTTPConnection((HttpURLConnection) conn);
                 if (isHttps) {
                     final HttpsURLConnection https = (HttpsURLConnection) conn;
-                    https.setSSLSocketFactory(createAnySSLSocketFactory());
-                    https.setHostnameVerifier(createAnyHostnameVerifier());
+                    https.setSSLSocketFactory(getSharedSSLSocketFactory());
+                    https.setHostnameVerifier(ANY_HOSTNAME_VERIFIER);
+                }
+            }
+            if (t != null) {
+                t.built = System.nanoTime();
+            }
+            requestMethod = isHttpOrHttps ? ((HttpURLConnection) conn).getRequestMethod() : url.getProtocol();
+
+            // 檢查回應快取
+            cache = supportResponseCache() && targetFile == null ? responseCache : null;
+            HTTPResponseCache.Entry cachedEntry = null;
+            if (cache != null) {
+                cacheKey = createCacheKey(cache.getKeyHeaders());
+                cachedEntry = cache.get(cacheKey);
+                if (cachedEntry != null) {
+                    if (cachedEntry.isFresh()) {
+                        // 直接使用快取的內容，不必連線
+                        cache.recordHit(cachedEntry);
+                        finishWithoutConnection(cachedEntry.copyHeaders(), cachedEntry.copyBody(), cachedEntry.body.length);
+                        return null;
+                    }
+                    // 內容已過期，向伺服器重新驗證
+                    cache.recordRevalidation();
+                    if (cachedEntry.etag != null) {
+                        conn.setRequestProperty("If-None-Match", cachedEntry.etag);
+                    }
+                    if (cachedEntry.lastModified != null) {
+                        conn.setRequestProperty("If-Modified-Since", cachedEntry.lastModified);
+                    }
+                }
+            }
+
+            // 檢查磁碟回應快取
+            diskCache = supportResponseCache() && cachedEntry == null ? diskResponseCache : null;
+            if (diskCache != null) {
+                diskCacheKey = createCacheKey(diskCache.getKeyHeaders());
+                diskEntry = diskCache.get(diskCacheKey);
+                if (diskEntry != null && diskEntry.isFresh()) {
+                    Object diskResult = null;
+                    try {
+                        diskResult = readDiskEntry(diskEntry);
+                    } catch (final IOException ex) {
+                        // 讀取失敗時當作沒有命中，重新下載
+                        diskEntry.close();
+                        diskEntry = null;
+                    }
+                    if (diskResult != null) {
+                        // 直接使用快取的內容，不必連線
+                        diskCache.recordHit(diskEntry);
+                        finishWithoutConnection(diskEntry.headers, diskResult, diskEntry.bodyLength);
+                        return null;
+                    }
+                }
+                if (diskEntry != null) {
+                    // 內容已過期，向伺服器重新驗證
+                    diskCache.recordRevalidation();
+                    if (diskEntry.etag != null) {
+                        conn.setRequestProperty("If-None-Match", diskEntry.etag);
+                    }
+                    if (diskEntry.lastModified != null) {
+                        conn.setRequestProperty("If-Modified-Since", diskEntry.lastModified);
+                    }
+                }
+            }
+
+            // 同步目標檔案
+            final boolean syncing = syncTargetFile && targetFile != null && supportResponseCache();
+            final boolean syncingExistingFile = syncing && diskEntry == null && targetFile.isFile();
+            if (syncingExistingFile) {
+                conn.setIfModifiedSince(targetFile.lastModified());
+                final File etagFile = getETagFile(targetFile);
+                if (etagFile.isFile()) {
+                    final String etag = new String(Files.readAllBytes(etagFile.toPath()), "UTF-8").trim();
+                    if (!etag.isEmpty()) {
+                        conn.setRequestProperty("If-None-Match", etag);
+                    }
+                }
+            }
+
+            // 合併相同的需求
+            final RequestCoalescer coalescer = supportRequestCoalescing() && targetFile == null ? requestCoalescer : null;
+            if (coalescer != null && leadingFlight == null) {
+                final RequestCoalescer.Flight newFlight = new RequestCoalescer.Flight();
+                final RequestCoalescer.Flight flight = coalescer.join(createCacheKey(coalescer.getKeyHeaders()), newFlight);
+                if (flight == newFlight) {
+                    leadingFlight = flight;
+                } else {
+                    // 等待正在進行的需求完成，共用它的結果，但不超過這個需求的期限
+                    if (!flight.await(deadline)) {
+                        conn = null;
+                        timeoutReason = deadlineReason;
+                        throw new Exception(deadlineReason);
+                    }
+                    if (flight.getFailure() != null) {
+                        conn = null;
+                        throw new Exception(flight.getFailure());
+                    }
+                    if (flight.isShareable()) {
+                        final Object sharedResult = flight.shareResult();
+                        finishWithoutConnection(flight.copyHeaders(), sharedResult, sharedResult instanceof byte[] ? ((byte[]) sharedResult).length : ((ByteBuffer) sharedResult).remaining());
+                        return null;
+                    }
+                    coalescer.recordFallback();
+                }
+            }
+
+            // 在排程器中排隊
+            if (requestScheduler != null) {
+                queuedThread = Thread.currentThread();
+                final long waited;
+                try {
+                    waited = requestScheduler.acquire(priority, tenant, deadline, this);
+                } finally {
+                    queuedThread = null;
+                }
+                if (waited < 0) {
+                    rejected = true;
+                    conn = null;
+                    if (waited == RequestScheduler.CANCELLED) {
+                        throw new Exception("Cancelled while queued.");
+                    }
+                    throw new Exception(waited == RequestScheduler.QUEUE_FULL ? "Request queue is full." : "Deadline exceeded while queued.");
+                }
+                scheduler = requestScheduler;
+            }
+
+            // 限制並行數量
+            limiter = concurrencyLimiter != null ? concurrencyLimiter : HOST_CONCURRENCY_LIMITERS.isEmpty() ? null : HOST_CONCURRENCY_LIMITERS.get(attemptURL.getHost());
+            if (limiter != null) {
+                queuedThread = Thread.currentThread();
+                final long waited;
+                try {
+                    waited = limiter.acquire(deadline, this);
+                } finally {
+                    queuedThread = null;
+                }
+                if (waited < 0) {
+                    limiter = null;
+                    rejected = true;
+                    conn = null;
+                    throw new Exception(waited == ConcurrencyLimiter.CANCELLED ? "Cancelled while queued." : "Concurrency limit exceeded.");
+                }
+                limiterStart = System.nanoTime();
+            }
+            if (endpoint != null) {
+                balancer.begin(endpoint);
+                endpointStart = System.nanoTime();
+            }
+
+            // 解析主機名稱，一般的HTTP連線由JVM自己解析，不使用這個快取。解析的結果交給這個執行緒接下來建立的HTTPS連線，連線時不必再查詢一次
+            final HTTPSDNSCache dns = dnsCache;
+            if (dns != null && isHttps) {
+                final long dnsStart = System.nanoTime();
+                final String host = attemptURL.getHost();
+                ResolvedSSLSocketFactory.setPreresolved(host, dns.resolve(host));
+                if (t != null) {
+                    t.dnsNanos = System.nanoTime() - dnsStart;
                 }
             }
 
-            // 設定逾時時間
-            final int fixedTimeout = timeout + TIMEOUT_INTERVAL;
-            conn.setReadTimeout(fixedTimeout);
-            conn.setConnectTimeout(fixedTimeout);
+            // 對沖需求
+            if (hedgingPolicy != null && supportHedging() && targetFile == null) {
+                hedgedRequest = new HedgedRequest(this, hedgingPolicy);
+            }
 
-            // 設定與執行逾時計時器
-            sleepCounter = 0;
+            // 設定逾時時間。阻塞中的連線和讀取無法從其它執行緒中斷，所以由Socket的逾時處理建立連線、等待回應和讀取之間的停滯，計時器則處理傳送時的停滯和整個需求的期限
+            final int fixedConnectTimeout = connectTimeout > 0 ? connectTimeout : timeout;
+            final int fixedFirstByteTimeout = firstByteTimeout > 0 ? firstByteTimeout : timeout;
+            final long idleNanos = timeout * 1000000L;
+            final long connectNanos = fixedConnectTimeout * 1000000L;
+            final long firstByteNanos = fixedFirstByteTimeout * 1000000L;
+            conn.setConnectTimeout(capTimeout(fixedConnectTimeout));
+            conn.setReadTimeout(capTimeout(fixedFirstByteTimeout));
+
+            // 設定與執行逾時計時器，只負責這次嘗試的連線，每個階段以各自的期限計算
+            enterPhase(PHASE_CONNECTING);
+            final URLConnection attemptConn = conn;
             timeoutTimer = new Thread() {
                 @Override
                 public void run() {
-                    final int sleepCount = timeout / SLEEP_INTERVAL;
-                    while (sleepCounter < sleepCount && conn != null) {
-                        try {
-                            Thread.sleep(SLEEP_INTERVAL);
-                        } catch (final Exception ex) {
-                            ex.printStackTrace(System.out);
+                    while (conn == attemptConn) {
+                        long due;
+                        String reason;
+                        switch (phase) {
+                            case PHASE_CONNECTING:
+                                due = phaseStart + connectNanos;
+                                reason = "Connect timeout";
+                                break;
+                            case PHASE_WAITING:
+                                due = phaseStart + firstByteNanos;
+                                reason = "First byte timeout";
+                                break;
+                            default:
+                                due = lastActivity + idleNanos;
+                                reason = "Idle timeout";
+                                break;
                         }
-                        synchronized (sleepCounterLock) {
-                            ++sleepCounter;
+                        if (deadline != 0 && deadline - due < 0) {
+                            due = deadline;
+                            reason = deadlineReason;
                         }
-                    }
-                    if (conn != null) {
-                        if (listener != null) {
-                            try {
-                                listener.onFailed("Timeout", attemptDisconnecting);
-                            } catch (final Exception ex) {
-                                ex.printStackTrace(System.out);
+                        final long remain = due - System.nanoTime();
+                        if (remain <= 0) {
+                            if (conn == attemptConn) {
+                                timeoutReason = reason;
+                                MagicURLNetwork.this.stop();
+                                conn = null;
                             }
+                            break;
                         }
-                        MagicURLNetwork.this.stop();
-                        conn = null;
+                        LockSupport.parkNanos(this, remain);
+                    }
+                    if (timeoutTimer == this) {
+                        timeoutTimer = null;
                     }
-                    timeoutTimer = null;
                 }
             };
+            timeoutTimer.setDaemon(true);
             timeoutTimer.setPriority(Thread.MIN_PRIORITY);
             timeoutTimer.start();
 
             // 建立輸出串流
-            final OutputStream outputStream;
-            final BufferedOutputStream bufferedOutputStream;
-            if (targetFile == null) {
-                outputStream = new ByteArrayOutputStream();
-            } else {
-                outputStream = new FileOutputStream(targetFile);
-            }
-            bufferedOutputStream = new BufferedOutputStream(outputStream);
+            responseBuffer = new ResponseBuffer(targetFile, memoryThreshold, maxResponseSize, syncing);
+            final BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(responseBuffer);
 
             // 開始處理連線
+            if (t != null) {
+                t.ready = System.nanoTime();
+            }
+            final Object jfrConnect = FlightRecorderEvents.begin(FlightRecorderEvents.CONNECT);
+            conn.connect();
+            if (t != null) {
+                t.connected = System.nanoTime();
+            }
+            if (jfrConnect != null) {
+                FlightRecorderEvents.commit(jfrConnect, attemptURL.getHost(), attemptURL.getPort() < 0 ? attemptURL.getDefaultPort() : attemptURL.getPort(), isHttps);
+            }
+            enterPhase(PHASE_SENDING);
             if (conn.getDoOutput()) {
-                BufferedOutputStream bosConn = new BufferedOutputStream(conn.getOutputStream());
-                doSendConnection(listener, getParameters(), bosConn);
+                final OutputStream osConn = conn.getOutputStream();
+                BufferedOutputStream bosConn = new BufferedOutputStream(t != null ? new RequestTiming.TimingOutputStream(osConn, t) : osConn);
+                final Object jfrSend = FlightRecorderEvents.begin(FlightRecorderEvents.SEND);
+                doSendConnection(activeListener, getParameters(), bosConn);
+                flushProgress();
+                if (jfrSend != null) {
+                    FlightRecorderEvents.commit(jfrSend, url.getHost(), requestMethod, t != null ? t.bytesSent : -1L);
+                }
+            }
+            enterPhase(PHASE_WAITING);
+            if (t != null) {
+                t.sent = System.nanoTime();
             }
 
             final JSONObject headersObj = new JSONObject();
+            int responseCode = -1;
+            boolean notModified = false;
             if (conn.getDoInput()) {
                 BufferedInputStream bisConn = null;
                 if (conn instanceof HttpURLConnection) {
                     final HttpURLConnection http = (HttpURLConnection) conn;
-                    final int responseCode = http.getResponseCode();
+                    responseCode = http.getResponseCode();
+                    lastResponseCode = responseCode;
+                    respondedTime = System.nanoTime();
+                    if (t != null) {
+                        t.responded = System.nanoTime();
+                    }
                     headersObj.put("Response-Code", responseCode); // 儲存Response Code
 
-                    if (responseCode / 100 != 2) {
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && (cachedEntry != null || diskEntry != null || syncingExistingFile)) {
+                        // 快取的內容沒有改變
+                        notModified = true;
+                    } else if (responseCode / 100 != 2) {
                         if (acceptNot2XXHTTPResponseCode) {
-                            bisConn = new BufferedInputStream(http.getErrorStream());
+                            bisConn = new BufferedInputStream(wrapTimingInputStream(http.getErrorStream(), t));
                         } else {
+                            failedResponseCode = responseCode;
+                            retryAfter = http.getHeaderField("Retry-After");
                             throw new Exception(String.format("Response Code = %d.", responseCode));
                         }
                     }
                 }
                 if (bisConn == null) {
-                    bisConn = new BufferedInputStream(conn.getInputStream());
+                    bisConn = new BufferedInputStream(wrapTimingInputStream(conn.getInputStream(), t));
+                }
+                if (t != null && t.responded == 0) {
+                    t.responded = System.nanoTime();
+                }
+                enterPhase(PHASE_RECEIVING);
+                conn.setReadTimeout(capTimeout(timeout));
+                if (hedgedRequest != null) {
+                    hedgedRequest.responseArrived();
                 }
 
                 // 儲存標頭
@@ -1491,50 +3376,287 @@ public abstract class MagicURLNetwork {
                     headersObj.put(key, array);
                 }
 
-                headersObj.put("Content-Length", getContentLength());
+                final long contentLength = getContentLength();
+                headersObj.put("Content-Length", contentLength);
+                if (!notModified) {
+                    if (!(conn instanceof HttpURLConnection) || !"HEAD".equals(((HttpURLConnection) conn).getRequestMethod())) {
+                        // 在讀取內容之前就拒絕過大的內容，或是直接改存到暫存檔案
+                        responseBuffer.expect(contentLength);
+                    }
 
-                doReceiveConnection(listener, headersObj, bisConn, bufferedOutputStream);
+                    final Object jfrReceive = FlightRecorderEvents.begin(FlightRecorderEvents.RECEIVE);
+                    doReceiveConnection(activeListener, headersObj, bisConn, bufferedOutputStream);
+                    flushProgress();
+                    if (jfrReceive != null) {
+                        FlightRecorderEvents.commit(jfrReceive, url.getHost(), requestMethod, responseCode, t != null ? t.bytesReceived : -1L);
+                    }
+                }
+                if (t != null) {
+                    t.lastByte = System.nanoTime();
+                }
+                if (conn instanceof HttpURLConnection) {
+                    // 讀完回應後關閉串流，連線會回到連線池中，之後對同一個主機的需求可以重複使用
+                    bisConn.close();
+                    reusable = true;
+                }
             }
             bufferedOutputStream.flush();
             bufferedOutputStream.close();
-            resultHeader = headersObj;
-            if (targetFile == null) {
-                result = ((ByteArrayOutputStream) outputStream).toByteArray();
-            } else {
-                result = targetFile;
-            }
-            if (listener != null) {
-                if (attemptDisconnecting) {
-                    try {
-                        listener.onFailed("Finish but the connection has been disconnected.", attemptDisconnecting);
-                    } catch (final Exception ex) {
-                        ex.printStackTrace(System.out);
-                    }
+            resultNotModified = notModified;
+            if (notModified) {
+                responseBuffer.discard();
+                if (syncingExistingFile) {
+                    // 目標檔案沒有改變
+                    resultHeader = headersObj;
+                    result = targetFile;
+                } else if (cachedEntry != null) {
+                    cache.recordNotModified(cachedEntry, headersObj);
+                    resultHeader = cachedEntry.copyHeaders();
+                    result = cachedEntry.copyBody();
+                } else {
+                    diskCache.recordNotModified(diskEntry, headersObj);
+                    resultHeader = diskEntry.headers;
+                    result = readDiskEntry(diskEntry);
                 }
-                try {
-                    listener.onFinished(resultHeader, result);
-                } catch (final Exception ex) {
-                    ex.printStackTrace(System.out);
+            } else {
+                if (syncing) {
+                    responseBuffer.commit();
+                    syncTargetFileMetadata(responseCode);
                 }
+                resultHeader = headersObj;
+                result = responseBuffer.getResult();
+                resultSpilled = responseBuffer.isSpilled();
+                putResponseCaches(cache, cacheKey, diskCache, diskCacheKey, responseCode, headersObj);
+            }
+            responseBuffer = null;
+            if (hedgedRequest != null) {
+                hedgedRequest.primarySucceeded();
             }
+            if (leadingFlight != null) {
+                leadingFlight.complete(resultHeader, result);
+                leadingFlight = null;
+            }
+            notifyFinished();
+            return null;
         } catch (final Exception ex) {
-            ex.printStackTrace();
-            if (listener != null) {
+            if (responseBuffer != null) {
+                responseBuffer.discard();
+            }
+            boolean hedgeWon = false;
+            if (hedgedRequest != null) {
+                // 先斷開這次的連線，讓計時器結束，等待額外的需求時不會被當作這次嘗試逾時；等待時也可以被attemptDisconnect方法叫醒
+                stop();
+                conn = null;
+                queuedThread = Thread.currentThread();
                 try {
-                    listener.onFailed(ex.getMessage(), attemptDisconnecting);
-                } catch (final Exception ex2) {
-                    ex2.printStackTrace(System.out);
+                    hedgeWon = hedgedRequest.primaryFailed(deadline);
+                } finally {
+                    queuedThread = null;
                 }
-                try {
-                    listener.onFinished(null, result);
-                } catch (final Exception ex2) {
-                    ex2.printStackTrace(System.out);
+            }
+            if (hedgeWon) {
+                // 額外的需求先完成，使用它的結果
+                final MagicURLNetwork hedge = hedgedRequest.getHedge();
+                resultHeader = hedge.getResultHeader();
+                result = hedge.getResult();
+                resultSpilled = hedge.isResultSpilled();
+                putResponseCaches(cache, cacheKey, diskCache, diskCacheKey, hedge.lastResponseCode, resultHeader);
+                if (leadingFlight != null) {
+                    leadingFlight.complete(resultHeader, result);
+                    leadingFlight = null;
+                }
+                notifyFinished();
+                return null;
+            }
+            if (timeoutReason == null && isTimeout(ex)) {
+                // 由Socket的逾時中斷
+                if (deadline != 0 && deadline - System.nanoTime() <= 0) {
+                    timeoutReason = deadlineReason;
+                } else {
+                    switch (phase) {
+                        case PHASE_CONNECTING:
+                            timeoutReason = "Connect timeout";
+                            break;
+                        case PHASE_WAITING:
+                            timeoutReason = "First byte timeout";
+                            break;
+                        default:
+                            timeoutReason = "Idle timeout";
+                            break;
+                    }
                 }
             }
+            final FailureCause.Kind kind;
+            if (timeoutReason != null) {
+                kind = FailureCause.Kind.TIMEOUT;
+            } else if (failedResponseCode != -1) {
+                kind = FailureCause.Kind.HTTP_STATUS;
+            } else if (attemptDisconnecting) {
+                kind = FailureCause.Kind.CANCELLED;
+            } else if (rejected) {
+                kind = FailureCause.Kind.REJECTED;
+            } else {
+                kind = FailureCause.classify(ex);
+            }
+            if (kind == FailureCause.Kind.CANCELLED) {
+                backendOutcome = ConcurrencyLimiter.IGNORED;
+            } else if (kind != FailureCause.Kind.HTTP_STATUS || ConcurrencyLimiter.isOverloaded(failedResponseCode)) {
+                backendOutcome = ConcurrencyLimiter.DROPPED;
+            }
+            failureCause = new FailureCause(kind, timeoutReason != null ? timeoutReason : ex.getMessage(), attemptURL.toString(), attempt, failedResponseCode, ex);
+            if (!hedgeRequest) {
+                // 對沖需求被斷開是正常的情況
+                reportError(errorSink != null ? errorSink : defaultErrorSink, failureCause);
+            }
+            return ex;
         } finally {
-            stop();
+            ResolvedSSLSocketFactory.clearPreresolved();
+            if (diskEntry != null) {
+                diskEntry.close();
+            }
+            if (!reusable) {
+                // 斷開連線會連帶關閉連線池中的閒置連線，只用在沒有正常讀完回應的時候
+                stop();
+            }
             conn = null;
-            opening = false;
+            if (t != null && t.end == 0) {
+                t.end = System.nanoTime();
+            }
+            if (backendOutcome == ConcurrencyLimiter.SUCCESS && ConcurrencyLimiter.isOverloaded(lastResponseCode)) {
+                backendOutcome = ConcurrencyLimiter.DROPPED;
+            }
+            if (limiter != null) {
+                // 和負載平衡器一樣使用收到回應的時間，大型下載的傳輸時間不會被當作壅塞
+                limiter.release((respondedTime != 0 ? respondedTime : System.nanoTime()) - limiterStart, backendOutcome);
+            }
+            if (endpointStart != 0) {
+                // 使用收到回應的時間，大型下載的傳輸時間不會被當作延遲
+                loadBalancer.end(endpoint, (respondedTime != 0 ? respondedTime : System.nanoTime()) - endpointStart, backendOutcome);
+            }
+            if (scheduler != null) {
+                scheduler.release();
+            }
+            final Thread timer = timeoutTimer;
+            if (timer != null) {
+                // 讓計時器立刻結束
+                timeoutTimer = null;
+                LockSupport.unpark(timer);
+            }
+        }
+    }
+
+    /**
+     * 將這次開啟的結果放進記憶體和磁碟回應快取中，只有200的回應會被放進快取。
+     *
+     * @param cache 傳入記憶體回應快取，如果為null，表示不使用
+     * @param cacheKey 傳入記憶體回應快取的鍵值
+     * @param diskCache 傳入磁碟回應快取，如果為null，表示不使用
+     * @param diskCacheKey 傳入磁碟回應快取的鍵值
+     * @param responseCode 傳入回應碼
+     * @param headers 傳入回應的標頭
+     */
+    private void putResponseCaches(final HTTPResponseCache cache, final String cacheKey, final DiskResponseCache diskCache, final String diskCacheKey, final int responseCode, final JSONObject headers) {
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            return;
+        }
+        if (cache != null && result instanceof byte[]) {
+            cache.put(cacheKey, (byte[]) result, headers);
+        }
+        if (diskCache != null) {
+            try {
+                diskCache.put(diskCacheKey, result, headers);
+            } catch (final IOException ex) {
+                // 無法寫入快取不影響這次的結果
+                reportError(FailureCause.Kind.CACHE, "Failed to write the disk response cache.", ex);
+            }
+        }
+    }
+
+    /**
+     * 讀取磁碟回應快取的內容。如果有設定目標檔案，內容會直接複製到目標檔案中；否則將內容映射到記憶體。
+     *
+     * @param entry 傳入快取的內容
+     * @return 傳回目標檔案或是映射到記憶體的ByteBuffer
+     * @throws IOException 拋出例外
+     */
+    private Object readDiskEntry(final DiskResponseCache.Entry entry) throws IOException {
+        if (targetFile != null) {
+            entry.transferTo(targetFile);
+            return targetFile;
+        }
+        return entry.map();
+    }
+
+    /**
+     * 取得儲存目標檔案ETag的檔案。
+     *
+     * @param file 傳入目標檔案
+     * @return 傳回儲存ETag的檔案
+     */
+    private static File getETagFile(final File file) {
+        return new File(file.getAbsoluteFile().getParentFile(), ".".concat(file.getName()).concat(".etag"));
+    }
+
+    /**
+     * 同步完成後，將目標檔案的修改時間設為回應的Last-Modified，並儲存ETag。
+     *
+     * @param responseCode 傳入回應碼
+     * @throws IOException 拋出例外
+     */
+    private void syncTargetFileMetadata(final int responseCode) throws IOException {
+        final File etagFile = getETagFile(targetFile);
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            etagFile.delete();
+            return;
+        }
+        final long lastModified = conn.getLastModified();
+        if (lastModified > 0) {
+            targetFile.setLastModified(lastModified);
+        }
+        final String etag = conn.getHeaderField("ETag");
+        if (etag != null) {
+            Files.write(etagFile.toPath(), etag.getBytes("UTF-8"));
+        } else {
+            etagFile.delete();
+        }
+    }
+
+    /**
+     * 不經過連線，直接以傳入的結果結束開啟。
+     *
+     * @param headers 傳入結果的標頭
+     * @param result 傳入結果
+     * @param length 傳入結果的長度
+     */
+    private void finishWithoutConnection(final JSONObject headers, final Object result, final long length) {
+        conn = null;
+        this.resultHeader = headers;
+        this.result = result;
+        reportProgress(true, length, length);
+        notifyFinished();
+    }
+
+    /**
+     * 通知監聽者開啟結束。
+     */
+    private void notifyFinished() {
+        if (timing != null && timing.end == 0) {
+            // 讓監聽者在結束時就可以取得完整的時間
+            timing.end = System.nanoTime();
+        }
+        if (activeListener != null) {
+            if (attemptDisconnecting) {
+                try {
+                    activeListener.onFailed("Finish but the connection has been disconnected.", attemptDisconnecting);
+                } catch (final Exception ex) {
+                    reportError(FailureCause.Kind.LISTENER, "NetworkListener.onFailed threw an exception.", ex);
+                }
+            }
+            try {
+                activeListener.onFinished(resultHeader, result);
+            } catch (final Exception ex) {
+                reportError(FailureCause.Kind.LISTENER, "NetworkListener.onFinished threw an exception.", ex);
+            }
         }
     }
 
@@ -1560,10 +3682,93 @@ public abstract class MagicURLNetwork {
         return -1;
     }
 
+    /**
+     * 建立一個設定相同的需求，用來對沖這個需求。額外的需求同樣受到並行數量、排程器和頻寬的限制，整個需求的期限為這個需求剩下的時間。
+     *
+     * @return 傳回設定相同的需求，如果為null，表示不能對沖
+     */
+    MagicURLNetwork createHedge() {
+        final long remainingNanos = deadline != 0 ? deadline - System.nanoTime() : 0;
+        if (deadline != 0 && remainingNanos <= 0) {
+            // 這個需求的期限已經到了
+            return null;
+        }
+        final MagicURLNetwork hedge = createSameRequest();
+        if (hedge == null) {
+            return null;
+        }
+        synchronized (parameters) {
+            hedge.parameters.putAll(parameters);
+        }
+        synchronized (properties) {
+            hedge.properties.putAll(properties);
+        }
+        synchronized (cookies) {
+            hedge.cookies.putAll(cookies);
+        }
+        hedge.timeout = timeout;
+        hedge.connectTimeout = connectTimeout;
+        hedge.firstByteTimeout = firstByteTimeout;
+        hedge.totalTimeout = deadline != 0 ? (int) Math.min(Integer.MAX_VALUE, (remainingNanos + 999999) / 1000000) : totalTimeout;
+        hedge.acceptNot2XXHTTPResponseCode = acceptNot2XXHTTPResponseCode;
+        hedge.memoryThreshold = memoryThreshold;
+        hedge.maxResponseSize = maxResponseSize;
+        hedge.loadBalancer = loadBalancer;
+        hedge.concurrencyLimiter = concurrencyLimiter;
+        hedge.requestScheduler = requestScheduler;
+        hedge.priority = priority;
+        hedge.tenant = tenant;
+        hedge.bandwidthLimiter = bandwidthLimiter;
+        hedge.errorSink = errorSink;
+        hedge.metricsRegistry = metricsRegistry;
+        hedge.hedgeRequest = true;
+        return hedge;
+    }
+
+    /**
+     * 建立探測鏡像站下載速度的需求，使用相同的參數、屬性和Cookie。
+     *
+     * @param probeURL 傳入鏡像站的URL
+     * @return 傳回探測的需求
+     */
+    MagicURLNetwork createMirrorProbe(final URL probeURL) {
+        final MagicURLNetwork probe = new MagicGET(probeURL);
+        synchronized (parameters) {
+            probe.parameters.putAll(parameters);
+        }
+        synchronized (properties) {
+            probe.properties.putAll(properties);
+        }
+        synchronized (cookies) {
+            probe.cookies.putAll(cookies);
+        }
+        return probe;
+    }
+
+    /**
+     * 立刻斷開連線，用於對沖的需求先完成時。
+     */
+    void abort() {
+        stop();
+    }
+
     /**
      * 停止連線。
      */
     private void stop() {
+        final URLConnection conn = this.conn;
+        if (conn instanceof HttpURLConnection) {
+            // HTTP連線直接斷開，取得串流的方法在等待回應時會被鎖住，而且可能會重新連線
+            try {
+                ((HttpURLConnection) conn).disconnect();
+            } catch (final Exception ex) {
+
+            }
+            return;
+        }
+        if (conn == null) {
+            return;
+        }
         try {
             conn.getInputStream().close();
         } catch (final Exception ex) {
@@ -1574,19 +3779,6 @@ public abstract class MagicURLNetwork {
         } catch (final Exception ex) {
 
         }
-        if (conn instanceof HttpURLConnection) {
-            final HttpURLConnection http = (HttpURLConnection) conn;
-            try {
-                http.getErrorStream().close();
-            } catch (final Exception ex) {
-
-            }
-            try {
-                http.disconnect();
-            } catch (final Exception ex) {
-
-            }
-        }
     }
 
     /**
@@ -1633,4 +3825,58 @@ public abstract class MagicURLNetwork {
      * @return 傳回是否支援非HTTP的連線
      */
     protected abstract boolean supportNonHTTPProtocol();
+
+    /**
+     * 取得是否支援回應快取。
+     *
+     * @return 傳回是否支援回應快取
+     */
+    protected boolean supportResponseCache() {
+        return false;
+    }
+
+    /**
+     * 取得是否支援合併相同的需求。
+     *
+     * @return 傳回是否支援合併相同的需求
+     */
+    protected boolean supportRequestCoalescing() {
+        return false;
+    }
+
+    /**
+     * 取得是否支援對沖需求。
+     *
+     * @return 傳回是否支援對沖需求
+     */
+    protected boolean supportHedging() {
+        return false;
+    }
+
+    /**
+     * 取得是否支援重試，只有冪等的需求才能重試。
+     *
+     * @return 傳回是否支援重試
+     */
+    protected boolean supportRetry() {
+        return false;
+    }
+
+    /**
+     * 取得是否支援在下載到目標檔案前探測鏡像站的下載速度。
+     *
+     * @return 傳回是否支援探測鏡像站的下載速度
+     */
+    protected boolean supportMirrorProbe() {
+        return false;
+    }
+
+    /**
+     * 建立一個URL相同的新需求物件。
+     *
+     * @return 傳回新的需求物件，如果為null，表示不支援
+     */
+    protected MagicURLNetwork createSameRequest() {
+        return null;
+    }
 }
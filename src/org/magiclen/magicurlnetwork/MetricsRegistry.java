@@ -0,0 +1,227 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * 統計需求的註冊表，可以被多個MagicURLNetwork物件共用。
+ * </p>
+ *
+ * <p>
+ * 每個需求結束時，會依照主機名稱和需求的類別(例如MagicGET、MagicPOST)分別紀錄延遲時間、是否失敗和傳輸量。統計可以透過快照讀取，也可以註冊成JMX的MBean。紀錄時只有第一次遇到新的主機或類別時才會建立統計物件，之後不會配置記憶體也不會使用鎖。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork
+ */
+public class MetricsRegistry {
+
+    // -----類別方法-----
+    /**
+     * 從平台的MBean伺服器移除統計。
+     *
+     * @param server 傳入MBean伺服器
+     * @param domain 傳入MBean的網域
+     * @param type 傳入統計的分類
+     * @param metrics 傳入統計
+     */
+    private static void unregisterMBean(final MBeanServer server, final String domain, final String type, final RequestMetrics metrics) {
+        try {
+            final ObjectName name = createObjectName(domain, type, metrics);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final Exception ex) {
+            MagicURLNetwork.reportError(MagicURLNetwork.getDefaultErrorSink(), new FailureCause(FailureCause.Kind.OTHER, "Failed to update the MBean.", null, 0, -1, ex));
+        }
+    }
+
+    /**
+     * 建立統計的MBean名稱。
+     *
+     * @param domain 傳入MBean的網域
+     * @param type 傳入統計的分類
+     * @param metrics 傳入統計
+     * @return 傳回MBean名稱
+     * @throws Exception 拋出例外
+     */
+    private static ObjectName createObjectName(final String domain, final String type, final RequestMetrics metrics) throws Exception {
+        return new ObjectName(domain.concat(":type=").concat(type).concat(",name=").concat(ObjectName.quote(metrics.getName())));
+    }
+
+    // -----物件常數-----
+    /**
+     * 依照主機名稱分類的統計。
+     */
+    private final ConcurrentHashMap<String, RequestMetrics> hostMetrics = new ConcurrentHashMap<>();
+    /**
+     * 依照需求的類別分類的統計。
+     */
+    private final ConcurrentHashMap<Class<?>, RequestMetrics> typeMetrics = new ConcurrentHashMap<>();
+
+    // -----物件變數-----
+    /**
+     * 註冊MBean所使用的網域，如果為null，表示沒有註冊。
+     */
+    private volatile String jmxDomain = null;
+
+    // -----物件方法-----
+    /**
+     * 取得主機的統計。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機的統計
+     */
+    public RequestMetrics getHostMetrics(final String host) {
+        RequestMetrics metrics = hostMetrics.get(host);
+        if (metrics == null) {
+            final RequestMetrics newMetrics = new RequestMetrics(host);
+            metrics = hostMetrics.putIfAbsent(host, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                registerMBean("host", metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 取得需求類別的統計。
+     *
+     * @param type 傳入需求的類別
+     * @return 傳回需求類別的統計
+     */
+    public RequestMetrics getTypeMetrics(final Class<? extends MagicURLNetwork> type) {
+        RequestMetrics metrics = typeMetrics.get(type);
+        if (metrics == null) {
+            final RequestMetrics newMetrics = new RequestMetrics(type.getSimpleName());
+            metrics = typeMetrics.putIfAbsent(type, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+                registerMBean("requestType", metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 建立所有主機統計的快照。
+     *
+     * @return 傳回以主機名稱為鍵值的快照
+     */
+    public Map<String, RequestMetrics.Snapshot> snapshotByHost() {
+        final TreeMap<String, RequestMetrics.Snapshot> snapshots = new TreeMap<>();
+        for (final RequestMetrics metrics : hostMetrics.values()) {
+            snapshots.put(metrics.getName(), metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * 建立所有需求類別統計的快照。
+     *
+     * @return 傳回以需求類別名稱為鍵值的快照
+     */
+    public Map<String, RequestMetrics.Snapshot> snapshotByType() {
+        final TreeMap<String, RequestMetrics.Snapshot> snapshots = new TreeMap<>();
+        for (final RequestMetrics metrics : typeMetrics.values()) {
+            snapshots.put(metrics.getName(), metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * 清除所有統計。
+     */
+    public void reset() {
+        for (final RequestMetrics metrics : hostMetrics.values()) {
+            metrics.reset();
+        }
+        for (final RequestMetrics metrics : typeMetrics.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * 將所有統計註冊到平台的MBean伺服器，之後新增的統計也會自動註冊。
+     *
+     * @param domain 傳入MBean的網域，例如org.magiclen.magicurlnetwork
+     */
+    public synchronized void registerMBeans(final String domain) {
+        if (domain == null || domain.isEmpty()) {
+            throw new RuntimeException("The JMX domain is empty.");
+        }
+        if (jmxDomain != null) {
+            throw new RuntimeException("The MBeans have been registered.");
+        }
+        jmxDomain = domain;
+        for (final RequestMetrics metrics : hostMetrics.values()) {
+            registerMBean("host", metrics);
+        }
+        for (final RequestMetrics metrics : typeMetrics.values()) {
+            registerMBean("requestType", metrics);
+        }
+    }
+
+    /**
+     * 從平台的MBean伺服器移除所有統計。
+     */
+    public synchronized void unregisterMBeans() {
+        final String domain = jmxDomain;
+        if (domain == null) {
+            return;
+        }
+        jmxDomain = null;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final RequestMetrics metrics : hostMetrics.values()) {
+            unregisterMBean(server, domain, "host", metrics);
+        }
+        for (final RequestMetrics metrics : typeMetrics.values()) {
+            unregisterMBean(server, domain, "requestType", metrics);
+        }
+    }
+
+    /**
+     * 如果已經註冊MBean，將統計註冊到平台的MBean伺服器。
+     *
+     * @param type 傳入統計的分類
+     * @param metrics 傳入統計
+     */
+    private void registerMBean(final String type, final RequestMetrics metrics) {
+        final String domain = jmxDomain;
+        if (domain == null) {
+            return;
+        }
+        try {
+            final ObjectName name = createObjectName(domain, type, metrics);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (final Exception ex) {
+            MagicURLNetwork.reportError(MagicURLNetwork.getDefaultErrorSink(), new FailureCause(FailureCause.Kind.OTHER, "Failed to update the MBean.", null, 0, -1, ex));
+        }
+    }
+}
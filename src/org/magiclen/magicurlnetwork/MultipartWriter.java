@@ -0,0 +1,207 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import org.magiclen.magicurlnetwork.parameters.Body;
+import org.magiclen.magicurlnetwork.parameters.BodyType;
+
+/**
+ * <p>
+ * 以串流的方式輸出multipart/form-data格式的內容。
+ * </p>
+ *
+ * <p>
+ * 分界和標頭使用預先建立好的位元組樣板，每個部分的內容會直接寫入連線，不會先存成位元組陣列。總長度會在傳送之前先計算好，較小的寫入會合併在同一個緩衝空間中再送出。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicPOST
+ */
+abstract class MultipartWriter extends BodyWriter {
+
+    // -----類別常數-----
+    /**
+     * 換行字元。
+     */
+    private static final byte[] CRLF = "\r\n".getBytes(UTF_8);
+    /**
+     * 內容處置標頭的開頭。
+     */
+    private static final byte[] DISPOSITION = "Content-Disposition: form-data; name=\"".getBytes(UTF_8);
+    /**
+     * 內容處置標頭中的檔案名稱。
+     */
+    private static final byte[] FILE_NAME = "\"; fileName=\"".getBytes(UTF_8);
+    /**
+     * 引號和換行字元。
+     */
+    private static final byte[] QUOTE_CRLF = "\"\r\n".getBytes(UTF_8);
+    /**
+     * 內容型態標頭的開頭。
+     */
+    private static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes(UTF_8);
+    /**
+     * 文字內容的字元集和換行字元。
+     */
+    private static final byte[] CHARSET_CRLF = "; charset=UTF-8\r\n".getBytes(UTF_8);
+    /**
+     * 二進制的內容傳輸編碼標頭。
+     */
+    private static final byte[] BINARY_ENCODING = "Content-Transfer-Encoding: binary\r\n".getBytes(UTF_8);
+
+    // -----類別類別-----
+    /**
+     * multipart中的一個部分。
+     */
+    private static final class Part {
+
+        final Body body;
+        final boolean binary;
+        final boolean text;
+        final byte[] name;
+        final byte[] fileName;
+        final byte[] contentType;
+
+        Part(final Body body, final byte[] name, final byte[] fileName, final byte[] contentType) {
+            this.body = body;
+            this.binary = isBinary(body);
+            this.text = !binary && body.getBodyType() != BodyType.JSON;
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 分界行。
+     */
+    private final byte[] boundaryLine;
+    /**
+     * 結束分界行。
+     */
+    private final byte[] endBoundaryLine;
+    /**
+     * 所有要傳送的部分。
+     */
+    private final ArrayList<Part> parts = new ArrayList<>();
+
+    // -----物件變數-----
+    /**
+     * 總共需傳送的資料大小，如果為-1，表示有部分的長度未知。
+     */
+    private long length;
+
+    // -----建構子-----
+    /**
+     * 建構子，傳入分界字串。
+     *
+     * @param boundary 傳入分界字串
+     */
+    MultipartWriter(final String boundary) {
+        boundaryLine = "--".concat(boundary).concat("\r\n").getBytes(UTF_8);
+        endBoundaryLine = "--".concat(boundary).concat("--\r\n").getBytes(UTF_8);
+        length = endBoundaryLine.length;
+    }
+
+    // -----物件方法-----
+    /**
+     * 加入一個部分，並計算其長度。
+     *
+     * @param key 傳入參數的鍵值
+     * @param body 傳入參數的內容
+     */
+    void addPart(final String key, final Body body) {
+        final String contentType = body.getContentType();
+        final byte[] contentTypeData = contentType == null ? null : contentType.getBytes(UTF_8);
+        final byte[] fileName;
+        final BodyType bodyType = body.getBodyType();
+        if (bodyType == BodyType.FILE || bodyType == BodyType.FILE_REGION) {
+            fileName = MagicURLNetwork.encodeHeaderString(((File) body.getSource()).getName()).getBytes(UTF_8);
+        } else {
+            fileName = null;
+        }
+        final Part part = new Part(body, key.getBytes(UTF_8), fileName, contentTypeData);
+        parts.add(part);
+
+        if (length < 0) {
+            return;
+        }
+        final long contentLength = getContentLength(body);
+        if (contentLength < 0) {
+            length = -1;
+            return;
+        }
+        length += boundaryLine.length + DISPOSITION.length + part.name.length + QUOTE_CRLF.length + CRLF.length + contentLength + CRLF.length;
+        if (fileName != null) {
+            length += FILE_NAME.length + fileName.length;
+        }
+        if (contentTypeData != null) {
+            length += CONTENT_TYPE.length + contentTypeData.length + (part.text ? CHARSET_CRLF.length : CRLF.length);
+        }
+        if (part.binary) {
+            length += BINARY_ENCODING.length;
+        }
+    }
+
+    /**
+     * 取得總共需傳送的資料大小。
+     *
+     * @return 傳回總共需傳送的資料大小，如果為-1，表示有部分的長度未知
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * 將所有部分寫入輸出串流。
+     *
+     * @param out 傳入輸出串流
+     * @throws IOException 拋出例外
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        final Sink sink = new Sink(out);
+        for (final Part part : parts) {
+            sink.write(boundaryLine);
+            sink.write(DISPOSITION);
+            sink.write(part.name);
+            if (part.fileName != null) {
+                sink.write(FILE_NAME);
+                sink.write(part.fileName);
+            }
+            sink.write(QUOTE_CRLF);
+            if (part.contentType != null) {
+                sink.write(CONTENT_TYPE);
+                sink.write(part.contentType);
+                sink.write(part.text ? CHARSET_CRLF : CRLF);
+            }
+            if (part.binary) {
+                sink.write(BINARY_ENCODING);
+            }
+            sink.write(CRLF);
+            writeContent(part.body, sink);
+            sink.write(CRLF);
+        }
+        sink.write(endBoundaryLine);
+        drain(out);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.magiclen.json.JSONObject;
+
+/**
+ * <p>
+ * 合併同時送出的相同需求，可以被多個MagicGET或MagicHEAD物件共用。
+ * </p>
+ *
+ * <p>
+ * 需求的鍵值由需求方法、包含參數的URL，以及建構時指定的標頭組成。當一個需求正在進行時，其它鍵值相同的需求不會再建立連線，而是等待這個需求完成後共用它的結果。共用的結果如果是位元組陣列，需求完成時會先複製一份，每個等待的需求再各自取得一份副本，所以任何一方修改陣列都不會影響其它需求；如果是ByteBuffer，則各自取得唯讀的副本。沒有等待的需求時不會複製。如果結果因為太大而被存到暫存檔案中，等待的需求會自己重新開啟URL。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicGET
+ * @see MagicHEAD
+ */
+public class RequestCoalescer {
+
+    // -----類別類別-----
+    /**
+     * 一個正在進行的需求。
+     */
+    static final class Flight {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private RequestCoalescer coalescer;
+        private String key;
+        private JSONObject headers;
+        private Object result;
+        private String failure;
+        private int followerCount;
+
+        /**
+         * 等待需求完成。
+         *
+         * @param deadline 傳入等待的期限(奈秒時間)，如果為0，表示沒有期限
+         * @return 傳回需求是否在期限之前完成
+         * @throws InterruptedException 拋出例外
+         */
+        boolean await(final long deadline) throws InterruptedException {
+            if (deadline == 0) {
+                latch.await();
+                return true;
+            }
+            return latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * 取得需求是否失敗。
+         *
+         * @return 傳回失敗的原因，如果為null，表示沒有失敗
+         */
+        String getFailure() {
+            return failure;
+        }
+
+        /**
+         * 取得結果是否可以共用。
+         *
+         * @return 傳回結果是否可以共用
+         */
+        boolean isShareable() {
+            return result instanceof byte[] || result instanceof ByteBuffer;
+        }
+
+        /**
+         * 取得標頭的副本。
+         *
+         * @return 傳回標頭的副本
+         */
+        JSONObject copyHeaders() {
+            return headers == null ? null : new JSONObject(headers.toString());
+        }
+
+        /**
+         * 取得共用的結果。位元組陣列會傳回副本，ByteBuffer會傳回唯讀的副本。
+         *
+         * @return 傳回共用的結果
+         */
+        Object shareResult() {
+            if (result instanceof byte[]) {
+                return ((byte[]) result).clone();
+            } else if (result instanceof ByteBuffer) {
+                return ((ByteBuffer) result).asReadOnlyBuffer();
+            }
+            return result;
+        }
+
+        /**
+         * 需求成功，讓等待的需求共用結果。有等待的需求時，會先複製一份標頭和內容，因為傳入的物件也會被交給呼叫者。
+         *
+         * @param headers 傳入回應的標頭
+         * @param result 傳入回應的內容
+         */
+        void complete(final JSONObject headers, final Object result) {
+            // 從正在進行的需求中移除之後，就不會再有新的等待者
+            if (leave() > 0) {
+                this.headers = headers == null ? null : new JSONObject(headers.toString());
+                if (result instanceof byte[]) {
+                    this.result = ((byte[]) result).clone();
+                } else if (result instanceof ByteBuffer) {
+                    this.result = ((ByteBuffer) result).duplicate();
+                } else {
+                    this.result = result;
+                }
+            }
+            latch.countDown();
+        }
+
+        /**
+         * 需求失敗，讓等待的需求也失敗。
+         *
+         * @param failure 傳入失敗的原因
+         */
+        void fail(final String failure) {
+            this.failure = failure == null ? "The coalesced request has failed." : failure;
+            leave();
+            latch.countDown();
+        }
+
+        /**
+         * 從正在進行的需求中移除。
+         *
+         * @return 傳回等待這個需求的數量
+         */
+        private int leave() {
+            synchronized (coalescer.flights) {
+                if (coalescer.flights.get(key) == this) {
+                    coalescer.flights.remove(key);
+                }
+                return followerCount;
+            }
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 正在進行的需求。
+     */
+    private final HashMap<String, Flight> flights = new HashMap<>();
+    /**
+     * 要加入鍵值的標頭名稱。
+     */
+    private final String[] keyHeaders;
+    /**
+     * 實際送出的需求數量。
+     */
+    private final AtomicLong leaderCount = new AtomicLong();
+    /**
+     * 被合併的需求數量。
+     */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param keyHeaders 傳入要加入鍵值的標頭名稱，例如Authorization、Accept
+     */
+    public RequestCoalescer(final String... keyHeaders) {
+        this.keyHeaders = keyHeaders == null ? new String[0] : keyHeaders.clone();
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得要加入鍵值的標頭名稱。
+     *
+     * @return 傳回要加入鍵值的標頭名稱
+     */
+    String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    /**
+     * 加入需求。如果已經有相同鍵值的需求正在進行，傳回那個需求；否則傳入的需求會成為正在進行的需求。
+     *
+     * @param key 傳入需求的鍵值
+     * @param flight 傳入新的需求
+     * @return 傳回正在進行的需求，如果和傳入的需求相同，表示要由呼叫者實際送出需求
+     */
+    Flight join(final String key, final Flight flight) {
+        synchronized (flights) {
+            final Flight existing = flights.get(key);
+            if (existing != null) {
+                ++existing.followerCount;
+                coalescedCount.incrementAndGet();
+                return existing;
+            }
+            flight.coalescer = this;
+            flight.key = key;
+            flights.put(key, flight);
+        }
+        leaderCount.incrementAndGet();
+        return flight;
+    }
+
+    /**
+     * 紀錄一次無法共用結果，需要自己重新開啟URL的需求。
+     */
+    void recordFallback() {
+        coalescedCount.decrementAndGet();
+    }
+
+    /**
+     * 取得實際送出的需求數量。
+     *
+     * @return 傳回實際送出的需求數量
+     */
+    public long getLeaderCount() {
+        return leaderCount.get();
+    }
+
+    /**
+     * 取得被合併，沒有實際送出的需求數量。
+     *
+     * @return 傳回被合併的需求數量
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * 取得正在進行的需求數量。
+     *
+     * @return 傳回正在進行的需求數量
+     */
+    public int getInFlightCount() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+
+    /**
+     * 將統計數據歸零。
+     */
+    public void resetStatistics() {
+        leaderCount.set(0);
+        coalescedCount.set(0);
+    }
+}
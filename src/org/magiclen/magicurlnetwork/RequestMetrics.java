@@ -0,0 +1,362 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 一個主機或是一種需求的統計，包含延遲時間的直方圖、失敗數量、傳輸量和正在進行的需求數量。
+ * </p>
+ *
+ * <p>
+ * 紀錄時只會更新原子變數，不會配置記憶體也不會使用鎖。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MetricsRegistry
+ */
+public final class RequestMetrics implements RequestMetricsMBean {
+
+    // -----類別類別-----
+    /**
+     * 統計在某個時間點的快照。
+     */
+    public static final class Snapshot {
+
+        private final String name;
+        private final long requestCount;
+        private final long errorCount;
+        private final long inFlight;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long throttleNanos;
+        private final long elapsedNanos;
+        private final LatencyHistogram.Snapshot latency;
+
+        private Snapshot(final String name, final long requestCount, final long errorCount, final long inFlight, final long bytesSent, final long bytesReceived, final long throttleNanos, final long elapsedNanos, final LatencyHistogram.Snapshot latency) {
+            this.name = name;
+            this.requestCount = requestCount;
+            this.errorCount = errorCount;
+            this.inFlight = inFlight;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.throttleNanos = throttleNanos;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        /**
+         * 取得統計的名稱。
+         *
+         * @return 傳回統計的名稱
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 取得已結束的需求數量。
+         *
+         * @return 傳回已結束的需求數量
+         */
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        /**
+         * 取得失敗的需求數量。
+         *
+         * @return 傳回失敗的需求數量
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * 取得失敗的比例。
+         *
+         * @return 傳回失敗的比例，範圍是0到1
+         */
+        public double getErrorRate() {
+            return requestCount == 0 ? 0 : (double) errorCount / requestCount;
+        }
+
+        /**
+         * 取得正在進行的需求數量。
+         *
+         * @return 傳回正在進行的需求數量
+         */
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * 取得傳送的位元組數量。
+         *
+         * @return 傳回傳送的位元組數量
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * 取得接收的位元組數量。
+         *
+         * @return 傳回接收的位元組數量
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * 取得因為頻寬限制而等待的總時間。
+         *
+         * @return 傳回因為頻寬限制而等待的總時間(奈秒)
+         */
+        public long getThrottleNanos() {
+            return throttleNanos;
+        }
+
+        /**
+         * 取得從開始統計到快照的時間。
+         *
+         * @return 傳回從開始統計到快照的時間(奈秒)
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * 取得平均每秒傳送和接收的位元組數量。
+         *
+         * @return 傳回平均每秒傳送和接收的位元組數量
+         */
+        public double getBytesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : (bytesSent + bytesReceived) * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * 取得延遲時間的直方圖快照。
+         *
+         * @return 傳回延遲時間的直方圖快照，單位是微秒
+         */
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: requests=%d, errors=%d, inFlight=%d, sent=%dB, received=%dB, %.1fB/s, throttle=%dms, latency[%s]", name, requestCount, errorCount, inFlight, bytesSent, bytesReceived, getBytesPerSecond(), throttleNanos / 1000000, latency);
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 統計的名稱。
+     */
+    private final String name;
+    /**
+     * 延遲時間的直方圖(微秒)。
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+    /**
+     * 已結束的需求數量。
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+    /**
+     * 失敗的需求數量。
+     */
+    private final AtomicLong errorCount = new AtomicLong();
+    /**
+     * 正在進行的需求數量。
+     */
+    private final AtomicLong inFlight = new AtomicLong();
+    /**
+     * 傳送的位元組數量。
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+    /**
+     * 接收的位元組數量。
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+    /**
+     * 因為頻寬限制而等待的總時間(奈秒)。
+     */
+    private final AtomicLong throttleNanos = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 開始統計的時間(奈秒時間)。
+     */
+    private volatile long startTime = System.nanoTime();
+
+    // -----建構子-----
+    /**
+     * 建構子，傳入統計的名稱。
+     *
+     * @param name 傳入統計的名稱
+     */
+    RequestMetrics(final String name) {
+        this.name = name;
+    }
+
+    // -----物件方法-----
+    /**
+     * 紀錄一個需求開始。
+     */
+    void recordStart() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 紀錄一個需求結束。
+     *
+     * @param nanos 傳入需求所花的時間(奈秒)
+     * @param sent 傳入傳送的位元組數量
+     * @param received 傳入接收的位元組數量
+     * @param throttled 傳入因為頻寬限制而等待的時間(奈秒)
+     * @param success 傳入需求是否成功
+     */
+    void recordEnd(final long nanos, final long sent, final long received, final long throttled, final boolean success) {
+        inFlight.decrementAndGet();
+        requestCount.incrementAndGet();
+        if (!success) {
+            errorCount.incrementAndGet();
+        }
+        if (sent > 0) {
+            bytesSent.addAndGet(sent);
+        }
+        if (received > 0) {
+            bytesReceived.addAndGet(received);
+        }
+        if (throttled > 0) {
+            throttleNanos.addAndGet(throttled);
+        }
+        latency.record(nanos / 1000);
+    }
+
+    /**
+     * 取得延遲時間的直方圖。
+     *
+     * @return 傳回延遲時間的直方圖，單位是微秒
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * 建立快照。
+     *
+     * @return 傳回快照
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(name, requestCount.get(), errorCount.get(), inFlight.get(), bytesSent.get(), bytesReceived.get(), throttleNanos.get(), System.nanoTime() - startTime, latency.snapshot());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public double getErrorRate() {
+        final long requests = requestCount.get();
+        return requests == 0 ? 0 : (double) errorCount.get() / requests;
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public double getThrottleTime() {
+        return throttleNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        final long elapsed = System.nanoTime() - startTime;
+        return elapsed <= 0 ? 0 : (bytesSent.get() + bytesReceived.get()) * 1e9 / elapsed;
+    }
+
+    @Override
+    public double getMeanLatency() {
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Latency() {
+        return latency.snapshot().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Latency() {
+        return latency.snapshot().getPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Latency() {
+        return latency.snapshot().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxLatency() {
+        return latency.getMax() / 1000.0;
+    }
+
+    /**
+     * 清除所有統計，正在進行的需求數量不會被清除。
+     */
+    @Override
+    public void reset() {
+        latency.reset();
+        requestCount.set(0);
+        errorCount.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        throttleNanos.set(0);
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+/**
+ * 透過JMX讀取RequestMetrics的介面。
+ *
+ * @author Magic Len
+ * @see RequestMetrics
+ */
+public interface RequestMetricsMBean {
+
+    /**
+     * 取得統計的名稱，也就是主機名稱或是需求的類別名稱。
+     *
+     * @return 傳回統計的名稱
+     */
+    public String getName();
+
+    /**
+     * 取得已結束的需求數量。
+     *
+     * @return 傳回已結束的需求數量
+     */
+    public long getRequestCount();
+
+    /**
+     * 取得失敗的需求數量。
+     *
+     * @return 傳回失敗的需求數量
+     */
+    public long getErrorCount();
+
+    /**
+     * 取得失敗的比例。
+     *
+     * @return 傳回失敗的比例，範圍是0到1
+     */
+    public double getErrorRate();
+
+    /**
+     * 取得正在進行的需求數量。
+     *
+     * @return 傳回正在進行的需求數量
+     */
+    public long getInFlight();
+
+    /**
+     * 取得傳送的位元組數量。
+     *
+     * @return 傳回傳送的位元組數量
+     */
+    public long getBytesSent();
+
+    /**
+     * 取得接收的位元組數量。
+     *
+     * @return 傳回接收的位元組數量
+     */
+    public long getBytesReceived();
+
+    /**
+     * 取得因為頻寬限制而等待的總時間。
+     *
+     * @return 傳回因為頻寬限制而等待的總時間(毫秒)
+     */
+    public double getThrottleTime();
+
+    /**
+     * 取得從開始統計到現在，平均每秒傳送和接收的位元組數量。
+     *
+     * @return 傳回平均每秒傳送和接收的位元組數量
+     */
+    public double getBytesPerSecond();
+
+    /**
+     * 取得平均的延遲時間。
+     *
+     * @return 傳回平均的延遲時間(毫秒)
+     */
+    public double getMeanLatency();
+
+    /**
+     * 取得延遲時間的第50百分位數。
+     *
+     * @return 傳回延遲時間的第50百分位數(毫秒)
+     */
+    public double getP50Latency();
+
+    /**
+     * 取得延遲時間的第90百分位數。
+     *
+     * @return 傳回延遲時間的第90百分位數(毫秒)
+     */
+    public double getP90Latency();
+
+    /**
+     * 取得延遲時間的第99百分位數。
+     *
+     * @return 傳回延遲時間的第99百分位數(毫秒)
+     */
+    public double getP99Latency();
+
+    /**
+     * 取得最大的延遲時間。
+     *
+     * @return 傳回最大的延遲時間(毫秒)
+     */
+    public double getMaxLatency();
+
+    /**
+     * 清除所有統計。
+     */
+    public void reset();
+}
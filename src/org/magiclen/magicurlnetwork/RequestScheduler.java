@@ -0,0 +1,612 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * 需求的排程器，可以被多個MagicURLNetwork物件共用，用來限制同時進行的需求數量，並決定排隊中的需求要以什麼順序開始。
+ * </p>
+ *
+ * <p>
+ * 不同優先等級之間，永遠先處理優先等級較高的需求。相同優先等級之中，使用加權公平佇列(WFQ)在租戶之間分配，每個需求會依照租戶的權重得到一個虛擬完成時間，完成時間最早的需求先開始，所以大量送出需求的租戶不會讓其它租戶一直等待。
+ * </p>
+ *
+ * <p>
+ * 排隊時超過需求的期限或是最長排隊時間的需求會直接被捨棄，不會建立連線；佇列已滿時，新的需求會立刻被拒絕。排隊的長度和時間可以透過方法或是JMX的MBean讀取。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#setRequestScheduler(RequestScheduler)
+ */
+public class RequestScheduler implements RequestSchedulerMBean {
+
+    // -----類別常數-----
+    /**
+     * 預設的佇列長度上限。
+     */
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 1024;
+    /**
+     * 預設的最長排隊時間(毫秒)，0表示只受需求的期限限制。
+     */
+    public static final long DEFAULT_MAX_QUEUE_WAIT = 0;
+    /**
+     * 預設的租戶權重。
+     */
+    public static final double DEFAULT_TENANT_WEIGHT = 1;
+    /**
+     * 佇列已滿而被拒絕。
+     */
+    static final long QUEUE_FULL = -1;
+    /**
+     * 排隊時超過期限而被捨棄。
+     */
+    static final long EXPIRED = -2;
+    /**
+     * 排隊時需求被取消。
+     */
+    static final long CANCELLED = -3;
+    /**
+     * 排隊中。
+     */
+    private static final int STATE_WAITING = 0;
+    /**
+     * 已經開始進行。
+     */
+    private static final int STATE_GRANTED = 1;
+    /**
+     * 已經被捨棄。
+     */
+    private static final int STATE_EXPIRED = 2;
+
+    // -----類別列舉-----
+    /**
+     * 需求的優先等級。
+     */
+    public static enum Priority {
+
+        /**
+         * 使用者正在等待結果的需求，最優先處理。
+         */
+        INTERACTIVE,
+        /**
+         * 一般的需求。
+         */
+        NORMAL,
+        /**
+         * 大量同步之類可以延後的需求，最後處理。
+         */
+        BULK
+    }
+
+    // -----類別類別-----
+    /**
+     * 排隊中的需求。
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+
+        final Thread thread;
+        final Tenant tenant;
+        final double finishTag;
+        final long sequence;
+        final long due;
+        final long enqueueTime;
+        int state = STATE_WAITING;
+
+        Ticket(final Thread thread, final Tenant tenant, final double finishTag, final long sequence, final long due, final long enqueueTime) {
+            this.thread = thread;
+            this.tenant = tenant;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+            this.due = due;
+            this.enqueueTime = enqueueTime;
+        }
+
+        @Override
+        public int compareTo(final Ticket ticket) {
+            final int c = Double.compare(finishTag, ticket.finishTag);
+            if (c != 0) {
+                return c;
+            }
+            return sequence < ticket.sequence ? -1 : (sequence == ticket.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 某個優先等級中的租戶。
+     */
+    private static final class Tenant {
+
+        final String key;
+        double weight;
+        double lastFinishTag;
+        int pending;
+
+        Tenant(final String key, final double weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 某個優先等級的佇列。
+     */
+    private static final class PriorityClass {
+
+        final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+        final HashMap<String, Tenant> tenants = new HashMap<>();
+        final LatencyHistogram waits = new LatencyHistogram();
+        double virtualTime;
+    }
+
+    // -----物件常數-----
+    /**
+     * 排程器的名稱。
+     */
+    private final String name;
+    /**
+     * 各優先等級的佇列。
+     */
+    private final PriorityClass[] classes;
+    /**
+     * 各租戶的權重。
+     */
+    private final HashMap<String, Double> tenantWeights = new HashMap<>();
+    /**
+     * 所有需求的排隊時間(微秒)。
+     */
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    // -----物件變數-----
+    /**
+     * 同時進行的需求數量上限。
+     */
+    private int maxConcurrency;
+    /**
+     * 正在進行的需求數量。
+     */
+    private int inFlight;
+    /**
+     * 排隊中的需求數量。
+     */
+    private int queueLength;
+    /**
+     * 排隊的順序。
+     */
+    private long sequence;
+    /**
+     * 已經開始進行的需求數量。
+     */
+    private long dispatchedCount;
+    /**
+     * 排隊時超過期限而被捨棄的需求數量。
+     */
+    private long expiredCount;
+    /**
+     * 因為佇列已滿而被拒絕的需求數量。
+     */
+    private long rejectedCount;
+    /**
+     * 佇列長度上限。
+     */
+    private volatile int maxQueueLength = DEFAULT_MAX_QUEUE_LENGTH;
+    /**
+     * 最長排隊時間(毫秒)，0表示只受需求的期限限制。
+     */
+    private volatile long maxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+    /**
+     * 註冊的MBean名稱，如果為null，表示沒有註冊。
+     */
+    private ObjectName jmxName = null;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param name 傳入排程器的名稱
+     * @param maxConcurrency 傳入同時進行的需求數量上限
+     */
+    public RequestScheduler(final String name, final int maxConcurrency) {
+        if (name == null) {
+            throw new RuntimeException("Null name.");
+        }
+        this.name = name;
+        final Priority[] priorities = Priority.values();
+        classes = new PriorityClass[priorities.length];
+        for (int i = 0; i < classes.length; ++i) {
+            classes[i] = new PriorityClass();
+        }
+        setMaxConcurrency(maxConcurrency);
+    }
+
+    // -----物件方法-----
+    /**
+     * 排隊直到需求可以開始進行。
+     *
+     * @param priority 傳入優先等級
+     * @param tenantKey 傳入租戶的鍵值
+     * @param deadline 傳入需求的期限(奈秒時間)，0表示沒有期限
+     * @param request 傳入排隊的需求，它被嘗試關閉時會離開佇列
+     * @return 傳回排隊的時間(奈秒)，如果為QUEUE_FULL、EXPIRED或CANCELLED，表示被拒絕、被捨棄或是被取消
+     */
+    long acquire(final Priority priority, final String tenantKey, final long deadline, final MagicURLNetwork request) {
+        final long start = System.nanoTime();
+        final PriorityClass priorityClass = classes[priority.ordinal()];
+        final Ticket ticket;
+        synchronized (this) {
+            if (queueLength == 0 && inFlight < maxConcurrency) {
+                ++inFlight;
+                ++dispatchedCount;
+                priorityClass.waits.record(0);
+                waits.record(0);
+                return 0;
+            }
+            long due = deadline;
+            final long wait = maxQueueWait;
+            if (wait > 0) {
+                final long waitDue = start + wait * 1000000L;
+                if (due == 0 || waitDue - due < 0) {
+                    due = waitDue;
+                }
+            }
+            if (due != 0 && due - start <= 0) {
+                ++expiredCount;
+                return EXPIRED;
+            }
+            if (queueLength >= maxQueueLength) {
+                ++rejectedCount;
+                return QUEUE_FULL;
+            }
+            final String key = tenantKey == null ? "" : tenantKey;
+            Tenant tenant = priorityClass.tenants.get(key);
+            if (tenant == null) {
+                final Double weight = tenantWeights.get(key);
+                tenant = new Tenant(key, weight == null ? DEFAULT_TENANT_WEIGHT : weight);
+                tenant.lastFinishTag = priorityClass.virtualTime;
+                priorityClass.tenants.put(key, tenant);
+            }
+            final double finishTag = Math.max(priorityClass.virtualTime, tenant.lastFinishTag) + 1 / tenant.weight;
+            tenant.lastFinishTag = finishTag;
+            ++tenant.pending;
+            ticket = new Ticket(Thread.currentThread(), tenant, finishTag, sequence++, due, start);
+            priorityClass.queue.add(ticket);
+            ++queueLength;
+        }
+        while (true) {
+            if (!Thread.currentThread().isInterrupted() && !request.isAttemptDisconnecting()) {
+                if (ticket.due == 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remain = ticket.due - System.nanoTime();
+                    if (remain > 0) {
+                        LockSupport.parkNanos(this, remain);
+                    }
+                }
+            }
+            synchronized (this) {
+                if (ticket.state == STATE_GRANTED) {
+                    return System.nanoTime() - start;
+                }
+                if (ticket.state == STATE_EXPIRED) {
+                    return EXPIRED;
+                }
+                if (request.isAttemptDisconnecting()) {
+                    // 需求被取消，離開佇列
+                    priorityClass.queue.remove(ticket);
+                    leave(priorityClass, ticket);
+                    return CANCELLED;
+                }
+                if ((ticket.due != 0 && ticket.due - System.nanoTime() <= 0) || Thread.currentThread().isInterrupted()) {
+                    priorityClass.queue.remove(ticket);
+                    leave(priorityClass, ticket);
+                    ++expiredCount;
+                    return EXPIRED;
+                }
+            }
+        }
+    }
+
+    /**
+     * 需求結束，讓排隊中的需求開始進行。
+     */
+    synchronized void release() {
+        --inFlight;
+        dispatch();
+    }
+
+    /**
+     * 依照優先等級和虛擬完成時間，讓排隊中的需求開始進行。已經超過期限的需求會直接被捨棄，不會佔用名額。
+     */
+    private void dispatch() {
+        while (queueLength > 0 && inFlight < maxConcurrency) {
+            PriorityClass priorityClass = null;
+            for (final PriorityClass c : classes) {
+                if (!c.queue.isEmpty()) {
+                    priorityClass = c;
+                    break;
+                }
+            }
+            final Ticket ticket = priorityClass.queue.poll();
+            priorityClass.virtualTime = ticket.finishTag;
+            leave(priorityClass, ticket);
+            final long now = System.nanoTime();
+            if (ticket.due != 0 && ticket.due - now <= 0) {
+                ticket.state = STATE_EXPIRED;
+                ++expiredCount;
+            } else {
+                ticket.state = STATE_GRANTED;
+                ++inFlight;
+                ++dispatchedCount;
+                final long waitMicros = (now - ticket.enqueueTime) / 1000;
+                priorityClass.waits.record(waitMicros);
+                waits.record(waitMicros);
+            }
+            LockSupport.unpark(ticket.thread);
+        }
+    }
+
+    /**
+     * 需求離開佇列。沒有排隊中的需求的租戶會被移除，它的虛擬完成時間一定不會晚於目前的虛擬時間，所以不會影響公平性。
+     *
+     * @param priorityClass 傳入優先等級的佇列
+     * @param ticket 傳入需求
+     */
+    private void leave(final PriorityClass priorityClass, final Ticket ticket) {
+        --queueLength;
+        final Tenant tenant = ticket.tenant;
+        if (--tenant.pending == 0) {
+            priorityClass.tenants.remove(tenant.key);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * 設定同時進行的需求數量上限，可以在使用時調整。
+     *
+     * @param maxConcurrency 傳入同時進行的需求數量上限
+     */
+    public synchronized void setMaxConcurrency(final int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new RuntimeException("The max concurrency needs to be at least 1.");
+        }
+        this.maxConcurrency = maxConcurrency;
+        dispatch();
+    }
+
+    /**
+     * 取得佇列長度上限。
+     *
+     * @return 傳回佇列長度上限
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * 設定佇列長度上限，佇列已滿時，新的需求會立刻被拒絕。
+     *
+     * @param maxQueueLength 傳入佇列長度上限，0表示不排隊
+     */
+    public void setMaxQueueLength(final int maxQueueLength) {
+        if (maxQueueLength < 0) {
+            throw new RuntimeException("The max queue length needs to be at least 0.");
+        }
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    /**
+     * 取得最長排隊時間。
+     *
+     * @return 傳回最長排隊時間(毫秒)，0表示只受需求的期限限制
+     */
+    public long getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    /**
+     * 設定最長排隊時間，排隊的時間也不會超過需求的期限。
+     *
+     * @param maxQueueWait 傳入最長排隊時間(毫秒)，0表示只受需求的期限限制
+     */
+    public void setMaxQueueWait(final long maxQueueWait) {
+        if (maxQueueWait < 0) {
+            throw new RuntimeException("The max queue wait needs to be at least 0.");
+        }
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * 取得租戶的權重。
+     *
+     * @param tenantKey 傳入租戶的鍵值
+     * @return 傳回租戶的權重
+     */
+    public synchronized double getTenantWeight(final String tenantKey) {
+        final Double weight = tenantWeights.get(tenantKey == null ? "" : tenantKey);
+        return weight == null ? DEFAULT_TENANT_WEIGHT : weight;
+    }
+
+    /**
+     * 設定租戶的權重，相同優先等級中，權重越大的租戶可以得到越多的名額。會影響之後排隊的需求。
+     *
+     * @param tenantKey 傳入租戶的鍵值
+     * @param weight 傳入租戶的權重，必須大於0
+     */
+    public synchronized void setTenantWeight(final String tenantKey, final double weight) {
+        if (weight <= 0) {
+            throw new RuntimeException("The tenant weight needs to be greater than 0.");
+        }
+        final String key = tenantKey == null ? "" : tenantKey;
+        if (weight == DEFAULT_TENANT_WEIGHT) {
+            tenantWeights.remove(key);
+        } else {
+            tenantWeights.put(key, weight);
+        }
+        for (final PriorityClass priorityClass : classes) {
+            final Tenant tenant = priorityClass.tenants.get(key);
+            if (tenant != null) {
+                tenant.weight = weight;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * 取得某個優先等級排隊中的需求數量。
+     *
+     * @param priority 傳入優先等級
+     * @return 傳回排隊中的需求數量
+     */
+    public synchronized int getQueueLength(final Priority priority) {
+        return classes[priority.ordinal()].queue.size();
+    }
+
+    @Override
+    public synchronized long getDispatchedCount() {
+        return dispatchedCount;
+    }
+
+    @Override
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    @Override
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * 建立所有需求排隊時間的快照。
+     *
+     * @return 傳回排隊時間(微秒)的快照
+     */
+    public LatencyHistogram.Snapshot getWaitSnapshot() {
+        return waits.snapshot();
+    }
+
+    /**
+     * 建立某個優先等級排隊時間的快照。
+     *
+     * @param priority 傳入優先等級
+     * @return 傳回排隊時間(微秒)的快照
+     */
+    public LatencyHistogram.Snapshot getWaitSnapshot(final Priority priority) {
+        return classes[priority.ordinal()].waits.snapshot();
+    }
+
+    @Override
+    public double getMeanWaitTime() {
+        return waits.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50WaitTime() {
+        return waits.snapshot().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90WaitTime() {
+        return waits.snapshot().getPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99WaitTime() {
+        return waits.snapshot().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getMaxWaitTime() {
+        return waits.getMax() / 1000.0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        dispatchedCount = 0;
+        expiredCount = 0;
+        rejectedCount = 0;
+        waits.reset();
+        for (final PriorityClass priorityClass : classes) {
+            priorityClass.waits.reset();
+        }
+    }
+
+    /**
+     * 將排程器註冊到平台的MBean伺服器。
+     *
+     * @param domain 傳入MBean的網域，例如org.magiclen.magicurlnetwork
+     */
+    public synchronized void registerMBean(final String domain) {
+        if (domain == null || domain.isEmpty()) {
+            throw new RuntimeException("The JMX domain is empty.");
+        }
+        if (jmxName != null) {
+            throw new RuntimeException("The MBean has been registered.");
+        }
+        try {
+            final ObjectName objectName = new ObjectName(domain.concat(":type=scheduler,name=").concat(ObjectName.quote(name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            jmxName = objectName;
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex.getMessage());
+        }
+    }
+
+    /**
+     * 從平台的MBean伺服器移除排程器。
+     */
+    public synchronized void unregisterMBean() {
+        final ObjectName objectName = jmxName;
+        if (objectName == null) {
+            return;
+        }
+        jmxName = null;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (final Exception ex) {
+            MagicURLNetwork.reportError(MagicURLNetwork.getDefaultErrorSink(), new FailureCause(FailureCause.Kind.OTHER, "Failed to update the MBean.", null, 0, -1, ex));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+/**
+ * 透過JMX讀取RequestScheduler的介面。
+ *
+ * @author Magic Len
+ * @see RequestScheduler
+ */
+public interface RequestSchedulerMBean {
+
+    /**
+     * 取得排程器的名稱。
+     *
+     * @return 傳回排程器的名稱
+     */
+    public String getName();
+
+    /**
+     * 取得同時進行的需求數量上限。
+     *
+     * @return 傳回同時進行的需求數量上限
+     */
+    public int getMaxConcurrency();
+
+    /**
+     * 取得正在進行的需求數量。
+     *
+     * @return 傳回正在進行的需求數量
+     */
+    public int getInFlight();
+
+    /**
+     * 取得排隊中的需求數量。
+     *
+     * @return 傳回排隊中的需求數量
+     */
+    public int getQueueLength();
+
+    /**
+     * 取得已經開始進行的需求數量。
+     *
+     * @return 傳回已經開始進行的需求數量
+     */
+    public long getDispatchedCount();
+
+    /**
+     * 取得在排隊時超過期限而被捨棄的需求數量。
+     *
+     * @return 傳回在排隊時超過期限而被捨棄的需求數量
+     */
+    public long getExpiredCount();
+
+    /**
+     * 取得因為佇列已滿而被拒絕的需求數量。
+     *
+     * @return 傳回因為佇列已滿而被拒絕的需求數量
+     */
+    public long getRejectedCount();
+
+    /**
+     * 取得平均的排隊時間。
+     *
+     * @return 傳回平均的排隊時間(毫秒)
+     */
+    public double getMeanWaitTime();
+
+    /**
+     * 取得排隊時間的第50百分位數。
+     *
+     * @return 傳回排隊時間的第50百分位數(毫秒)
+     */
+    public double getP50WaitTime();
+
+    /**
+     * 取得排隊時間的第90百分位數。
+     *
+     * @return 傳回排隊時間的第90百分位數(毫秒)
+     */
+    public double getP90WaitTime();
+
+    /**
+     * 取得排隊時間的第99百分位數。
+     *
+     * @return 傳回排隊時間的第99百分位數(毫秒)
+     */
+    public double getP99WaitTime();
+
+    /**
+     * 取得最長的排隊時間。
+     *
+     * @return 傳回最長的排隊時間(毫秒)
+     */
+    public double getMaxWaitTime();
+
+    /**
+     * 清除所有統計。
+     */
+    public void reset();
+}
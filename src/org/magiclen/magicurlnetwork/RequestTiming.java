@@ -0,0 +1,416 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * 一次開啟URL的各階段時間和傳輸量。
+ * </p>
+ *
+ * <p>
+ * 所有時間點都是System.nanoTime()的值，沒有經過的階段為0。URLConnection無法分開DNS查詢、TCP連線和TLS交握的時間，所以這些時間都算在連線階段中。如果有重試，只會記錄最後一次嘗試。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork
+ */
+public final class RequestTiming {
+
+    // -----類別類別-----
+    /**
+     * 計算讀取量和第一個位元組時間的輸入串流。
+     */
+    static final class TimingInputStream extends FilterInputStream {
+
+        private final RequestTiming timing;
+
+        TimingInputStream(final InputStream in, final RequestTiming timing) {
+            super(in);
+            this.timing = timing;
+        }
+
+        private void count(final long n) {
+            if (n > 0) {
+                if (timing.firstByte == 0) {
+                    timing.firstByte = System.nanoTime();
+                }
+                timing.bytesReceived += n;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int c = in.read(b, off, len);
+            count(c);
+            return c;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long c = in.skip(n);
+            count(c);
+            return c;
+        }
+    }
+
+    /**
+     * 計算寫入量的輸出串流。
+     */
+    static final class TimingOutputStream extends FilterOutputStream {
+
+        private final RequestTiming timing;
+
+        TimingOutputStream(final OutputStream out, final RequestTiming timing) {
+            super(out);
+            this.timing = timing;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            ++timing.bytesSent;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            timing.bytesSent += len;
+        }
+    }
+
+    // -----類別方法-----
+    /**
+     * 計算兩個時間點之間的時間。
+     *
+     * @param from 傳入開始的時間點
+     * @param to 傳入結束的時間點
+     * @return 傳回經過的時間(奈秒)，如果有時間點沒有經過，傳回-1
+     */
+    private static long between(final long from, final long to) {
+        if (from == 0 || to == 0) {
+            return -1;
+        }
+        return to - from;
+    }
+
+    // -----物件常數-----
+    /**
+     * 第幾次嘗試。
+     */
+    private final int attempt;
+    /**
+     * 開始的時間。
+     */
+    final long start;
+
+    // -----物件變數-----
+    /**
+     * 開始建立連線物件的時間。
+     */
+    long building;
+    /**
+     * 建立好連線物件的時間。
+     */
+    long built;
+    /**
+     * 開始建立連線的時間。
+     */
+    long ready;
+    /**
+     * 連線建立完成的時間。
+     */
+    long connected;
+    /**
+     * 需求內容傳送完成的時間。
+     */
+    long sent;
+    /**
+     * 收到回應碼的時間。
+     */
+    long responded;
+    /**
+     * 收到第一個內容位元組的時間。
+     */
+    long firstByte;
+    /**
+     * 內容接收完成的時間。
+     */
+    long lastByte;
+    /**
+     * 結束的時間。
+     */
+    long end;
+    /**
+     * 傳送的位元組數量。
+     */
+    long bytesSent;
+    /**
+     * 接收的位元組數量。
+     */
+    long bytesReceived;
+    /**
+     * 等待頻寬的時間(奈秒)。
+     */
+    long throttleNanos;
+    /**
+     * 透過HTTPSDNSCache解析主機名稱的時間(奈秒)。
+     */
+    long dnsNanos;
+
+    // -----建構子-----
+    /**
+     * 建構子，傳入第幾次嘗試。
+     *
+     * @param attempt 傳入第幾次嘗試
+     */
+    RequestTiming(final int attempt) {
+        this.attempt = attempt;
+        this.start = System.nanoTime();
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得第幾次嘗試。
+     *
+     * @return 傳回第幾次嘗試，第一次為1
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * 取得開始的時間點。
+     *
+     * @return 傳回開始的時間點(System.nanoTime())
+     */
+    public long getStartTime() {
+        return start;
+    }
+
+    /**
+     * 取得開始建立連線物件的時間點。
+     *
+     * @return 傳回開始建立連線物件的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getConnectionBuildingTime() {
+        return building;
+    }
+
+    /**
+     * 取得建立好連線物件的時間點。
+     *
+     * @return 傳回建立好連線物件的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getConnectionBuiltTime() {
+        return built;
+    }
+
+    /**
+     * 取得開始建立連線的時間點，排隊和等待都已經結束。
+     *
+     * @return 傳回開始建立連線的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getConnectStartTime() {
+        return ready;
+    }
+
+    /**
+     * 取得連線建立完成的時間點。
+     *
+     * @return 傳回連線建立完成的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getConnectedTime() {
+        return connected;
+    }
+
+    /**
+     * 取得需求內容傳送完成的時間點。
+     *
+     * @return 傳回需求內容傳送完成的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getRequestSentTime() {
+        return sent;
+    }
+
+    /**
+     * 取得收到回應碼的時間點。
+     *
+     * @return 傳回收到回應碼的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getResponseReceivedTime() {
+        return responded;
+    }
+
+    /**
+     * 取得收到第一個內容位元組的時間點。
+     *
+     * @return 傳回收到第一個內容位元組的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getFirstByteTime() {
+        return firstByte;
+    }
+
+    /**
+     * 取得內容接收完成的時間點。
+     *
+     * @return 傳回內容接收完成的時間點(System.nanoTime())，如果為0，表示沒有經過
+     */
+    public long getLastByteTime() {
+        return lastByte;
+    }
+
+    /**
+     * 取得結束的時間點。
+     *
+     * @return 傳回結束的時間點(System.nanoTime())，如果為0，表示還沒結束
+     */
+    public long getEndTime() {
+        return end;
+    }
+
+    /**
+     * 取得建立連線物件所花的時間。
+     *
+     * @return 傳回建立連線物件所花的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getConnectionBuildNanos() {
+        return between(building, built);
+    }
+
+    /**
+     * 取得建立連線之前等待的時間，包含選擇端點和探測鏡像站、等待合併的需求、在排程器和並行數量限制中排隊，以及透過HTTPSDNSCache解析主機名稱的時間。
+     *
+     * @return 傳回等待的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getWaitNanos() {
+        if (building == 0 || ready == 0) {
+            return -1;
+        }
+        return (building - start) + between(built, ready);
+    }
+
+    /**
+     * 取得建立連線所花的時間，包含JVM的DNS查詢、TCP連線和TLS交握，不包含排隊的時間。
+     *
+     * @return 傳回建立連線所花的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getConnectNanos() {
+        return between(ready, connected);
+    }
+
+    /**
+     * 取得傳送需求內容所花的時間。
+     *
+     * @return 傳回傳送需求內容所花的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getRequestSendNanos() {
+        return between(connected, sent);
+    }
+
+    /**
+     * 取得傳送完需求之後，等待回應碼所花的時間(TTFB)。
+     *
+     * @return 傳回等待回應碼所花的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getTimeToFirstByteNanos() {
+        return between(sent, responded);
+    }
+
+    /**
+     * 取得接收內容所花的時間，從收到回應碼開始計算。
+     *
+     * @return 傳回接收內容所花的時間(奈秒)，如果為-1，表示沒有經過
+     */
+    public long getReceiveNanos() {
+        return between(responded, lastByte);
+    }
+
+    /**
+     * 取得整個嘗試所花的時間。
+     *
+     * @return 傳回整個嘗試所花的時間(奈秒)，如果為-1，表示還沒結束
+     */
+    public long getTotalNanos() {
+        return between(start, end);
+    }
+
+    /**
+     * 取得傳送的位元組數量，不包含標頭。
+     *
+     * @return 傳回傳送的位元組數量
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * 取得接收的位元組數量，不包含標頭。
+     *
+     * @return 傳回接收的位元組數量
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * 取得透過HTTPSDNSCache解析主機名稱的時間，使用快取時接近0。
+     *
+     * @return 傳回解析主機名稱的時間(奈秒)，沒有使用HTTPSDNSCache或不是HTTPS連線時為0
+     */
+    public long getDNSNanos() {
+        return dnsNanos;
+    }
+
+    /**
+     * 取得因為頻寬限制而等待的時間。
+     *
+     * @return 傳回因為頻寬限制而等待的時間(奈秒)
+     */
+    public long getThrottleNanos() {
+        return throttleNanos;
+    }
+
+    /**
+     * 取得是否有經過網路連線。使用快取或合併需求的結果時，不會經過網路連線。
+     *
+     * @return 傳回是否有經過網路連線
+     */
+    public boolean isConnected() {
+        return connected != 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("attempt=%d, build=%dns, wait=%dns, dns=%dns, connect=%dns, send=%dns, ttfb=%dns, receive=%dns, total=%dns, throttle=%dns, sent=%dB, received=%dB", attempt, getConnectionBuildNanos(), getWaitNanos(), dnsNanos, getConnectNanos(), getRequestSendNanos(), getTimeToFirstByteNanos(), getReceiveNanos(), getTotalNanos(), throttleNanos, bytesSent, bytesReceived);
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>
+ * 連線到已解析的IP位址的SSLSocketFactory。
+ * </p>
+ *
+ * <p>
+ * HttpsURLConnection會先取得未連線的Socket再自己連線，它在呼叫connect之前已經透過JVM解析過主機名稱，這裡傳回的Socket會忽略JVM解析的位址，改為取得主機名稱的所有IP位址(有設定HTTPSDNSCache時由它解析，需求在同一個執行緒中已經解析過時直接使用那個結果)，以Happy Eyeballs的方式錯開時間連線，連線成功後再交給原本的SSLSocketFactory進行TLS交握。所有主機共用同一個物件，HttpsURLConnection才能將連線放回連線池中重複使用。
+ * </p>
+ *
+ * @author Magic Len
+ * @see HTTPSDNSCache
+ * @see StaggeredConnector
+ */
+final class ResolvedSSLSocketFactory extends SSLSocketFactory {
+
+    // -----類別類別-----
+    /**
+     * 連線到已解析的IP位址的Socket，連線後的操作都交給實際連線的Socket。
+     */
+    private static final class ResolvedSocket extends Socket {
+
+        private final HTTPSDNSCache dnsCache;
+        private volatile Socket socket;
+        private int soTimeout;
+        private boolean tcpNoDelay;
+        private boolean keepAlive;
+
+        ResolvedSocket(final HTTPSDNSCache dnsCache) {
+            this.dnsCache = dnsCache;
+        }
+
+        private Socket connected() throws SocketException {
+            final Socket s = socket;
+            if (s == null) {
+                throw new SocketException("Socket is not connected");
+            }
+            return s;
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint, final int timeout) throws IOException {
+            if (socket != null) {
+                throw new SocketException("Already connected");
+            }
+            final InetSocketAddress address = (InetSocketAddress) endpoint;
+            final String hostString = address.getHostString();
+            InetAddress[] addresses = takePreresolved(hostString);
+            if (addresses == null) {
+                addresses = dnsCache != null ? dnsCache.resolve(hostString) : InetAddress.getAllByName(hostString);
+            }
+            final InetAddress[] targets = StaggeredConnector.interleave(addresses);
+            socket = StaggeredConnector.connect(targets, address.getPort(), timeout, MagicURLNetwork.getConnectionAttemptDelay(), soTimeout, tcpNoDelay, keepAlive);
+        }
+
+        @Override
+        public void bind(final SocketAddress bindpoint) throws IOException {
+            throw new SocketException("Bind is not supported");
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            final Socket s = socket;
+            return s != null ? s.getInetAddress() : null;
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            final Socket s = socket;
+            return s != null ? s.getLocalAddress() : super.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            final Socket s = socket;
+            return s != null ? s.getPort() : 0;
+        }
+
+        @Override
+        public int getLocalPort() {
+            final Socket s = socket;
+            return s != null ? s.getLocalPort() : -1;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            final Socket s = socket;
+            return s != null ? s.getRemoteSocketAddress() : null;
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            final Socket s = socket;
+            return s != null ? s.getLocalSocketAddress() : null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connected().getOutputStream();
+        }
+
+        @Override
+        public void setTcpNoDelay(final boolean on) throws SocketException {
+            tcpNoDelay = on;
+            final Socket s = socket;
+            if (s != null) {
+                s.setTcpNoDelay(on);
+            }
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            final Socket s = socket;
+            return s != null ? s.getTcpNoDelay() : tcpNoDelay;
+        }
+
+        @Override
+        public void setSoLinger(final boolean on, final int linger) throws SocketException {
+            connected().setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return connected().getSoLinger();
+        }
+
+        @Override
+        public void sendUrgentData(final int data) throws IOException {
+            connected().sendUrgentData(data);
+        }
+
+        @Override
+        public void setOOBInline(final boolean on) throws SocketException {
+            connected().setOOBInline(on);
+        }
+
+        @Override
+        public boolean getOOBInline() throws SocketException {
+            return connected().getOOBInline();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(final int timeout) throws SocketException {
+            soTimeout = timeout;
+            final Socket s = socket;
+            if (s != null) {
+                s.setSoTimeout(timeout);
+            }
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            final Socket s = socket;
+            return s != null ? s.getSoTimeout() : soTimeout;
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(final int size) throws SocketException {
+            connected().setSendBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() throws SocketException {
+            return connected().getSendBufferSize();
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(final int size) throws SocketException {
+            connected().setReceiveBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() throws SocketException {
+            return connected().getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(final boolean on) throws SocketException {
+            keepAlive = on;
+            final Socket s = socket;
+            if (s != null) {
+                s.setKeepAlive(on);
+            }
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            final Socket s = socket;
+            return s != null ? s.getKeepAlive() : keepAlive;
+        }
+
+        @Override
+        public void setTrafficClass(final int tc) throws SocketException {
+            connected().setTrafficClass(tc);
+        }
+
+        @Override
+        public int getTrafficClass() throws SocketException {
+            return connected().getTrafficClass();
+        }
+
+        @Override
+        public void setReuseAddress(final boolean on) throws SocketException {
+            connected().setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException {
+            return connected().getReuseAddress();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            final Socket s = socket;
+            if (s != null) {
+                s.close();
+            }
+            super.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            connected().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            connected().shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            final Socket s = socket;
+            return s != null && s.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            final Socket s = socket;
+            return s != null && s.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            final Socket s = socket;
+            return s != null ? s.isClosed() : super.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            final Socket s = socket;
+            return s != null && s.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            final Socket s = socket;
+            return s != null && s.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            final Socket s = socket;
+            return s != null ? s.toString() : "ResolvedSocket[unconnected]";
+        }
+    }
+
+    // -----類別常數-----
+    /**
+     * 需求在這個執行緒中已經透過HTTPSDNSCache解析的主機名稱和IP位址，連線時直接使用，不必再查詢一次快取。
+     */
+    private static final ThreadLocal<Object[]> PRERESOLVED = new ThreadLocal<>();
+
+    // -----類別方法-----
+    /**
+     * 記下需求在這個執行緒中已經解析的IP位址，讓接下來的連線直接使用。
+     *
+     * @param host 傳入主機名稱
+     * @param addresses 傳入主機名稱的所有IP位址
+     */
+    static void setPreresolved(final String host, final InetAddress[] addresses) {
+        PRERESOLVED.set(new Object[]{host, addresses});
+    }
+
+    /**
+     * 清除這個執行緒中已經解析的IP位址。連線被重複使用而沒有建立新的連線時，需求結束後要清除。
+     */
+    static void clearPreresolved() {
+        PRERESOLVED.remove();
+    }
+
+    /**
+     * 取出這個執行緒中已經解析的IP位址，只能使用一次。
+     *
+     * @param host 傳入主機名稱
+     * @return 傳回主機名稱的所有IP位址，如果沒有或是主機名稱不同，傳回null
+     */
+    private static InetAddress[] takePreresolved(final String host) {
+        final Object[] preresolved = PRERESOLVED.get();
+        if (preresolved == null) {
+            return null;
+        }
+        PRERESOLVED.remove();
+        return ((String) preresolved[0]).equalsIgnoreCase(host) ? (InetAddress[]) preresolved[1] : null;
+    }
+
+    // -----物件常數-----
+    /**
+     * 進行TLS交握的SSLSocketFactory。
+     */
+    private final SSLSocketFactory factory;
+    /**
+     * 主機名稱解析快取，如果為null，表示使用JVM的解析方式。
+     */
+    private final HTTPSDNSCache dnsCache;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param factory 傳入進行TLS交握的SSLSocketFactory
+     * @param dnsCache 傳入主機名稱解析快取，如果為null，表示使用JVM的解析方式
+     */
+    ResolvedSSLSocketFactory(final SSLSocketFactory factory, final HTTPSDNSCache dnsCache) {
+        this.factory = factory;
+        this.dnsCache = dnsCache;
+    }
+
+    // -----物件方法-----
+    /**
+     * 判斷是否使用指定的SSLSocketFactory和主機名稱解析快取。
+     *
+     * @param factory 傳入進行TLS交握的SSLSocketFactory
+     * @param dnsCache 傳入主機名稱解析快取
+     * @return 傳回是否使用指定的SSLSocketFactory和主機名稱解析快取
+     */
+    boolean uses(final SSLSocketFactory factory, final HTTPSDNSCache dnsCache) {
+        return this.factory == factory && this.dnsCache == dnsCache;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return factory.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return new ResolvedSocket(dnsCache);
+    }
+
+    @Override
+    public Socket createSocket(final Socket s, final String host, final int port, final boolean autoClose) throws IOException {
+        return factory.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return factory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+        return factory.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        return factory.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+        return factory.createSocket(address, port, localAddress, localPort);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 儲存URL回傳的內容。
+ * </p>
+ *
+ * <p>
+ * 沒有目標檔案時，內容會先存在記憶體中；當內容超過單一連線的門檻值，或是所有連線使用的記憶體超過全域預算時，會自動改存到暫存檔案中。向全域預算保留的是實際配置的陣列大小，包含擴充時新舊陣列同時存在的時候；內容完成後會直接交出內部的陣列，不再複製一次，直到交出結果或是捨棄內容時才歸還預算。如果有設定內容大小的上限，超過上限時會立刻拋出例外，中止傳輸。
+ * 以不可分割的方式寫入目標檔案時，內容會先存到目標檔案所在目錄的暫存檔案中，完成後才改名成目標檔案。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork
+ */
+final class ResponseBuffer extends OutputStream {
+
+    // -----類別常數-----
+    /**
+     * 記憶體中的內容第一次送出變大事件的大小，之後每次變成兩倍時再送出。
+     */
+    private static final long GROWTH_EVENT_SIZE = 1 << 20;
+    /**
+     * 長度未知時，記憶體中陣列的初始大小。
+     */
+    private static final int INITIAL_CAPACITY = 8192;
+    /**
+     * 陣列大小的上限。
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    // -----類別變數-----
+    /**
+     * 所有連線的記憶體預算。
+     */
+    private static volatile long globalBudget = Long.MAX_VALUE;
+    /**
+     * 所有連線目前使用的記憶體大小。
+     */
+    private static final AtomicLong GLOBAL_USAGE = new AtomicLong();
+    /**
+     * 暫存檔案所在的目錄，如果為null，使用系統的暫存目錄。
+     */
+    private static volatile File spillDirectory = null;
+
+    // -----類別方法-----
+    /**
+     * 取得所有連線的記憶體預算。
+     *
+     * @return 傳回所有連線的記憶體預算
+     */
+    static long getGlobalBudget() {
+        return globalBudget;
+    }
+
+    /**
+     * 設定所有連線的記憶體預算。
+     *
+     * @param budget 傳入所有連線的記憶體預算
+     */
+    static void setGlobalBudget(final long budget) {
+        globalBudget = budget;
+    }
+
+    /**
+     * 取得所有連線目前使用的記憶體大小。
+     *
+     * @return 傳回所有連線目前使用的記憶體大小
+     */
+    static long getGlobalUsage() {
+        return GLOBAL_USAGE.get();
+    }
+
+    /**
+     * 取得暫存檔案所在的目錄。
+     *
+     * @return 傳回暫存檔案所在的目錄，如果為null，使用系統的暫存目錄
+     */
+    static File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * 設定暫存檔案所在的目錄。
+     *
+     * @param directory 傳入暫存檔案所在的目錄，如果為null，使用系統的暫存目錄
+     */
+    static void setSpillDirectory(final File directory) {
+        spillDirectory = directory;
+    }
+
+    /**
+     * 向全域預算保留記憶體。
+     *
+     * @param size 傳入要保留的大小
+     * @return 傳回是否保留成功
+     */
+    private static boolean reserve(final long size) {
+        while (true) {
+            final long usage = GLOBAL_USAGE.get();
+            final long newUsage = usage + size;
+            if (newUsage > globalBudget || newUsage < 0) {
+                return false;
+            }
+            if (GLOBAL_USAGE.compareAndSet(usage, newUsage)) {
+                return true;
+            }
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 目標檔案，如果不為null，內容會直接存到這個檔案。
+     */
+    private final File targetFile;
+    /**
+     * 單一連線存在記憶體中的內容大小門檻值。
+     */
+    private final long threshold;
+    /**
+     * 內容大小的上限，如果小於0，表示沒有上限。
+     */
+    private final long maxSize;
+    /**
+     * 是否以不可分割的方式寫入目標檔案。
+     */
+    private final boolean atomic;
+
+    // -----物件變數-----
+    /**
+     * 存在記憶體中的內容，如果為null，表示內容存在檔案中。
+     */
+    private byte[] memory;
+    /**
+     * 暫存檔案或目標檔案。
+     */
+    private File file;
+    /**
+     * 暫存檔案或目標檔案的輸出串流。
+     */
+    private OutputStream fileOutputStream;
+    /**
+     * 向全域預算保留的記憶體大小，也就是記憶體中陣列的大小。
+     */
+    private long reserved = 0;
+    /**
+     * 目前已寫入的內容大小。
+     */
+    private long size = 0;
+    /**
+     * 下一次送出變大事件的大小。
+     */
+    private long nextGrowthEventSize = GROWTH_EVENT_SIZE;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param targetFile 傳入目標檔案，如果為null，內容會先存在記憶體中
+     * @param threshold 傳入單一連線存在記憶體中的內容大小門檻值
+     * @param maxSize 傳入內容大小的上限，如果小於0，表示沒有上限
+     * @param atomic 傳入是否以不可分割的方式寫入目標檔案
+     * @throws IOException 拋出例外
+     */
+    ResponseBuffer(final File targetFile, final long threshold, final long maxSize, final boolean atomic) throws IOException {
+        this.targetFile = targetFile;
+        this.threshold = threshold;
+        this.maxSize = maxSize;
+        this.atomic = atomic && targetFile != null;
+        if (targetFile == null) {
+            memory = new byte[0];
+        } else if (this.atomic) {
+            file = File.createTempFile(".".concat(targetFile.getName()), ".part", targetFile.getAbsoluteFile().getParentFile());
+            fileOutputStream = new FileOutputStream(file);
+        } else {
+            file = targetFile;
+            fileOutputStream = new FileOutputStream(targetFile);
+        }
+    }
+
+    // -----物件方法-----
+    /**
+     * 告知預期的內容長度，讓過大的內容能提早被拒絕，或是直接存到暫存檔案。
+     *
+     * @param contentLength 傳入預期的內容長度，如果為-1，表示長度未知
+     * @throws IOException 拋出例外
+     */
+    void expect(final long contentLength) throws IOException {
+        if (contentLength < 0) {
+            return;
+        }
+        checkMaxSize(contentLength);
+        if (memory != null && contentLength > memory.length) {
+            // 長度已知時直接配置剛好的大小，完成時就不必再縮小陣列
+            resize(contentLength);
+        }
+    }
+
+    /**
+     * 將記憶體中的陣列改成新的大小。超過門檻值或是全域預算不足時，改存到暫存檔案中。
+     *
+     * @param capacity 傳入新的大小
+     * @throws IOException 拋出例外
+     */
+    private void resize(final long capacity) throws IOException {
+        if (capacity > threshold || capacity > MAX_ARRAY_SIZE || !reserve(capacity)) {
+            spill();
+            return;
+        }
+        // 複製時新舊陣列同時存在，所以先保留新的大小，複製完才歸還舊的大小
+        memory = Arrays.copyOf(memory, (int) capacity);
+        release();
+        reserved = capacity;
+    }
+
+    /**
+     * 檢查內容大小是否超過上限。
+     *
+     * @param newSize 傳入內容大小
+     * @throws IOException 拋出例外
+     */
+    private void checkMaxSize(final long newSize) throws IOException {
+        if (maxSize >= 0 && newSize > maxSize) {
+            throw new IOException(String.format("Response size exceeds the limit of %d bytes.", maxSize));
+        }
+    }
+
+    /**
+     * 將記憶體中的內容移到暫存檔案中。
+     *
+     * @throws IOException 拋出例外
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile("magicurlnetwork", ".tmp", spillDirectory);
+        fileOutputStream = new FileOutputStream(file);
+        if (FlightRecorderEvents.isRecording()) {
+            FlightRecorderEvents.emit(FlightRecorderEvents.BUFFER_GROWTH, size, true);
+        }
+        fileOutputStream.write(memory, 0, (int) size);
+        memory = null;
+        release();
+    }
+
+    /**
+     * 歸還向全域預算保留的記憶體。
+     */
+    private void release() {
+        if (reserved > 0) {
+            GLOBAL_USAGE.addAndGet(-reserved);
+            reserved = 0;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        final long newSize = size + len;
+        checkMaxSize(newSize);
+        if (memory != null && newSize > memory.length) {
+            final long capacity = Math.max(newSize, Math.max(INITIAL_CAPACITY, (long) memory.length << 1));
+            resize(newSize > threshold ? newSize : Math.min(capacity, Math.min(threshold, MAX_ARRAY_SIZE)));
+        }
+        if (memory != null) {
+            System.arraycopy(b, off, memory, (int) size, len);
+            if (newSize >= nextGrowthEventSize) {
+                while (newSize >= nextGrowthEventSize) {
+                    nextGrowthEventSize <<= 1;
+                }
+                if (FlightRecorderEvents.isRecording()) {
+                    FlightRecorderEvents.emit(FlightRecorderEvents.BUFFER_GROWTH, newSize, false);
+                }
+            }
+        } else {
+            fileOutputStream.write(b, off, len);
+        }
+        size = newSize;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (memory != null && memory.length != size) {
+            // 縮小成剛好的大小，之後可以直接交出陣列
+            resize(size);
+        }
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * 取得內容是否被存到暫存檔案中。
+     *
+     * @return 傳回內容是否被存到暫存檔案中
+     */
+    boolean isSpilled() {
+        return targetFile == null && memory == null;
+    }
+
+    /**
+     * 以不可分割的方式將暫存檔案改名成目標檔案。在呼叫這個方法前，必須先關閉串流。
+     *
+     * @throws IOException 拋出例外
+     */
+    void commit() throws IOException {
+        if (atomic && file != targetFile) {
+            Files.move(file.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            file = targetFile;
+        }
+    }
+
+    /**
+     * 取得回傳的內容，並歸還向全域預算保留的記憶體。在呼叫這個方法前，必須先關閉串流。
+     *
+     * @return 傳回位元組陣列，不會再複製一次。如果內容存到了檔案中，則傳回檔案
+     */
+    Object getResult() {
+        release();
+        if (memory != null) {
+            return memory;
+        }
+        return file;
+    }
+
+    /**
+     * 捨棄內容，刪除暫存檔案。
+     */
+    void discard() {
+        release();
+        if (fileOutputStream != null) {
+            try {
+                fileOutputStream.close();
+            } catch (final IOException ex) {
+                // 不影響
+            }
+        }
+        if (isSpilled() || (atomic && file != targetFile)) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * 重試的策略，可以被多個MagicURLNetwork物件共用。只有冪等的需求(GET、HEAD、PUT、DELETE)會被重試。
+ * </p>
+ *
+ * <p>
+ * 連線失敗、逾時，或是收到指定的回應碼時，會在等待一段時間後重試。等待時間使用指數退避和完全抖動，也就是在0到「基本等待時間×2^(重試次數-1)」之間隨機選擇，而且不超過最長等待時間；如果回應中有Retry-After，則使用Retry-After的時間，但它超過最長等待時間時就不重試。所有重試共用同一個期限，期限到了就不再重試，每次連線的逾時時間也不會超過剩下的時間。
+ * </p>
+ *
+ * <p>
+ * 為了避免重試風暴，每次重試都會用掉一個權杖，每次成功會補回一部分權杖，權杖用完時不會再重試。
+ * </p>
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork
+ */
+public class RetryPolicy {
+
+    // -----類別常數-----
+    /**
+     * 預設的最多嘗試次數(包含第一次)。
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /**
+     * 預設的基本等待時間(毫秒)。
+     */
+    public static final long DEFAULT_BASE_DELAY = 100;
+    /**
+     * 預設的最長等待時間(毫秒)。
+     */
+    public static final long DEFAULT_MAX_DELAY = 10000;
+    /**
+     * 預設的權杖數量上限。
+     */
+    public static final int DEFAULT_TOKEN_CAPACITY = 10;
+    /**
+     * 預設每次成功補回的權杖數量。
+     */
+    public static final double DEFAULT_TOKEN_RATIO = 0.1;
+    /**
+     * 權杖的精度。
+     */
+    private static final int TOKEN_SCALE = 1000;
+
+    // -----類別方法-----
+    /**
+     * 判斷例外是否由指定的型態造成。
+     *
+     * @param failure 傳入例外
+     * @param types 傳入例外的型態
+     * @return 傳回例外是否由指定的型態造成
+     */
+    @SafeVarargs
+    private static boolean isCausedBy(final Throwable failure, final Class<? extends Throwable>... types) {
+        Throwable t = failure;
+        while (t != null) {
+            for (final Class<? extends Throwable> type : types) {
+                if (type.isInstance(t)) {
+                    return true;
+                }
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * 解析Retry-After標頭。
+     *
+     * @param retryAfter 傳入Retry-After標頭的值
+     * @return 傳回要等待的時間(毫秒)，如果無法解析，傳回-1
+     */
+    static long parseRetryAfter(final String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        final String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (final NumberFormatException ex) {
+            // 可能是HTTP日期
+        }
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+        } catch (final Exception ex) {
+            return -1;
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * 最多嘗試次數(包含第一次)。
+     */
+    private final int maxAttempts;
+    /**
+     * 基本等待時間(毫秒)。
+     */
+    private final long baseDelay;
+    /**
+     * 最長等待時間(毫秒)。
+     */
+    private final long maxDelay;
+    /**
+     * 目前的權杖數量(乘上精度)。
+     */
+    private final AtomicLong tokens = new AtomicLong();
+    /**
+     * 重試的次數。
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+    /**
+     * 因為權杖用完而沒有重試的次數。
+     */
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    // -----物件變數-----
+    /**
+     * 所有嘗試共用的期限(毫秒)，如果小於或等於0，表示沒有期限。
+     */
+    private volatile long deadline = 0;
+    /**
+     * 是否在連線失敗時重試。
+     */
+    private volatile boolean retryOnConnectFailure = true;
+    /**
+     * 是否在逾時時重試。
+     */
+    private volatile boolean retryOnTimeout = true;
+    /**
+     * 是否使用Retry-After標頭的時間。
+     */
+    private volatile boolean honorRetryAfter = true;
+    /**
+     * 要重試的回應碼。
+     */
+    private volatile Set<Integer> retryStatusCodes;
+    /**
+     * 權杖數量上限(乘上精度)。
+     */
+    private volatile long tokenCapacity;
+    /**
+     * 每次成功補回的權杖數量(乘上精度)。
+     */
+    private volatile long tokenRefill;
+
+    // -----建構子-----
+    /**
+     * 建構子，使用預設的嘗試次數和等待時間。
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * 建構子。
+     *
+     * @param maxAttempts 傳入最多嘗試次數(包含第一次)
+     * @param baseDelay 傳入基本等待時間(毫秒)
+     * @param maxDelay 傳入最長等待時間(毫秒)
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay) {
+        if (maxAttempts <= 0) {
+            throw new RuntimeException("Max attempts needs to be more than 0.");
+        }
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new RuntimeException("Delays are invalid.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        setRetryStatusCodes(429, 502, 503, 504);
+        setRetryBudget(DEFAULT_TOKEN_CAPACITY, DEFAULT_TOKEN_RATIO);
+    }
+
+    // -----物件方法-----
+    /**
+     * 計算下一次重試前要等待的時間，並用掉一個權杖。
+     *
+     * @param attempt 傳入已經嘗試的次數
+     * @param failure 傳入失敗的例外
+     * @param responseCode 傳入回應碼，如果為-1，表示沒有收到回應
+     * @param retryAfter 傳入Retry-After標頭的值
+     * @param timedOut 傳入是否逾時
+     * @param deadlineNanos 傳入期限的奈秒時間，如果為0，表示沒有期限
+     * @return 傳回要等待的時間(毫秒)，如果為-1，表示不要重試
+     */
+    long computeDelay(final int attempt, final Throwable failure, final int responseCode, final String retryAfter, final boolean timedOut, final long deadlineNanos) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        final boolean retryable;
+        if (timedOut || isCausedBy(failure, SocketTimeoutException.class)) {
+            retryable = retryOnTimeout;
+        } else if (responseCode >= 0) {
+            retryable = retryStatusCodes.contains(responseCode);
+        } else {
+            retryable = retryOnConnectFailure && isCausedBy(failure, ConnectException.class, NoRouteToHostException.class, PortUnreachableException.class);
+        }
+        if (!retryable) {
+            return -1;
+        }
+
+        long delay = -1;
+        if (honorRetryAfter) {
+            delay = parseRetryAfter(retryAfter);
+            if (delay > maxDelay) {
+                // 伺服器要求等待的時間太長
+                return -1;
+            }
+        }
+        if (delay < 0) {
+            final long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+            delay = cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+        }
+        if (deadlineNanos != 0 && deadlineNanos - System.nanoTime() <= delay * 1000000L) {
+            // 等待之後就沒有時間了
+            return -1;
+        }
+
+        while (true) {
+            final long current = tokens.get();
+            if (current < TOKEN_SCALE) {
+                throttledCount.incrementAndGet();
+                return -1;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN_SCALE)) {
+                break;
+            }
+        }
+        retryCount.incrementAndGet();
+        return delay;
+    }
+
+    /**
+     * 紀錄一次成功，補回一部分權杖。
+     */
+    void recordSuccess() {
+        while (true) {
+            final long current = tokens.get();
+            final long capacity = tokenCapacity;
+            if (current >= capacity) {
+                return;
+            }
+            if (tokens.compareAndSet(current, Math.min(capacity, current + tokenRefill))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 取得最多嘗試次數。
+     *
+     * @return 傳回最多嘗試次數(包含第一次)
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 取得基本等待時間。
+     *
+     * @return 傳回基本等待時間(毫秒)
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * 取得最長等待時間。
+     *
+     * @return 傳回最長等待時間(毫秒)
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * 取得所有嘗試共用的期限。
+     *
+     * @return 傳回所有嘗試共用的期限(毫秒)，如果小於或等於0，表示沒有期限
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * 設定所有嘗試共用的期限，從開啟URL時開始計算。
+     *
+     * @param deadline 傳入所有嘗試共用的期限(毫秒)，如果小於或等於0，表示沒有期限
+     */
+    public void setDeadline(final long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * 取得是否在連線失敗時重試。
+     *
+     * @return 傳回是否在連線失敗時重試
+     */
+    public boolean isRetryOnConnectFailure() {
+        return retryOnConnectFailure;
+    }
+
+    /**
+     * 設定是否在連線失敗時重試。
+     *
+     * @param retryOnConnectFailure 傳入是否在連線失敗時重試
+     */
+    public void setRetryOnConnectFailure(final boolean retryOnConnectFailure) {
+        this.retryOnConnectFailure = retryOnConnectFailure;
+    }
+
+    /**
+     * 取得是否在逾時時重試。
+     *
+     * @return 傳回是否在逾時時重試
+     */
+    public boolean isRetryOnTimeout() {
+        return retryOnTimeout;
+    }
+
+    /**
+     * 設定是否在逾時時重試。
+     *
+     * @param retryOnTimeout 傳入是否在逾時時重試
+     */
+    public void setRetryOnTimeout(final boolean retryOnTimeout) {
+        this.retryOnTimeout = retryOnTimeout;
+    }
+
+    /**
+     * 取得是否使用Retry-After標頭的時間。
+     *
+     * @return 傳回是否使用Retry-After標頭的時間
+     */
+    public boolean isHonorRetryAfter() {
+        return honorRetryAfter;
+    }
+
+    /**
+     * 設定是否使用Retry-After標頭的時間。
+     *
+     * @param honorRetryAfter 傳入是否使用Retry-After標頭的時間
+     */
+    public void setHonorRetryAfter(final boolean honorRetryAfter) {
+        this.honorRetryAfter = honorRetryAfter;
+    }
+
+    /**
+     * 取得要重試的回應碼。
+     *
+     * @return 傳回要重試的回應碼
+     */
+    public int[] getRetryStatusCodes() {
+        final Set<Integer> codes = retryStatusCodes;
+        final int[] array = new int[codes.size()];
+        int i = 0;
+        for (final int code : codes) {
+            array[i++] = code;
+        }
+        return array;
+    }
+
+    /**
+     * 設定要重試的回應碼，預設為429、502、503、504。只有在不允許非2XX的回應碼時才有作用。
+     *
+     * @param statusCodes 傳入要重試的回應碼
+     */
+    public void setRetryStatusCodes(final int... statusCodes) {
+        final HashSet<Integer> codes = new HashSet<>();
+        if (statusCodes != null) {
+            for (final int code : statusCodes) {
+                codes.add(code);
+            }
+        }
+        retryStatusCodes = codes;
+    }
+
+    /**
+     * 設定重試的權杖。權杖會被補滿。
+     *
+     * @param capacity 傳入權杖數量上限
+     * @param ratio 傳入每次成功補回的權杖數量
+     */
+    public void setRetryBudget(final int capacity, final double ratio) {
+        if (capacity < 0 || ratio < 0) {
+            throw new RuntimeException("Retry budget is invalid.");
+        }
+        tokenCapacity = (long) capacity * TOKEN_SCALE;
+        tokenRefill = (long) (ratio * TOKEN_SCALE);
+        tokens.set(tokenCapacity);
+    }
+
+    /**
+     * 取得目前剩下的權杖數量。
+     *
+     * @return 傳回目前剩下的權杖數量
+     */
+    public double getAvailableTokens() {
+        return (double) tokens.get() / TOKEN_SCALE;
+    }
+
+    /**
+     * 取得重試的次數。
+     *
+     * @return 傳回重試的次數
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * 取得因為權杖用完而沒有重試的次數。
+     *
+     * @return 傳回因為權杖用完而沒有重試的次數
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * 將統計數據歸零。
+     */
+    public void resetStatistics() {
+        retryCount.set(0);
+        throttledCount.set(0);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 以RFC 8305(Happy Eyeballs)的方式連線到主機名稱的多個IP位址。
+ * </p>
+ *
+ * <p>
+ * IP位址會先依照位址家族(IPv6、IPv4)交錯排列，然後依序開始連線。每次開始連線後，如果經過嘗試間隔的時間還沒有連線成功，或是已開始的連線都失敗了，就開始連線到下一個IP位址，最先連線成功的Socket會被使用，其它還在連線中的Socket會被關閉。這樣第一個IP位址無法連線時，不必等到連線逾時才嘗試下一個。第一個連線在呼叫者的執行緒中進行，每個IP位址的Socket在開始連線時才建立，所以第一個IP位址在嘗試間隔內連線成功時，不會建立其它Socket和執行緒。
+ * </p>
+ *
+ * @author Magic Len
+ * @see ResolvedSSLSocketFactory
+ */
+final class StaggeredConnector implements Runnable {
+
+    // -----類別常數-----
+    /**
+     * 共用的計時器，負責在嘗試間隔過後開始下一個連線。
+     */
+    private static final ScheduledThreadPoolExecutor TIMER;
+    /**
+     * 進行第二個之後的連線的執行緒池。
+     */
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "MagicURLNetwork-ConnectTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+        EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "MagicURLNetwork-Connect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // -----類別方法-----
+    /**
+     * 依照位址家族交錯排列IP位址，第一個位址的家族優先。
+     *
+     * @param addresses 傳入IP位址
+     * @return 傳回排列後的IP位址
+     */
+    static InetAddress[] interleave(final InetAddress[] addresses) {
+        final int length = addresses.length;
+        if (length < 3) {
+            return addresses;
+        }
+        final boolean firstIPv6 = addresses[0] instanceof Inet6Address;
+        final InetAddress[] preferred = new InetAddress[length];
+        final InetAddress[] others = new InetAddress[length];
+        int preferredCount = 0;
+        int othersCount = 0;
+        for (final InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIPv6) {
+                preferred[preferredCount++] = address;
+            } else {
+                others[othersCount++] = address;
+            }
+        }
+        if (othersCount == 0) {
+            return addresses;
+        }
+        final InetAddress[] result = new InetAddress[length];
+        int p = 0;
+        int o = 0;
+        for (int i = 0; i < length; ++i) {
+            if (o == othersCount || (p < preferredCount && p <= o)) {
+                result[i] = preferred[p++];
+            } else {
+                result[i] = others[o++];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 連線到其中一個IP位址。每個IP位址的Socket在開始連線時才會建立。
+     *
+     * @param targets 傳入IP位址
+     * @param port 傳入連接埠
+     * @param timeout 傳入整個連線的逾時時間(毫秒)，0表示沒有期限
+     * @param attemptDelay 傳入開始下一個連線之前等待的時間(毫秒)，0表示依序連線，前一個連線失敗後才連線到下一個IP位址
+     * @param soTimeout 傳入Socket的讀取逾時時間(毫秒)
+     * @param tcpNoDelay 傳入Socket是否使用TCP_NODELAY
+     * @param keepAlive 傳入Socket是否使用SO_KEEPALIVE
+     * @return 傳回最先連線成功的Socket
+     * @throws IOException 拋出例外
+     */
+    static Socket connect(final InetAddress[] targets, final int port, final int timeout, final int attemptDelay, final int soTimeout, final boolean tcpNoDelay, final boolean keepAlive) throws IOException {
+        if (targets.length == 0) {
+            throw new SocketException("No address to connect");
+        }
+        if (targets.length == 1 || attemptDelay <= 0) {
+            IOException failure = null;
+            for (final InetAddress target : targets) {
+                final Socket socket = createSocket(soTimeout, tcpNoDelay, keepAlive);
+                try {
+                    socket.connect(new InetSocketAddress(target, port), timeout);
+                    return socket;
+                } catch (final IOException ex) {
+                    failure = ex;
+                    close(socket);
+                }
+            }
+            throw failure;
+        }
+        return new StaggeredConnector(targets, port, attemptDelay, soTimeout, tcpNoDelay, keepAlive).race(timeout);
+    }
+
+    /**
+     * 建立未連線的Socket。
+     *
+     * @param soTimeout 傳入Socket的讀取逾時時間(毫秒)
+     * @param tcpNoDelay 傳入Socket是否使用TCP_NODELAY
+     * @param keepAlive 傳入Socket是否使用SO_KEEPALIVE
+     * @return 傳回未連線的Socket
+     * @throws SocketException 拋出例外
+     */
+    private static Socket createSocket(final int soTimeout, final boolean tcpNoDelay, final boolean keepAlive) throws SocketException {
+        final Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(soTimeout);
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(keepAlive);
+        } catch (final SocketException ex) {
+            close(socket);
+            throw ex;
+        }
+        return socket;
+    }
+
+    /**
+     * 關閉Socket。
+     *
+     * @param socket 傳入Socket
+     */
+    private static void close(final Socket socket) {
+        try {
+            socket.close();
+        } catch (final IOException ex) {
+        }
+    }
+
+    // -----物件常數-----
+    /**
+     * IP位址。
+     */
+    private final InetAddress[] targets;
+    /**
+     * 每個IP位址使用的Socket，開始連線時才會建立。
+     */
+    private final Socket[] sockets;
+    /**
+     * 連接埠。
+     */
+    private final int port;
+    /**
+     * 開始下一個連線之前等待的時間(奈秒)。
+     */
+    private final long delayNanos;
+    /**
+     * Socket的讀取逾時時間(毫秒)。
+     */
+    private final int soTimeout;
+    /**
+     * Socket是否使用TCP_NODELAY。
+     */
+    private final boolean tcpNoDelay;
+    /**
+     * Socket是否使用SO_KEEPALIVE。
+     */
+    private final boolean keepAlive;
+
+    // -----物件變數-----
+    /**
+     * 整個連線的期限(奈秒時間)，0表示沒有期限。
+     */
+    private long deadline;
+    /**
+     * 計時器中開始下一個連線的工作。
+     */
+    private ScheduledFuture<?> task = null;
+    /**
+     * 已經開始的連線數量。
+     */
+    private int started = 0;
+    /**
+     * 已經失敗的連線數量。
+     */
+    private int failed = 0;
+    /**
+     * 最先連線成功的Socket。
+     */
+    private Socket winner = null;
+    /**
+     * 第一個連線失敗的原因。
+     */
+    private IOException failure = null;
+    /**
+     * 是否已經結束。
+     */
+    private boolean finished = false;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param targets 傳入IP位址
+     * @param port 傳入連接埠
+     * @param attemptDelay 傳入開始下一個連線之前等待的時間(毫秒)
+     * @param soTimeout 傳入Socket的讀取逾時時間(毫秒)
+     * @param tcpNoDelay 傳入Socket是否使用TCP_NODELAY
+     * @param keepAlive 傳入Socket是否使用SO_KEEPALIVE
+     */
+    private StaggeredConnector(final InetAddress[] targets, final int port, final int attemptDelay, final int soTimeout, final boolean tcpNoDelay, final boolean keepAlive) {
+        this.targets = targets;
+        this.sockets = new Socket[targets.length];
+        this.port = port;
+        this.delayNanos = attemptDelay * 1000000L;
+        this.soTimeout = soTimeout;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+    }
+
+    // -----物件方法-----
+    /**
+     * 錯開時間開始連線，等待最先連線成功的Socket。第一個連線在呼叫者的執行緒中進行，之後的連線由共用的計時器和執行緒池開始，所以第一個IP位址很快就連線成功時不需要其它執行緒。
+     *
+     * @param timeout 傳入整個連線的逾時時間(毫秒)，0表示沒有期限
+     * @return 傳回最先連線成功的Socket
+     * @throws IOException 拋出例外
+     */
+    private Socket race(final int timeout) throws IOException {
+        Socket first = null;
+        try {
+            synchronized (this) {
+                deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+                started = 1;
+                task = TIMER.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            }
+            try {
+                first = createSocket(soTimeout, tcpNoDelay, keepAlive);
+                synchronized (this) {
+                    sockets[0] = first;
+                    if (finished || winner != null) {
+                        // 其它連線已經成功，不必再連線
+                        close(first);
+                    }
+                }
+                first.connect(new InetSocketAddress(targets[0], port), timeout);
+                succeeded(first);
+            } catch (final IOException ex) {
+                failed(ex);
+            }
+            synchronized (this) {
+                while (true) {
+                    if (winner != null) {
+                        return winner;
+                    }
+                    if (failed == targets.length) {
+                        throw failure;
+                    }
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        final long remain = deadline - System.nanoTime();
+                        if (remain <= 0) {
+                            throw new SocketTimeoutException("connect timed out");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remain);
+                    }
+                }
+            }
+        } catch (final InterruptedException ex) {
+            throw new InterruptedIOException("Connection interrupted");
+        } finally {
+            final Socket w;
+            synchronized (this) {
+                finished = true;
+                cancelTask();
+                w = winner;
+            }
+            // 關閉其它還在連線中的Socket，讓它們的連線立刻結束
+            for (final Socket socket : sockets) {
+                if (socket != null && socket != w) {
+                    close(socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * 經過嘗試間隔，開始下一個連線。
+     */
+    @Override
+    public synchronized void run() {
+        task = null;
+        if (!finished && winner == null) {
+            startNext();
+        }
+    }
+
+    /**
+     * 取消計時器中還沒有執行的工作。必須在同步區塊中呼叫。
+     */
+    private void cancelTask() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * 建立下一個IP位址的Socket，並在執行緒池中開始連線。如果還有IP位址，再排定下一次的嘗試。必須在同步區塊中呼叫。
+     */
+    private void startNext() {
+        cancelTask();
+        if (started == targets.length) {
+            return;
+        }
+        final int index = started++;
+        final InetSocketAddress address = new InetSocketAddress(targets[index], port);
+        try {
+            final Socket socket = createSocket(soTimeout, tcpNoDelay, keepAlive);
+            sockets[index] = socket;
+            EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    attempt(socket, address);
+                }
+            });
+        } catch (final SocketException | RejectedExecutionException ex) {
+            failed(ex instanceof IOException ? (IOException) ex : new SocketException(ex.getMessage()));
+            return;
+        }
+        if (started < targets.length) {
+            task = TIMER.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 在執行緒池中連線。
+     *
+     * @param socket 傳入Socket
+     * @param address 傳入要連線的位址
+     */
+    private void attempt(final Socket socket, final InetSocketAddress address) {
+        final long d;
+        synchronized (this) {
+            d = deadline;
+        }
+        try {
+            int timeout = 0;
+            if (d != 0) {
+                final long remain = d - System.nanoTime();
+                if (remain <= 0) {
+                    throw new SocketTimeoutException("connect timed out");
+                }
+                timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remain));
+            }
+            socket.connect(address, timeout);
+            succeeded(socket);
+        } catch (final IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * 連線成功時，關閉其它還在連線中的Socket。
+     *
+     * @param socket 傳入連線成功的Socket
+     */
+    private void succeeded(final Socket socket) {
+        synchronized (this) {
+            if (winner == null && !finished) {
+                winner = socket;
+                cancelTask();
+                for (final Socket s : sockets) {
+                    if (s != null && s != socket) {
+                        close(s);
+                    }
+                }
+                notifyAll();
+                return;
+            }
+        }
+        close(socket);
+    }
+
+    /**
+     * 連線失敗時。如果已開始的連線都失敗了，立刻開始下一個連線。
+     *
+     * @param ex 傳入失敗的原因
+     */
+    private synchronized void failed(final IOException ex) {
+        ++failed;
+        if (failure == null) {
+            failure = ex;
+        }
+        if (!finished && winner == null && failed == started) {
+            startNext();
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork;
+
+/**
+ * 傳輸進度在某個時間點的快照。
+ *
+ * @author Magic Len
+ * @see MagicURLNetwork#getProgress()
+ */
+public final class TransferProgress {
+
+    // -----物件常數-----
+    /**
+     * 是否正在接收，否則為傳送。
+     */
+    private final boolean receiving;
+    /**
+     * 目前已傳送和接收的位元組數量。
+     */
+    private final long currentBytes;
+    /**
+     * 總共需傳送和接收的位元組數量，如果為-1，表示無法取得正確的數量。
+     */
+    private final long totalBytes;
+
+    // -----建構子-----
+    /**
+     * 建構子。
+     *
+     * @param receiving 傳入是否正在接收，否則為傳送
+     * @param currentBytes 傳入目前已傳送和接收的位元組數量
+     * @param totalBytes 傳入總共需傳送和接收的位元組數量
+     */
+    TransferProgress(final boolean receiving, final long currentBytes, final long totalBytes) {
+        this.receiving = receiving;
+        this.currentBytes = currentBytes;
+        this.totalBytes = totalBytes;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得是否正在接收。
+     *
+     * @return 傳回是否正在接收，否則為傳送
+     */
+    public boolean isReceiving() {
+        return receiving;
+    }
+
+    /**
+     * 取得目前已傳送和接收的位元組數量。
+     *
+     * @return 傳回目前已傳送和接收的位元組數量
+     */
+    public long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * 取得總共需傳送和接收的位元組數量。
+     *
+     * @return 傳回總共需傳送和接收的位元組數量，如果傳回-1，表示無法取得正確的數量
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 取得完成的比例。
+     *
+     * @return 傳回完成的比例，範圍是0到1，如果無法取得總數量，傳回-1
+     */
+    public double getFraction() {
+        if (totalBytes < 0) {
+            return -1;
+        }
+        if (totalBytes == 0) {
+            return 1;
+        }
+        return Math.min(1, (double) currentBytes / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d/%d", receiving ? "receiving" : "sending", currentBytes, totalBytes);
+    }
+}
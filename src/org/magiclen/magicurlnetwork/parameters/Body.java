@@ -18,6 +18,8 @@
 package org.magiclen.magicurlnetwork.parameters;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import org.magiclen.mson.JSONType;
 
 /**
@@ -26,7 +28,7 @@ import org.magiclen.mson.JSONType;
  * </p>
  *
  * <p>
- * 如果想要傳送數值資料，可以使用NUMBER方法；如果想要傳送字串資料，可以使用STRING方法；如果想要傳送JSON資料，可以使用JSON方法；如果想要傳送檔案，可以使用FILE方法；如果想要將多筆資料以陣列形式傳送，可以使用ARRAY方法。
+ * 如果想要傳送數值資料，可以使用NUMBER方法；如果想要傳送字串資料，可以使用STRING方法；如果想要傳送JSON資料，可以使用JSON方法；如果想要傳送檔案，可以使用FILE方法；如果想要將多筆資料以陣列形式傳送，可以使用ARRAY方法；如果想要直接傳送記憶體中的二進制資料，可以使用BYTES或BYTE_BUFFER方法；如果想要從串流傳送資料，可以使用INPUT_STREAM方法；如果只想傳送檔案的其中一段，可以使用FILE_REGION方法。
  * </p>
  *
  * @author Magic Len
@@ -35,6 +37,10 @@ import org.magiclen.mson.JSONType;
  * @see JSONBody
  * @see NumberBody
  * @see ArrayBody
+ * @see BytesBody
+ * @see ByteBufferBody
+ * @see InputStreamBody
+ * @see FileRegionBody
  */
 public abstract class Body {
 
@@ -90,6 +96,60 @@ public abstract class Body {
 	return new StringBody(source);
     }
 
+    /**
+     * 使用位元組陣列作為資料來源。
+     *
+     * @param source 傳入位元組陣列
+     * @return 傳回BytesBody物件
+     */
+    public static BytesBody BYTES(final byte[] source) {
+	return new BytesBody(source);
+    }
+
+    /**
+     * 使用ByteBuffer作為資料來源。
+     *
+     * @param source 傳入ByteBuffer
+     * @return 傳回ByteBufferBody物件
+     */
+    public static ByteBufferBody BYTE_BUFFER(final ByteBuffer source) {
+	return new ByteBufferBody(source);
+    }
+
+    /**
+     * 使用長度未知的輸入串流作為資料來源。
+     *
+     * @param source 傳入輸入串流
+     * @return 傳回InputStreamBody物件
+     */
+    public static InputStreamBody INPUT_STREAM(final InputStream source) {
+	return new InputStreamBody(source);
+    }
+
+    /**
+     * 使用輸入串流作為資料來源。
+     *
+     * @param source 傳入輸入串流
+     * @param length 傳入串流的長度，如果為-1，表示長度未知
+     * @return 傳回InputStreamBody物件
+     */
+    public static InputStreamBody INPUT_STREAM(final InputStream source, final long length) {
+	return new InputStreamBody(source, length);
+    }
+
+    /**
+     * 使用檔案區段作為資料來源。
+     *
+     * @param source 傳入檔案
+     * @param offset 傳入區段在檔案中的位移
+     * @param length 傳入區段的長度
+     * @throws Exception 拋出例外
+     * @return 傳回FileRegionBody物件
+     */
+    public static FileRegionBody FILE_REGION(final File source, final long offset, final long length) throws Exception {
+	return new FileRegionBody(source, offset, length);
+    }
+
     //-----物件方法-----
     /**
      * 取得資料來源。
@@ -29,5 +29,5 @@ package org.magiclen.magicurlnetwork.parameters;
  */
 public enum BodyType {
 
-    FILE, STRING, JSON, NUMBER, ARRAY
+    FILE, STRING, JSON, NUMBER, ARRAY, BYTES, BYTE_BUFFER, INPUT_STREAM, FILE_REGION
 }
@@ -0,0 +1,120 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork.parameters;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * ByteBuffer資料，可以是直接(Direct)緩衝區。
+ * </p>
+ *
+ * <p>
+ * 傳送的內容為建立這個物件時ByteBuffer的position到limit之間的資料。傳送時會使用ByteBuffer的副本，因此不會改變原本ByteBuffer的position，可以重複傳送。
+ * </p>
+ *
+ * @author Magic Len
+ * @see Body
+ */
+public class ByteBufferBody extends Body {
+
+    //-----物件變數-----
+    /**
+     * ByteBuffer來源。
+     */
+    private ByteBuffer source;
+    /**
+     * 內容型態。
+     */
+    private String contentType;
+
+    //-----建構子-----
+    /**
+     * 建構子，使用ByteBuffer作為資料來源。
+     *
+     * @param source 傳入ByteBuffer
+     */
+    public ByteBufferBody(final ByteBuffer source) {
+	this(source, null);
+    }
+
+    /**
+     * 建構子，使用ByteBuffer作為資料來源。
+     *
+     * @param source 傳入ByteBuffer
+     * @param contentType 傳入內容型態，如果為null，使用application/octet-stream
+     */
+    public ByteBufferBody(final ByteBuffer source, final String contentType) {
+	if (source == null) {
+	    throw new NullPointerException("Null body source.");
+	}
+	this.source = source.duplicate();
+	this.contentType = contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得資料來源。
+     *
+     * @return 傳回資料來源的副本，position和limit不會影響原本的ByteBuffer，內容則是共用的
+     */
+    @Override
+    public ByteBuffer getSource() {
+	return source.duplicate();
+    }
+
+    /**
+     * 取得資料的長度。
+     *
+     * @return 傳回資料的長度
+     */
+    public int length() {
+	return source.remaining();
+    }
+
+    /**
+     * 取得資料字串，將ByteBuffer的內容以UTF-8解碼。
+     *
+     * @return 傳回資料字串
+     */
+    @Override
+    public String toString() {
+	return Charset.forName("UTF-8").decode(source.duplicate()).toString();
+    }
+
+    /**
+     * 取得參數資料的類型。
+     *
+     * @return 傳回參數資料的類型
+     */
+    @Override
+    public BodyType getBodyType() {
+	return BodyType.BYTE_BUFFER;
+    }
+
+    /**
+     * 取得資料的MIME類型。
+     *
+     * @return 傳回資料的MIME類型
+     */
+    @Override
+    public String getContentType() {
+	return contentType;
+    }
+}
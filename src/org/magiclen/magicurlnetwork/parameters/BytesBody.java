@@ -0,0 +1,104 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork.parameters;
+
+import java.nio.charset.Charset;
+
+/**
+ * 位元組陣列資料，傳送時會直接使用傳入的陣列，不會另外複製。
+ *
+ * @author Magic Len
+ * @see Body
+ */
+public class BytesBody extends Body {
+
+    //-----物件變數-----
+    /**
+     * 位元組陣列來源。
+     */
+    private byte[] source;
+    /**
+     * 內容型態。
+     */
+    private String contentType;
+
+    //-----建構子-----
+    /**
+     * 建構子，使用位元組陣列作為資料來源。
+     *
+     * @param source 傳入位元組陣列
+     */
+    public BytesBody(final byte[] source) {
+	this(source, null);
+    }
+
+    /**
+     * 建構子，使用位元組陣列作為資料來源。
+     *
+     * @param source 傳入位元組陣列
+     * @param contentType 傳入內容型態，如果為null，使用application/octet-stream
+     */
+    public BytesBody(final byte[] source, final String contentType) {
+	if (source == null) {
+	    throw new NullPointerException("Null body source.");
+	}
+	this.source = source;
+	this.contentType = contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得資料來源。
+     *
+     * @return 傳回資料來源
+     */
+    @Override
+    public byte[] getSource() {
+	return source;
+    }
+
+    /**
+     * 取得資料字串，將位元組陣列以UTF-8解碼。
+     *
+     * @return 傳回資料字串
+     */
+    @Override
+    public String toString() {
+	return new String(source, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * 取得參數資料的類型。
+     *
+     * @return 傳回參數資料的類型
+     */
+    @Override
+    public BodyType getBodyType() {
+	return BodyType.BYTES;
+    }
+
+    /**
+     * 取得資料的MIME類型。
+     *
+     * @return 傳回資料的MIME類型
+     */
+    @Override
+    public String getContentType() {
+	return contentType;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork.parameters;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 偵測檔案的MIME類型。以副檔名判斷的結果會存在所有檔案共用、有大小上限的快取中；無法從副檔名判斷時，才會讀取檔案開頭的少量位元組來判斷。
+ *
+ * @author Magic Len
+ * @see FileBody
+ * @see FileRegionBody
+ */
+final class ContentTypes {
+
+    // -----類別常數-----
+    /**
+     * 快取最多能儲存的副檔名數量。
+     */
+    private static final int MAX_CACHE_SIZE = 512;
+    /**
+     * 判斷檔案內容時需要讀取的位元組數量。
+     */
+    private static final int SNIFF_SIZE = 16;
+    /**
+     * 表示無法從副檔名判斷MIME類型。
+     */
+    private static final String UNKNOWN = new String("");
+    /**
+     * 副檔名與MIME類型的快取，使用LRU的方式淘汰。
+     */
+    private static final Map<String, String> CACHE = new LinkedHashMap<String, String>(64, 0.75f, true) {
+
+	@Override
+	protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+	    return size() > MAX_CACHE_SIZE;
+	}
+    };
+    /**
+     * 每個執行緒共用的讀取緩衝空間。
+     */
+    private static final ThreadLocal<byte[]> SNIFF_BUFFER = new ThreadLocal<byte[]>() {
+
+	@Override
+	protected byte[] initialValue() {
+	    return new byte[SNIFF_SIZE];
+	}
+    };
+
+    // -----類別方法-----
+    /**
+     * 偵測檔案的MIME類型。
+     *
+     * @param file 傳入檔案
+     * @return 傳回MIME類型，如果無法判斷，傳回null
+     */
+    static String detect(final File file) {
+	final String contentType = fromName(file.getName());
+	if (contentType != null) {
+	    return contentType;
+	}
+	return fromContent(file);
+    }
+
+    /**
+     * 從檔案名稱判斷MIME類型。
+     *
+     * @param fileName 傳入檔案名稱
+     * @return 傳回MIME類型，如果無法判斷，傳回null
+     */
+    static String fromName(final String fileName) {
+	final int dotIndex = fileName.lastIndexOf('.');
+	final String extension = dotIndex < 0 ? "" : fileName.substring(dotIndex + 1).toLowerCase(Locale.ENGLISH);
+	String contentType;
+	synchronized (CACHE) {
+	    contentType = CACHE.get(extension);
+	}
+	if (contentType == null) {
+	    contentType = URLConnection.guessContentTypeFromName(fileName);
+	    if (contentType == null) {
+		contentType = UNKNOWN;
+	    }
+	    synchronized (CACHE) {
+		CACHE.put(extension, contentType);
+	    }
+	}
+	return contentType == UNKNOWN ? null : contentType;
+    }
+
+    /**
+     * 讀取檔案開頭的位元組來判斷MIME類型。
+     *
+     * @param file 傳入檔案
+     * @return 傳回MIME類型，如果無法判斷，傳回null
+     */
+    static String fromContent(final File file) {
+	final byte[] buffer = SNIFF_BUFFER.get();
+	int length = 0;
+	try (FileInputStream fis = new FileInputStream(file)) {
+	    int c;
+	    while (length < buffer.length && (c = fis.read(buffer, length, buffer.length - length)) > 0) {
+		length += c;
+	    }
+	    return URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(buffer, 0, length));
+	} catch (final Exception ex) {
+	    return null;
+	}
+    }
+
+    /**
+     * 私有建構子，讓這個類別無法被實體化。
+     */
+    private ContentTypes() {
+
+    }
+}
@@ -17,10 +17,7 @@
  */
 package org.magiclen.magicurlnetwork.parameters;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.net.URLConnection;
 import java.io.FileNotFoundException;
 
 /**
@@ -37,9 +34,13 @@ public class FileBody extends Body {
      */
     private File source;
     /**
-     * 內容型態。
+     * 內容型態，在第一次需要時才會偵測。
      */
-    private String contentType;
+    private volatile String contentType;
+    /**
+     * 是否已經偵測過內容型態。
+     */
+    private volatile boolean contentTypeDetected = false;
 
     //-----建構子-----
     /**
@@ -51,18 +52,13 @@ public class FileBody extends Body {
     public FileBody(final File source) throws Exception {
 	if (source == null) {
 	    throw new NullPointerException("Null body source.");
-	} else if (!source.exists()) {
-	    throw new FileNotFoundException("Body source doesn't exist.");
 	} else if (!source.isFile()) {
+	    if (!source.exists()) {
+		throw new FileNotFoundException("Body source doesn't exist.");
+	    }
 	    throw new RuntimeException("Body source is not a file.");
 	}
 	this.source = source;
-	contentType = URLConnection.guessContentTypeFromName(source.getName());
-	if (contentType == null) {
-	    try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(source))) {
-		contentType = URLConnection.guessContentTypeFromStream(bis);
-	    }
-	}
     }
 
     // -----物件方法-----
@@ -97,12 +93,16 @@ public class FileBody extends Body {
     }
 
     /**
-     * 取得資料的MIME類型。
+     * 取得資料的MIME類型，第一次呼叫時才會偵測。
      *
-     * @return 傳回資料的MIME類型
+     * @return 傳回資料的MIME類型，如果無法判斷，傳回null
      */
     @Override
     public String getContentType() {
+	if (!contentTypeDetected) {
+	    contentType = ContentTypes.detect(source);
+	    contentTypeDetected = true;
+	}
 	return contentType;
     }
 }
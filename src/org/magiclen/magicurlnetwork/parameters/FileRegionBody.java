@@ -0,0 +1,137 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork.parameters;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * 檔案區段資料，只傳送檔案中從指定位移開始、指定長度的內容。
+ *
+ * @author Magic Len
+ * @see Body
+ * @see FileBody
+ */
+public class FileRegionBody extends Body {
+
+    //-----物件變數-----
+    /**
+     * 檔案來源。
+     */
+    private File source;
+    /**
+     * 區段在檔案中的位移。
+     */
+    private long offset;
+    /**
+     * 區段的長度。
+     */
+    private long length;
+    /**
+     * 內容型態，在第一次需要時才會偵測。
+     */
+    private volatile String contentType;
+
+    //-----建構子-----
+    /**
+     * 建構子，使用檔案區段作為資料來源。
+     *
+     * @param source 傳入檔案
+     * @param offset 傳入區段在檔案中的位移
+     * @param length 傳入區段的長度
+     * @throws Exception 拋出例外
+     */
+    public FileRegionBody(final File source, final long offset, final long length) throws Exception {
+	if (source == null) {
+	    throw new NullPointerException("Null body source.");
+	} else if (!source.isFile()) {
+	    if (!source.exists()) {
+		throw new FileNotFoundException("Body source doesn't exist.");
+	    }
+	    throw new RuntimeException("Body source is not a file.");
+	} else if (offset < 0 || length < 0 || offset + length > source.length()) {
+	    throw new RuntimeException("Invalid file region.");
+	}
+	this.source = source;
+	this.offset = offset;
+	this.length = length;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得資料來源。
+     *
+     * @return 傳回資料來源
+     */
+    @Override
+    public File getSource() {
+	return source;
+    }
+
+    /**
+     * 取得區段在檔案中的位移。
+     *
+     * @return 傳回區段在檔案中的位移
+     */
+    public long getOffset() {
+	return offset;
+    }
+
+    /**
+     * 取得區段的長度。
+     *
+     * @return 傳回區段的長度
+     */
+    public long length() {
+	return length;
+    }
+
+    /**
+     * 取得資料字串。
+     *
+     * @return 傳回資料字串
+     */
+    @Override
+    public String toString() {
+	return source.getAbsolutePath();
+    }
+
+    /**
+     * 取得參數資料的類型。
+     *
+     * @return 傳回參數資料的類型
+     */
+    @Override
+    public BodyType getBodyType() {
+	return BodyType.FILE_REGION;
+    }
+
+    /**
+     * 取得資料的MIME類型。
+     *
+     * @return 傳回資料的MIME類型
+     */
+    @Override
+    public String getContentType() {
+	if (contentType == null) {
+	    final String detected = ContentTypes.fromName(source.getName());
+	    contentType = detected == null ? "application/octet-stream" : detected;
+	}
+	return contentType;
+    }
+}
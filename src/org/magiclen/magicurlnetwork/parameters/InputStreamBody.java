@@ -0,0 +1,137 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.magicurlnetwork.parameters;
+
+import java.io.InputStream;
+
+/**
+ * <p>
+ * 輸入串流資料，傳送時會直接從串流讀取，不會先存進記憶體或是暫存檔案。
+ * </p>
+ *
+ * <p>
+ * 串流只能被讀取一次，而且不會被自動關閉。如果不知道串流的長度，將會以分塊(Chunked)的方式傳送。
+ * </p>
+ *
+ * @author Magic Len
+ * @see Body
+ */
+public class InputStreamBody extends Body {
+
+    //-----物件變數-----
+    /**
+     * 輸入串流來源。
+     */
+    private InputStream source;
+    /**
+     * 串流的長度，如果為-1，表示長度未知。
+     */
+    private long length;
+    /**
+     * 內容型態。
+     */
+    private String contentType;
+
+    //-----建構子-----
+    /**
+     * 建構子，使用長度未知的輸入串流作為資料來源。
+     *
+     * @param source 傳入輸入串流
+     */
+    public InputStreamBody(final InputStream source) {
+	this(source, -1, null);
+    }
+
+    /**
+     * 建構子，使用輸入串流作為資料來源。
+     *
+     * @param source 傳入輸入串流
+     * @param length 傳入串流的長度，如果為-1，表示長度未知
+     */
+    public InputStreamBody(final InputStream source, final long length) {
+	this(source, length, null);
+    }
+
+    /**
+     * 建構子，使用輸入串流作為資料來源。
+     *
+     * @param source 傳入輸入串流
+     * @param length 傳入串流的長度，如果為-1，表示長度未知
+     * @param contentType 傳入內容型態，如果為null，使用application/octet-stream
+     */
+    public InputStreamBody(final InputStream source, final long length, final String contentType) {
+	if (source == null) {
+	    throw new NullPointerException("Null body source.");
+	} else if (length < -1) {
+	    throw new RuntimeException("Invalid body length.");
+	}
+	this.source = source;
+	this.length = length;
+	this.contentType = contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    // -----物件方法-----
+    /**
+     * 取得資料來源。
+     *
+     * @return 傳回資料來源
+     */
+    @Override
+    public InputStream getSource() {
+	return source;
+    }
+
+    /**
+     * 取得串流的長度。
+     *
+     * @return 傳回串流的長度，如果為-1，表示長度未知
+     */
+    public long length() {
+	return length;
+    }
+
+    /**
+     * 取得資料字串。
+     *
+     * @return 傳回資料字串
+     */
+    @Override
+    public String toString() {
+	return source.toString();
+    }
+
+    /**
+     * 取得參數資料的類型。
+     *
+     * @return 傳回參數資料的類型
+     */
+    @Override
+    public BodyType getBodyType() {
+	return BodyType.INPUT_STREAM;
+    }
+
+    /**
+     * 取得資料的MIME類型。
+     *
+     * @return 傳回資料的MIME類型
+     */
+    @Override
+    public String getContentType() {
+	return contentType;
+    }
+}
@@ -17,6 +17,11 @@
  */
 package org.magiclen.magicurlnetwork.parameters;
 
+import java.io.IOException;
+import java.io.Writer;
+import org.magiclen.gson.stream.JsonWriter;
+import org.magiclen.json.JSONArray;
+import org.magiclen.json.JSONObject;
 import org.magiclen.mson.JSONType;
 
 /**
@@ -27,6 +32,44 @@ import org.magiclen.mson.JSONType;
  */
 public class JSONBody extends Body {
 
+    // -----類別方法-----
+    /**
+     * 將JSON的值逐一寫入JsonWriter。
+     *
+     * @param jsonWriter 傳入JsonWriter
+     * @param value 傳入JSON的值
+     * @throws IOException 拋出例外
+     */
+    private static void writeValue(final JsonWriter jsonWriter, final Object value) throws IOException {
+	if (value == null || JSONObject.NULL.equals(value)) {
+	    jsonWriter.nullValue();
+	} else if (value instanceof JSONObject) {
+	    final JSONObject object = (JSONObject) value;
+	    jsonWriter.beginObject();
+	    for (final String key : object.keySet()) {
+		jsonWriter.name(key);
+		writeValue(jsonWriter, object.opt(key));
+	    }
+	    jsonWriter.endObject();
+	} else if (value instanceof JSONArray) {
+	    final JSONArray array = (JSONArray) value;
+	    jsonWriter.beginArray();
+	    final int length = array.length();
+	    for (int i = 0; i < length; ++i) {
+		writeValue(jsonWriter, array.opt(i));
+	    }
+	    jsonWriter.endArray();
+	} else if (value instanceof String) {
+	    jsonWriter.value((String) value);
+	} else if (value instanceof Boolean) {
+	    jsonWriter.value((Boolean) value);
+	} else if (value instanceof Number) {
+	    jsonWriter.value((Number) value);
+	} else {
+	    jsonWriter.jsonValue(JSONObject.valueToString(value));
+	}
+    }
+
     //-----物件變數-----
     /**
      * JSON來源。
@@ -57,6 +100,18 @@ public class JSONBody extends Body {
 	return source;
     }
 
+    /**
+     * 將JSON逐步序列化並寫入Writer，不會先將整份JSON轉成字串。
+     *
+     * @param writer 傳入Writer，寫入後不會被關閉
+     * @throws IOException 拋出例外
+     */
+    public void writeTo(final Writer writer) throws IOException {
+	final JsonWriter jsonWriter = new JsonWriter(writer);
+	writeValue(jsonWriter, source);
+	jsonWriter.flush();
+    }
+
     /**
      * 取得資料字串。
      *